@@ -1,6 +1,7 @@
 package cn.sky.jnic.config;
 
 import cn.sky.jnic.Jnic;
+import cn.sky.jnic.process.CompilerOptions;
 import lombok.Getter;
 import lombok.Setter;
 import org.bspfsystems.yamlconfiguration.configuration.ConfigurationSection;
@@ -13,7 +14,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Getter
 @Setter
@@ -33,6 +36,28 @@ public class Config {
     private boolean flowObfuscation;
     private boolean antiDebug;
 
+    private boolean costModel;
+    private double costThreshold;
+    private long nativeSizeBudget;
+    private int compileThreads;
+    private int compileQueueSize;
+    private int pinIterations;
+    private String devirtualize;
+    private boolean inlineCache;
+    private boolean indyLowering;
+
+    private String compilerProfile;
+    private Map<String, Map<String, Boolean>> compilerOverrides;
+
+    private String cacheLocal;
+    private String cacheRemote;
+    private boolean cacheUpload;
+
+    private String profileJfr;
+    private String profileMode;
+    private double profileMinSelfPercent;
+    private double profileMinSelfRatio;
+
     public Config() {
         Jnic.getLogger().info("Loading config...");
         this.configFile = new File("config.yml");
@@ -60,6 +85,57 @@ public class Config {
         this.stringEncryption = config.getBoolean("obfuscation.stringEncryption", true);
         this.flowObfuscation = config.getBoolean("obfuscation.flowObfuscation", true);
         this.antiDebug = config.getBoolean("obfuscation.antiDebug", true);
+
+        this.costModel = config.getBoolean("optimization.costModel", true);
+        this.costThreshold = config.getDouble("optimization.costThreshold", 2.0);
+        this.nativeSizeBudget = config.getLong("optimization.nativeSizeBudget", 0L);
+        this.compileThreads = config.getInt("optimization.compileThreads", 0);
+        this.compileQueueSize = config.getInt("optimization.compileQueueSize", 4);
+        this.pinIterations = config.getInt("optimization.pinIterations", 4096);
+        // YAML reads a bare off/on as a boolean
+        String devirtualize = config.getString("optimization.devirtualize", "guarded");
+        this.devirtualize = devirtualize.equals("false") ? "off" : devirtualize.equals("true") ? "guarded" : devirtualize;
+        if (!List.of("guarded", "closed", "off").contains(this.devirtualize)) {
+            throw new IllegalArgumentException("Unknown optimization.devirtualize mode: " + devirtualize);
+        }
+        this.inlineCache = config.getBoolean("optimization.inlineCache", true);
+        this.indyLowering = config.getBoolean("optimization.indyLowering", true);
+
+        this.compilerProfile = config.getString("compiler.profile", "release");
+        if (!List.of("release", "default").contains(this.compilerProfile)) {
+            throw new IllegalArgumentException("Unknown compiler.profile: " + this.compilerProfile);
+        }
+        this.compilerOverrides = new LinkedHashMap<>();
+        ConfigurationSection overrides = config.getConfigurationSection("compiler.overrides");
+        if (overrides != null) {
+            for (String target : overrides.getKeys(false)) {
+                ConfigurationSection section = overrides.getConfigurationSection(target);
+                if (section == null) {
+                    throw new IllegalArgumentException("compiler.overrides." + target + " is not a section");
+                }
+                Map<String, Boolean> options = new LinkedHashMap<>();
+                for (String key : section.getKeys(false)) {
+                    if (!CompilerOptions.KEYS.contains(key) || !(section.get(key) instanceof Boolean)) {
+                        throw new IllegalArgumentException("Invalid compiler option: compiler.overrides." + target
+                                + "." + key);
+                    }
+                    options.put(key, section.getBoolean(key));
+                }
+                this.compilerOverrides.put(target, options);
+            }
+        }
+
+        this.cacheLocal = config.getString("cache.local", "");
+        this.cacheRemote = config.getString("cache.remote", "");
+        this.cacheUpload = config.getBoolean("cache.upload", true);
+
+        this.profileJfr = config.getString("profile.jfr", "");
+        this.profileMode = config.getString("profile.mode", "restrict");
+        if (!List.of("restrict", "prioritize").contains(this.profileMode)) {
+            throw new IllegalArgumentException("Unknown profile.mode: " + this.profileMode);
+        }
+        this.profileMinSelfPercent = config.getDouble("profile.minSelfPercent", 0.5);
+        this.profileMinSelfRatio = config.getDouble("profile.minSelfRatio", 0.5);
     }
 
     public void saveResource(@NotNull String resourcePath, boolean replace) {
@@ -0,0 +1,663 @@
+package cn.sky.jnic.generator;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.util.*;
+
+/**
+ * Finds the loops whose primitive array accesses can go through a pointer from {@code GetPrimitiveArrayCritical}
+ * instead of one {@code Get/Set<Type>ArrayRegion} call per element. Strings indexed with {@code charAt} are pinned the
+ * same way with {@code GetStringCritical}, so the loop reads a cached view of their characters.
+ * <p>
+ * No other JNI function may be called while an array is pinned, so a region only qualifies if everything in it is
+ * plain C: arithmetic, locals, branches and the array accesses themselves. Every accessed array has to be read from a
+ * local that the region never assigns, so it can be pinned once on entry. A region is only entered by falling into its
+ * first instruction: either the loop header, or the {@code GOTO} in front of it that javac emits to jump to the
+ * condition. The generator releases the arrays on every edge leaving the region and before anything is thrown.
+ * <p>
+ * Inside a region every access is checked against the length read on entry. Indices that come from a counted loop
+ * variable get a {@link Range} instead: the variable only moves in one direction and is compared against a bound that
+ * does not change in the loop, so one check on entry proves all of its accesses in bounds.
+ */
+public class ArrayPinning {
+    /**
+     * Element type of an array that is only used for {@code ARRAYLENGTH}.
+     */
+    public static final char LENGTH_ONLY = 0;
+    /**
+     * Element type of a string whose {@code charAt} and {@code length} are read through the pinned characters.
+     */
+    public static final char STRING = 'T';
+
+    /**
+     * A loop whose arrays stay pinned.
+     *
+     * @param start  first instruction, where the arrays are pinned
+     * @param end    last instruction, the backward jump
+     * @param arrays pinned locals mapped to their element descriptor, or {@link #LENGTH_ONLY}
+     */
+    public record Region(int start, int end, Map<Integer, Character> arrays) {
+        public boolean contains(int index) {
+            return index >= start && index <= end;
+        }
+    }
+
+    /**
+     * Bound an induction variable is compared against, which keeps its value for the whole region.
+     *
+     * @param kind  {@code 'I'} the int local {@code value}, {@code 'L'} the length of the pinned local {@code value},
+     *              {@code 'C'} the constant {@code value}
+     */
+    public record Limit(char kind, int value) {
+    }
+
+    /**
+     * Index of an access that stays within a range known on entry of the region.
+     *
+     * @param array    pinned local that is accessed
+     * @param variable int local the index is read from, or {@code -1} for the constant index {@code constant}
+     * @param step     {@code 0} if the region never changes the variable; {@code 1} if it only grows and is below
+     *                 {@code limit} where the index is read; {@code -1} if it only shrinks and is not negative there
+     */
+    public record Range(int array, int variable, int constant, int step, Limit limit) {
+    }
+
+    /**
+     * Facts the branches of a region establish: int locals known to be below a limit, and known not to be negative.
+     */
+    private record Guards(Map<Integer, Set<Limit>> below, Set<Integer> nonNegative) {
+        static final Guards NONE = new Guards(Map.of(), Set.of());
+
+        Guards kill(int local) {
+            if (!below.containsKey(local) && !nonNegative.contains(local)) {
+                return this;
+            }
+            Map<Integer, Set<Limit>> newBelow = new HashMap<>(below);
+            newBelow.remove(local);
+            Set<Integer> newNonNegative = new HashSet<>(nonNegative);
+            newNonNegative.remove(local);
+            return new Guards(newBelow, newNonNegative);
+        }
+
+        Guards withBelow(int local, Limit limit) {
+            Map<Integer, Set<Limit>> newBelow = new HashMap<>(below);
+            Set<Limit> limits = new HashSet<>(below.getOrDefault(local, Set.of()));
+            limits.add(limit);
+            newBelow.put(local, limits);
+            return new Guards(newBelow, nonNegative);
+        }
+
+        Guards withNonNegative(int local) {
+            Set<Integer> newNonNegative = new HashSet<>(nonNegative);
+            newNonNegative.add(local);
+            return new Guards(below, newNonNegative);
+        }
+
+        Guards merge(Guards other) {
+            Map<Integer, Set<Limit>> newBelow = new HashMap<>();
+            below.forEach((local, limits) -> {
+                Set<Limit> common = new HashSet<>(limits);
+                common.retainAll(other.below.getOrDefault(local, Set.of()));
+                if (!common.isEmpty()) {
+                    newBelow.put(local, common);
+                }
+            });
+            Set<Integer> newNonNegative = new HashSet<>(nonNegative);
+            newNonNegative.retainAll(other.nonNegative);
+            return new Guards(newBelow, newNonNegative);
+        }
+    }
+
+    private final List<Region> regions = new ArrayList<>();
+    private final Region[] regionAt;
+    private final int[] pinnedLocal;
+    private final Range[] rangeAt;
+
+    public ArrayPinning(String owner, MethodNode method, Frame<BasicValue>[] frames, ReferenceAnalysis refs)
+            throws AnalyzerException {
+        InsnList instructions = method.instructions;
+        this.regionAt = new Region[instructions.size()];
+        this.pinnedLocal = new int[instructions.size()];
+        Arrays.fill(pinnedLocal, -1);
+        this.rangeAt = new Range[instructions.size()];
+
+        // Furthest backward jump to every loop header
+        Map<Integer, Integer> loops = new TreeMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (frames[i] == null) {
+                continue;
+            }
+            for (int successor : refs.getSuccessors(i)) {
+                if (successor <= i) {
+                    loops.merge(successor, i, Math::max);
+                }
+            }
+        }
+        if (loops.isEmpty()) {
+            return;
+        }
+
+        Frame<Source>[] sources = new Analyzer<>(new SourceInterpreter(instructions)).analyze(owner, method);
+        List<int[]> candidates = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> loop : loops.entrySet()) {
+            int start = loop.getKey();
+            int end = loop.getValue();
+            AbstractInsnNode before = start > 0 ? instructions.get(start - 1) : null;
+            if (before != null && before.getOpcode() == Opcodes.GOTO) {
+                int target = instructions.indexOf(((JumpInsnNode) before).label);
+                if (target > start && target <= end) {
+                    start--;
+                }
+            }
+            candidates.add(new int[] { start, end });
+        }
+        // Outer loops first, a nested loop only gets its own region if the outer one does not qualify
+        candidates.sort((a, b) -> (b[1] - b[0]) - (a[1] - a[0]));
+        for (int[] candidate : candidates) {
+            int start = candidate[0];
+            int end = candidate[1];
+            boolean overlaps = false;
+            for (Region region : regions) {
+                if (start <= region.end() && end >= region.start()) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            // With an empty stack on entry every array operand is loaded inside the region
+            if (overlaps || frames[start] == null || frames[start].getStackSize() != 0) {
+                continue;
+            }
+            Map<Integer, Integer> accesses = new HashMap<>();
+            Map<Integer, Character> arrays = findArrays(instructions, frames, sources, start, end, accesses);
+            if (arrays == null || !isSingleEntry(instructions, method.tryCatchBlocks, frames, refs, start, end)) {
+                continue;
+            }
+            Region region = new Region(start, end, arrays);
+            regions.add(region);
+            for (int i = start; i <= end; i++) {
+                regionAt[i] = region;
+            }
+            accesses.forEach((index, local) -> pinnedLocal[index] = local);
+            findRanges(instructions, frames, sources, refs, region);
+        }
+        regions.sort(Comparator.comparingInt(Region::start));
+    }
+
+    public List<Region> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return the region containing instruction {@code index}, or {@code null}
+     */
+    public Region getRegion(int index) {
+        return regionAt[index];
+    }
+
+    /**
+     * @return the pinned local an array access or {@code ARRAYLENGTH} works on, or {@code -1}
+     */
+    public int getPinnedLocal(int index) {
+        return pinnedLocal[index];
+    }
+
+    /**
+     * @return the range of the index of a pinned access that can be checked on entry of its region, or {@code null}
+     */
+    public Range getRange(int index) {
+        return rangeAt[index];
+    }
+
+    /**
+     * @return the pinned locals of the region mapped to their element type, or {@code null} if the region has
+     *         anything that needs the JNI or no element access at all
+     */
+    private Map<Integer, Character> findArrays(InsnList instructions, Frame<BasicValue>[] frames,
+            Frame<Source>[] sources, int start, int end, Map<Integer, Integer> accesses) {
+        Map<Integer, Character> arrays = new TreeMap<>();
+        Set<Integer> stored = new HashSet<>();
+        boolean accessesElements = false;
+        for (int i = start; i <= end; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (frames[i] == null || insn.getOpcode() < 0) {
+                continue;
+            }
+            int opcode = insn.getOpcode();
+            if (opcode == Opcodes.ASTORE) {
+                stored.add(((VarInsnNode) insn).var);
+            }
+            char element = getElementType(opcode);
+            boolean string = isStringAccess(insn);
+            if (element == 0 && opcode != Opcodes.ARRAYLENGTH && !string) {
+                if (!isPlainC(insn)) {
+                    return null;
+                }
+                continue;
+            }
+            // The array is below the index, and below the value for stores
+            Frame<Source> frame = sources[i];
+            int depth = isLength(insn) ? 1 : isStore(opcode) ? 3 : 2;
+            int local = frame.getStack(frame.getStackSize() - depth).local();
+            if (local < 0 || !frames[start].getLocal(local).isReference()) {
+                return null;
+            }
+            Character known = arrays.get(local);
+            if (string) {
+                arrays.put(local, STRING);
+                accessesElements |= !isLength(insn);
+            } else if (element == 0) {
+                arrays.putIfAbsent(local, LENGTH_ONLY);
+            } else if (known == null || known == LENGTH_ONLY) {
+                arrays.put(local, element);
+                accessesElements = true;
+            } else if (known != element) {
+                return null;
+            }
+            accesses.put(i, local);
+        }
+        for (int local : arrays.keySet()) {
+            if (stored.contains(local)) {
+                return null;
+            }
+        }
+        return accessesElements ? arrays : null;
+    }
+
+    /**
+     * Finds the accesses of {@code region} whose index is a constant, a local the region never changes, or a loop
+     * variable that only moves by one in a single direction while it is within its bounds, so it cannot wrap around.
+     */
+    private void findRanges(InsnList instructions, Frame<BasicValue>[] frames, Frame<Source>[] sources,
+            ReferenceAnalysis refs, Region region) {
+        int start = region.start();
+        int end = region.end();
+
+        // Direction of every int local the region changes, 0 if it is assigned or moves both ways
+        Map<Integer, Integer> steps = new HashMap<>();
+        for (int i = start; i <= end; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (frames[i] == null) {
+                continue;
+            }
+            if (insn instanceof IincInsnNode iinc) {
+                int step = iinc.incr == 1 || iinc.incr == -1 ? iinc.incr : 0;
+                steps.merge(iinc.var, step, (a, b) -> a.equals(b) ? a : 0);
+            } else if (isVarStore(insn.getOpcode())) {
+                steps.put(((VarInsnNode) insn).var, 0);
+            }
+        }
+
+        // Forward analysis of the branch facts, an increment or store forgets the facts of its local
+        Guards[] guards = new Guards[end - start + 1];
+        guards[0] = Guards.NONE;
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.add(start);
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            AbstractInsnNode insn = instructions.get(i);
+            Guards out = guards[i - start];
+            if (insn instanceof IincInsnNode iinc) {
+                out = out.kill(iinc.var);
+            } else if (isVarStore(insn.getOpcode())) {
+                out = out.kill(((VarInsnNode) insn).var);
+            }
+            int target = insn instanceof JumpInsnNode jump && insn.getOpcode() != Opcodes.GOTO
+                    ? instructions.indexOf(jump.label) : -1;
+            for (int successor : refs.getSuccessors(i)) {
+                if (successor < start || successor > end) {
+                    continue;
+                }
+                Guards next = out;
+                if (target >= 0 && target != i + 1) {
+                    next = refine(out, instructions, frames, sources[i], region, steps, i, successor == target);
+                }
+                Guards known = guards[successor - start];
+                Guards merged = known == null ? next : known.merge(next);
+                if (!merged.equals(known)) {
+                    guards[successor - start] = merged;
+                    worklist.add(successor);
+                }
+            }
+        }
+
+        // A loop variable may only move while it is within its bounds
+        for (int i = start; i <= end; i++) {
+            if (instructions.get(i) instanceof IincInsnNode iinc && guards[i - start] != null
+                    && steps.get(iinc.var) != 0) {
+                Guards before = guards[i - start];
+                boolean bounded = iinc.incr > 0 ? before.below().containsKey(iinc.var)
+                        : before.nonNegative().contains(iinc.var);
+                if (!bounded) {
+                    steps.put(iinc.var, 0);
+                }
+            }
+        }
+
+        for (int i = start; i <= end; i++) {
+            int opcode = instructions.get(i).getOpcode();
+            if (pinnedLocal[i] < 0 || isLength(instructions.get(i)) || frames[i] == null) {
+                continue;
+            }
+            int array = pinnedLocal[i];
+            Frame<Source> frame = sources[i];
+            Source index = frame.getStack(frame.getStackSize() - (isStore(opcode) ? 2 : 1));
+            if (index.kind() == 'C') {
+                if (index.value() >= 0) {
+                    rangeAt[i] = new Range(array, -1, index.value(), 0, null);
+                }
+                continue;
+            }
+            if (index.kind() != 'I' || !BasicValue.INT_VALUE.equals(frames[start].getLocal(index.value()))) {
+                continue;
+            }
+            int variable = index.value();
+            Integer step = steps.get(variable);
+            Guards atLoad = index.insn() >= start && index.insn() <= end ? guards[index.insn() - start] : null;
+            if (step == null) {
+                rangeAt[i] = new Range(array, variable, 0, 0, null);
+            } else if (step == 1 && atLoad != null && atLoad.below().containsKey(variable)) {
+                Set<Limit> limits = atLoad.below().get(variable);
+                Limit ownLength = new Limit('L', array);
+                Limit limit = limits.contains(ownLength) ? ownLength : limits.stream()
+                        .min(Comparator.comparing(Limit::kind).thenComparing(Limit::value)).orElseThrow();
+                rangeAt[i] = new Range(array, variable, 0, 1, limit);
+            } else if (step == -1 && atLoad != null && atLoad.nonNegative().contains(variable)) {
+                rangeAt[i] = new Range(array, variable, 0, -1, null);
+            }
+        }
+    }
+
+    /**
+     * Facts that hold on one edge of a conditional jump: a loop variable compared against a fixed bound, or against a
+     * constant that keeps it from being negative.
+     */
+    private static Guards refine(Guards guards, InsnList instructions, Frame<BasicValue>[] frames,
+            Frame<Source> frame, Region region, Map<Integer, Integer> steps, int index, boolean taken) {
+        int opcode = instructions.get(index).getOpcode();
+        Source left;
+        Source right;
+        int relation;
+        if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IFLE) {
+            left = frame.getStack(frame.getStackSize() - 1);
+            right = new Source(1, 'C', 0, -1);
+            relation = opcode - Opcodes.IFEQ;
+        } else if (opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ICMPLE) {
+            left = frame.getStack(frame.getStackSize() - 2);
+            right = frame.getStack(frame.getStackSize() - 1);
+            relation = opcode - Opcodes.IF_ICMPEQ;
+        } else {
+            return guards;
+        }
+        // Relations in opcode order: ==, !=, <, >=, >, <=; each one is negated by its neighbour
+        if (!taken) {
+            relation ^= 1;
+        }
+        if (!isCurrent(left, instructions, index)) {
+            if (!isCurrent(right, instructions, index)) {
+                return guards;
+            }
+            Source swap = left;
+            left = right;
+            right = swap;
+            relation = switch (relation) {
+                case 2 -> 4;
+                case 3 -> 5;
+                case 4 -> 2;
+                case 5 -> 3;
+                default -> relation;
+            };
+        }
+        int variable = left.value();
+        if (relation == 2) {
+            Limit limit = getLimit(right, frames[region.start()], region, steps);
+            return limit == null ? guards : guards.withBelow(variable, limit);
+        }
+        boolean nonNegative = right.kind() == 'C' && switch (relation) {
+            case 0, 3 -> right.value() >= 0;
+            case 4 -> right.value() >= -1;
+            default -> false;
+        };
+        return nonNegative ? guards.withNonNegative(variable) : guards;
+    }
+
+    /**
+     * Whether {@code value} is an int local that has not changed between its load and instruction {@code index}.
+     */
+    private static boolean isCurrent(Source value, InsnList instructions, int index) {
+        if (value.kind() != 'I' || value.insn() < 0 || value.insn() > index) {
+            return false;
+        }
+        for (int i = value.insn() + 1; i < index; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn instanceof IincInsnNode iinc && iinc.var == value.value()) {
+                return false;
+            }
+            if (insn instanceof VarInsnNode var && var.var == value.value() && isVarStore(insn.getOpcode())) {
+                return false;
+            }
+            if (insn instanceof JumpInsnNode || insn instanceof LabelNode) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Limit getLimit(Source value, Frame<BasicValue> entry, Region region, Map<Integer, Integer> steps) {
+        return switch (value.kind()) {
+            case 'C' -> new Limit('C', value.value());
+            case 'L' -> region.arrays().containsKey(value.value()) ? new Limit('L', value.value()) : null;
+            case 'I' -> !steps.containsKey(value.value())
+                    && BasicValue.INT_VALUE.equals(entry.getLocal(value.value())) ? new Limit('I', value.value()) : null;
+            default -> null;
+        };
+    }
+
+    private static boolean isVarStore(int opcode) {
+        return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE;
+    }
+
+    /**
+     * Nothing outside the region may jump or throw into it, only the instruction in front of it falls into it.
+     */
+    private boolean isSingleEntry(InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks,
+            Frame<BasicValue>[] frames, ReferenceAnalysis refs, int start, int end) {
+        for (TryCatchBlockNode tcb : tryCatchBlocks) {
+            int handler = instructions.indexOf(tcb.handler);
+            if (handler >= start && handler <= end) {
+                return false;
+            }
+        }
+        for (int i = 0; i < instructions.size(); i++) {
+            if (frames[i] == null || (i >= start && i <= end)) {
+                continue;
+            }
+            for (int successor : refs.getSuccessors(i)) {
+                if (successor >= start && successor <= end && !(i == start - 1 && successor == start)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static char getElementType(int opcode) {
+        return switch (opcode) {
+            case Opcodes.IALOAD, Opcodes.IASTORE -> 'I';
+            case Opcodes.LALOAD, Opcodes.LASTORE -> 'J';
+            case Opcodes.FALOAD, Opcodes.FASTORE -> 'F';
+            case Opcodes.DALOAD, Opcodes.DASTORE -> 'D';
+            // boolean[] elements are bytes as well
+            case Opcodes.BALOAD, Opcodes.BASTORE -> 'B';
+            case Opcodes.CALOAD, Opcodes.CASTORE -> 'C';
+            case Opcodes.SALOAD, Opcodes.SASTORE -> 'S';
+            default -> 0;
+        };
+    }
+
+    /**
+     * {@code String.charAt} or {@code String.length}, whose receiver can be pinned.
+     */
+    private static boolean isStringAccess(AbstractInsnNode insn) {
+        return insn instanceof MethodInsnNode call && call.getOpcode() == Opcodes.INVOKEVIRTUAL
+                && call.owner.equals("java/lang/String")
+                && (call.name.equals("charAt") && call.desc.equals("(I)C")
+                        || call.name.equals("length") && call.desc.equals("()I"));
+    }
+
+    /**
+     * {@code ARRAYLENGTH} or {@code String.length}.
+     */
+    private static boolean isLength(AbstractInsnNode insn) {
+        return insn.getOpcode() == Opcodes.ARRAYLENGTH
+                || isStringAccess(insn) && ((MethodInsnNode) insn).name.equals("length");
+    }
+
+    private static boolean isStore(int opcode) {
+        return opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+    }
+
+    /**
+     * Whether the generator emits the instruction without any JNI call. Integer division only calls into the JNI to
+     * throw, the generator releases the arrays before that.
+     */
+    private static boolean isPlainC(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        if (opcode == Opcodes.LDC) {
+            Object cst = ((LdcInsnNode) insn).cst;
+            return cst instanceof Integer || cst instanceof Float || cst instanceof Long || cst instanceof Double;
+        }
+        return (opcode >= Opcodes.NOP && opcode <= Opcodes.SIPUSH)
+                || (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD)
+                || (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE)
+                || (opcode >= Opcodes.POP && opcode <= Opcodes.RETURN && opcode != Opcodes.JSR
+                        && opcode != Opcodes.RET)
+                || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL;
+    }
+
+    /**
+     * Value of the analysis: where an int or reference comes from. Stack shuffles keep it, so a duplicated array
+     * operand is still known to come from its local.
+     *
+     * @param kind  {@code 'A'} loaded from reference local {@code value}, {@code 'I'} loaded from int local
+     *              {@code value} by instruction {@code insn}, {@code 'L'} length of the array or string in local
+     *              {@code value}, {@code 'C'} the int constant {@code value}, {@code 0} anything else
+     */
+    record Source(int size, char kind, int value, int insn) implements Value {
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        int local() {
+            return kind == 'A' ? value : -1;
+        }
+    }
+
+    private static class SourceInterpreter extends Interpreter<Source> {
+        private static final Source SINGLE = new Source(1, (char) 0, 0, -1);
+        private static final Source DOUBLE = new Source(2, (char) 0, 0, -1);
+
+        private final BasicInterpreter basic = new BasicInterpreter();
+        private final InsnList instructions;
+
+        SourceInterpreter(InsnList instructions) {
+            super(Opcodes.ASM9);
+            this.instructions = instructions;
+        }
+
+        private static Source of(BasicValue value) {
+            return value == null ? null : value.getSize() == 2 ? DOUBLE : SINGLE;
+        }
+
+        private static BasicValue toBasic(Source value) {
+            return value.getSize() == 2 ? BasicValue.LONG_VALUE : BasicValue.INT_VALUE;
+        }
+
+        private static Source constant(int value) {
+            return new Source(1, 'C', value, -1);
+        }
+
+        @Override
+        public Source newValue(Type type) {
+            if (type == null) {
+                return SINGLE;
+            }
+            return type.getSort() == Type.VOID ? null : type.getSize() == 2 ? DOUBLE : SINGLE;
+        }
+
+        @Override
+        public Source newOperation(AbstractInsnNode insn) throws AnalyzerException {
+            int opcode = insn.getOpcode();
+            if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+                return constant(opcode - Opcodes.ICONST_0);
+            }
+            if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+                return constant(((IntInsnNode) insn).operand);
+            }
+            if (opcode == Opcodes.LDC && ((LdcInsnNode) insn).cst instanceof Integer value) {
+                return constant(value);
+            }
+            return of(basic.newOperation(insn));
+        }
+
+        @Override
+        public Source copyOperation(AbstractInsnNode insn, Source value) {
+            if (insn.getOpcode() == Opcodes.ALOAD) {
+                return new Source(1, 'A', ((VarInsnNode) insn).var, -1);
+            }
+            if (insn.getOpcode() == Opcodes.ILOAD) {
+                return new Source(1, 'I', ((VarInsnNode) insn).var, instructions.indexOf(insn));
+            }
+            if (insn instanceof VarInsnNode) {
+                return value.getSize() == 2 ? DOUBLE : SINGLE;
+            }
+            return value;
+        }
+
+        @Override
+        public Source unaryOperation(AbstractInsnNode insn, Source value) throws AnalyzerException {
+            if (insn.getOpcode() == Opcodes.ARRAYLENGTH && value.kind() == 'A') {
+                return new Source(1, 'L', value.value(), -1);
+            }
+            return of(basic.unaryOperation(insn, toBasic(value)));
+        }
+
+        @Override
+        public Source binaryOperation(AbstractInsnNode insn, Source value1, Source value2)
+                throws AnalyzerException {
+            return of(basic.binaryOperation(insn, toBasic(value1), toBasic(value2)));
+        }
+
+        @Override
+        public Source ternaryOperation(AbstractInsnNode insn, Source value1, Source value2, Source value3) {
+            return null;
+        }
+
+        @Override
+        public Source naryOperation(AbstractInsnNode insn, List<? extends Source> values) throws AnalyzerException {
+            if (isLength(insn) && values.get(0).kind() == 'A') {
+                return new Source(1, 'L', values.get(0).value(), -1);
+            }
+            List<BasicValue> basicValues = new ArrayList<>();
+            for (Source value : values) {
+                basicValues.add(toBasic(value));
+            }
+            return of(basic.naryOperation(insn, basicValues));
+        }
+
+        @Override
+        public void returnOperation(AbstractInsnNode insn, Source value, Source expected) {
+        }
+
+        @Override
+        public Source merge(Source value1, Source value2) {
+            if (value1.equals(value2)) {
+                return value1;
+            }
+            return value1.getSize() == value2.getSize() ? (value1.getSize() == 2 ? DOUBLE : SINGLE) : SINGLE;
+        }
+    }
+}
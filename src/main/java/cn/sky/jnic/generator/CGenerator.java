@@ -13,16 +13,56 @@ import org.objectweb.asm.tree.analysis.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class CGenerator {
+    // Local references an instruction may create and drop again on its own (class lookups, pending exceptions)
+    private static final int LOCAL_FRAME_RESERVE = 4;
+    // Most receiver classes a devirtualized call checks before calling directly
+    private static final int MAX_GUARD_CLASSES = 4;
+    // Most receiver classes an inline cache compares against when it is filled
+    private static final int MAX_CACHE_CLASSES = 16;
+    // Static methods lowered to a C expression of their primitive arguments, see getInlineImplementation
+    private static final Map<String, String> PURE_INTRINSICS = Map.ofEntries(
+            Map.entry("java/lang/Float.floatToIntBits(F)I", "inline_float_bits(%s)"),
+            Map.entry("java/lang/Double.doubleToLongBits(D)J", "inline_double_bits(%s)"),
+            Map.entry("java/lang/Math.abs(D)D", "inline_math_abs_d(%s)"),
+            Map.entry("java/lang/Math.abs(F)F", "inline_math_abs_f(%s)"),
+            Map.entry("java/lang/Math.abs(I)I", "inline_math_abs_i(%s)"),
+            Map.entry("java/lang/Math.abs(J)J", "inline_math_abs_l(%s)"),
+            Map.entry("java/lang/Math.max(DD)D", "inline_math_max_d(%s, %s)"),
+            Map.entry("java/lang/Math.max(II)I", "inline_math_max_i(%s, %s)"),
+            Map.entry("java/lang/Math.min(DD)D", "inline_math_min_d(%s, %s)"),
+            Map.entry("java/lang/Math.min(II)I", "inline_math_min_i(%s, %s)"),
+            Map.entry("java/lang/Math.sin(D)D", "inline_math_sin(%s)"),
+            Map.entry("java/lang/Math.cos(D)D", "inline_math_cos(%s)"),
+            Map.entry("java/lang/Math.tan(D)D", "inline_math_tan(%s)"),
+            Map.entry("java/lang/Math.sqrt(D)D", "inline_math_sqrt(%s)"),
+            Map.entry("java/lang/Math.pow(DD)D", "inline_math_pow(%s, %s)"),
+            Map.entry("java/lang/Math.log(D)D", "inline_math_log(%s)"),
+            Map.entry("java/lang/Math.exp(D)D", "inline_math_exp(%s)"),
+            Map.entry("java/lang/Math.floor(D)D", "inline_math_floor(%s)"),
+            Map.entry("java/lang/Math.ceil(D)D", "inline_math_ceil(%s)"),
+            Map.entry("java/lang/Math.round(D)J", "jnic_d2l(inline_math_round(%s))"));
+    // StringBuilder chains computed in C, see findBuilderChains
+    private static final String BUILDER = "java/lang/StringBuilder";
+    private static final Set<String> BUILDER_INITS = Set.of("()V", "(I)V", "(Ljava/lang/String;)V");
+    private static final Set<String> BUILDER_APPENDS = Set.of("(Ljava/lang/String;)", "(Ljava/lang/Object;)", "(Z)",
+            "(C)", "(I)", "(J)", "(F)", "(D)");
+
     private final Config config;
     private final NativeProcessor processor;
     private final Obfuscator obfuscator;
-    private final StringBuilder globalCode = new StringBuilder();
+    private final StringBuilder headerCode = new StringBuilder();
 
     // Helper class for registration
     private static class NativeEntry {
@@ -42,60 +82,294 @@ public class CGenerator {
     }
 
     private final List<NativeEntry> nativeEntries = new ArrayList<>();
+    private final MethodDeduplicator deduplicator = new MethodDeduplicator();
+    private final SymbolTable symbols = new SymbolTable();
+    private final StringTable strings;
     private final Map<String, String> generatedMethods = new HashMap<>(); // Legacy map
-    private final StringBuilder functionPrototypes = new StringBuilder(); // For forward declarations
+    // Forward declarations of the current translation unit, including direct call targets in other units
+    private final Set<String> functionPrototypes = new LinkedHashSet<>();
 
     // State for current method generation
-    private List<TryCatchBlockNode> currentTryCatchBlocks;
+    // Instruction index -> index of the handler list covering it, -1 outside of any try block
+    private int[] currentHandlerGroups;
+    private final Set<Integer> usedHandlerGroups = new HashSet<>();
     private Map<LabelNode, Integer> currentLabelMap;
     private Frame<BasicValue>[] currentFrames;
     private String currentClassName; // Internal name
     private String currentMethodName;
     private ClassWrapper currentClass;
+    private ReferenceAnalysis currentRefs;
+    // Index of a fused constructor call -> index of its NEW, see findConstructions
+    private Map<Integer, Integer> currentConstructions;
+    // Instructions of the StringBuilder chains computed in C -> their chain, see findBuilderChains
+    private Map<Integer, BuilderChain> currentBuilderChains;
+    // Loops accessing their primitive arrays through pinned pointers, null if optimization.pinIterations is 0
+    private ArrayPinning currentPinning;
+    private char[] currentByteArrays;
+    private ClassHierarchy hierarchy;
+    private Type currentReturnType;
+    // Whether the current method runs without a local frame, see isLeaf
+    private boolean currentLeaf;
+    // C parameters holding references owned by the caller
+    private List<String> currentParamRefs;
+    // Reference operands popped by the instruction being emitted, by stack position
+    private final List<Integer> consumedRefs = new ArrayList<>();
+    private final Set<Integer> pushedRefs = new HashSet<>();
+    // Typed C variables of the current method, declared in its prologue
+    private final Set<String> usedVariables = new LinkedHashSet<>();
+    // Operand stack depth while emitting one instruction, in values (long/double take one)
+    private int stackTop;
 
     public CGenerator(NativeProcessor processor) {
         this.processor = processor;
         this.config = processor.getJnic().getConfig();
         this.obfuscator = new Obfuscator(config);
+        this.strings = new StringTable(obfuscator);
 
-        // Add headers
+        // Common header shared by every translation unit
+        headerCode.append("#ifndef JNIC_H\n");
+        headerCode.append("#define JNIC_H\n\n");
         // Use standard JNI header (must be provided in include path or same directory)
-        globalCode.append("#include \"jni.h\"\n");
-        globalCode.append("#include <stdint.h>\n");
-        globalCode.append("#include <stdlib.h>\n");
-        globalCode.append("#include <string.h>\n");
-        globalCode.append("#include <stdio.h>\n");
-        globalCode.append("#include <math.h>\n");
-        globalCode.append("#include <stdarg.h>\n\n");
-
-        // Define StackValue union
-        globalCode.append("typedef union {\n");
-        globalCode.append("    jint i;\n");
-        globalCode.append("    jlong j;\n");
-        globalCode.append("    jfloat f;\n");
-        globalCode.append("    jdouble d;\n");
-        globalCode.append("    jobject l;\n");
-        globalCode.append("} StackValue;\n\n");
-
-        // Add helper functions
-        globalCode.append(getHelperFunctions());
-
-        // Placeholder for prototypes - will be inserted here in finalizeGeneration if
-        // we use a different structure
-        // But since we append linearly, we need to insert them BEFORE methods.
-        // We can't insert into StringBuilder easily at specific index without shifting.
-        // Better: store methods in a separate buffer and combine at the end.
-    }
-
-    // Buffer for method implementations
-    private final StringBuilder methodImplementations = new StringBuilder();
+        headerCode.append("#include \"jni.h\"\n");
+        headerCode.append("#include <stdint.h>\n");
+        headerCode.append("#include <stdlib.h>\n");
+        headerCode.append("#include <string.h>\n");
+        headerCode.append("#include <stdio.h>\n");
+        headerCode.append("#include <math.h>\n");
+        headerCode.append("#include <stdarg.h>\n\n");
+
+        // Everything declared from here on stays inside the library: generated methods are reached through direct
+        // calls and RegisterNatives, so only JNI_OnLoad and registerNatives (JNIEXPORT) are exported. Hidden symbols
+        // bind locally, which lets the compiler inline across them
+        headerCode.append("#if !defined(_WIN32)\n");
+        headerCode.append("#pragma GCC visibility push(hidden)\n");
+        headerCode.append("#endif\n\n");
+
+        // Per-method cache slot of deduplicated bodies, see MethodDeduplicator
+        headerCode.append("typedef union {\n");
+        headerCode.append("    jobject l;\n");
+        headerCode.append("    jmethodID m;\n");
+        headerCode.append("    jfieldID f;\n");
+        headerCode.append("} JnicSlot;\n\n");
+
+        headerCode.append(getHelperDeclarations());
+        headerCode.append("#endif\n");
+    }
 
-    private String getHelperFunctions() {
+    /**
+     * Declarations of {@code jnic.h}. Helpers marked {@code JNIC_NOTHROW} are the ones {@link ExceptionCheckEliminator}
+     * drops the checks after.
+     */
+    static String getHelperDeclarations() {
         return """
-                // ==================== 调试日志 ====================
                 #ifndef JNIC_DEBUG
                 #define JNIC_DEBUG 0
                 #endif
+
+                // 标记不会留下挂起异常的辅助函数 (或只在返回 NULL 时留下, 调用点会检查结果), 其后的 ExceptionCheck
+                // 会被删除. 修改辅助函数的异常行为时要同时修改这个标记
+                #define JNIC_NOTHROW
+                void log_debug(const char* format, ...);
+
+                jclass get_or_cache_class(JNIEnv* env, jclass* cache, const char* name);
+                void init_global_cache(JNIEnv* env);
+
+                void throw_npe(JNIEnv* env, const char* msg);
+                void throw_aioobe(JNIEnv* env, const char* msg);
+                void throw_sioobe(JNIEnv* env, jint index, jint length);
+                void throw_arith(JNIEnv* env, const char* msg);
+
+                jboolean inline_string_equals(JNIEnv *env, jobject s1, jobject s2);
+                jint inline_string_hashCode(JNIEnv* env, jstring s);
+                jchar inline_string_charAt(JNIEnv* env, jstring s, jint index);
+                void inline_system_arraycopy(JNIEnv* env, jobject src, jint srcPos, jobject dest, jint destPos, jint length);
+
+                // ==================== 符号表 ====================
+                // 由 registerNatives 解析, 定义在 registry 单元. JNIC_* 直接读取已提前解析的项, jnic_* 在首次使用时解析
+                extern jclass jnic_classes[];
+                extern jfieldID jnic_fields[];
+                extern jmethodID jnic_methods[];
+                jclass jnic_resolve_class(JNIEnv* env, int index);
+                jfieldID jnic_resolve_field(JNIEnv* env, int index);
+                jmethodID jnic_resolve_method(JNIEnv* env, int index);
+                #define JNIC_CLASS(i) (jnic_classes[i])
+                #define JNIC_FIELD(i) (jnic_fields[i])
+                #define JNIC_METHOD(i) (jnic_methods[i])
+                JNIC_NOTHROW static inline jclass jnic_class(JNIEnv* env, int i) {
+                    jclass cls = __atomic_load_n(&jnic_classes[i], __ATOMIC_ACQUIRE);
+                    return cls != NULL ? cls : jnic_resolve_class(env, i);
+                }
+                JNIC_NOTHROW static inline jfieldID jnic_field(JNIEnv* env, int i) {
+                    jfieldID id = __atomic_load_n(&jnic_fields[i], __ATOMIC_ACQUIRE);
+                    return id != NULL ? id : jnic_resolve_field(env, i);
+                }
+                JNIC_NOTHROW static inline jmethodID jnic_method(JNIEnv* env, int i) {
+                    jmethodID id = __atomic_load_n(&jnic_methods[i], __ATOMIC_ACQUIRE);
+                    return id != NULL ? id : jnic_resolve_method(env, i);
+                }
+
+                // 字符串常量表: 每个字面量全库只有一个全局引用, 首次使用时创建
+                extern jstring jnic_strings[];
+                jstring jnic_resolve_string(JNIEnv* env, int index);
+                JNIC_NOTHROW static inline jstring jnic_string(JNIEnv* env, int i) {
+                    jstring str = __atomic_load_n(&jnic_strings[i], __ATOMIC_ACQUIRE);
+                    return str != NULL ? str : jnic_resolve_string(env, i);
+                }
+
+                // ==================== 内联缓存 ====================
+                // 虚调用点的单态缓存: 第一次调用时记录接收者的类及其分派到的本地实现 (target 为 -1 表示走 JNI 分派),
+                // 之后不再改变. classes/targets 为生成时由类层次结构得到的接收者类 (符号表下标) 及其实现
+                #define JNIC_IC_EMPTY (-2)
+                typedef struct {
+                    jclass cls;
+                    int target;
+                #if JNIC_DEBUG
+                    long hits;
+                    long misses;
+                #endif
+                } JnicInlineCache;
+                int jnic_ic_fill(JNIEnv* env, JnicInlineCache* ic, jclass rcv, const int* classes, const int* targets, int count);
+                void jnic_ic_report(JnicInlineCache* ic, int target, const char* site);
+                // 返回 obj 的类对应的实现, -1 为未命中
+                JNIC_NOTHROW static inline int jnic_ic_target(JNIEnv* env, JnicInlineCache* ic, jobject obj,
+                        const int* classes, const int* targets, int count, const char* site) {
+                    jclass rcv = (*env)->GetObjectClass(env, obj);
+                    jclass cls = __atomic_load_n(&ic->cls, __ATOMIC_ACQUIRE);
+                    int target;
+                    if (cls != NULL) {
+                        target = (*env)->IsSameObject(env, rcv, cls) ? __atomic_load_n(&ic->target, __ATOMIC_RELAXED) : -1;
+                    } else {
+                        target = jnic_ic_fill(env, ic, rcv, classes, targets, count);
+                    }
+                    (*env)->DeleteLocalRef(env, rcv);
+                #if JNIC_DEBUG
+                    jnic_ic_report(ic, target, site);
+                #else
+                    (void)site;
+                #endif
+                    return target;
+                }
+
+                // ==================== 字符串拼接 ====================
+                // StringConcatFactory 调用点与不逃逸的 StringBuilder 链的本地实现: 各部分依次追加到 jchar 缓冲区
+                // (先用栈上的缓冲区, 不够时换到堆上), 最后一次 NewString. 某一步失败 (异常已挂起) 后其余追加都跳过,
+                // jnic_concat_finish 返回 NULL
+                #define JNIC_CONCAT_INLINE 128
+                typedef struct {
+                    jchar* buf;
+                    jsize len;
+                    jsize cap;
+                    jboolean heap;
+                    jboolean failed;
+                } JnicConcat;
+                jchar* jnic_concat_reserve(JNIEnv* env, JnicConcat* c, jsize n);
+                void jnic_concat_string(JNIEnv* env, JnicConcat* c, jstring s);
+                // 常量, 每个字符与 key 异或后追加
+                void jnic_concat_chars(JNIEnv* env, JnicConcat* c, const jchar* data, jsize n, jchar key);
+                // 字符串表中第 index 个常量 (见 StringTable)
+                void jnic_concat_constant(JNIEnv* env, JnicConcat* c, int index);
+                // new StringBuilder(int): 容量只影响 Java 的缓冲区, 这里只检查是否为负
+                void jnic_concat_capacity(JNIEnv* env, JnicConcat* c, jint capacity);
+                void jnic_concat_long(JNIEnv* env, JnicConcat* c, jlong v);
+                void jnic_concat_boolean(JNIEnv* env, JnicConcat* c, jboolean v);
+                // String.valueOf 的结果, 与 JDK 的格式保持一致
+                void jnic_concat_object(JNIEnv* env, JnicConcat* c, jobject obj, jclass string, jmethodID valueOf);
+                void jnic_concat_float(JNIEnv* env, JnicConcat* c, jfloat v, jclass string, jmethodID valueOf);
+                void jnic_concat_double(JNIEnv* env, JnicConcat* c, jdouble v, jclass string, jmethodID valueOf);
+                jstring jnic_concat_finish(JNIEnv* env, JnicConcat* c);
+                static inline void jnic_concat_init(JnicConcat* c, jchar* buf, jsize cap) {
+                    c->buf = buf;
+                    c->len = 0;
+                    c->cap = cap;
+                    c->heap = JNI_FALSE;
+                    c->failed = JNI_FALSE;
+                }
+                static inline void jnic_concat_char(JNIEnv* env, JnicConcat* c, jchar ch) {
+                    jchar* p = jnic_concat_reserve(env, c, 1);
+                    if (p != NULL) *p = ch;
+                }
+
+                // 调用点常量 (不捕获变量的 lambda): 调用点正常返回时, 第一个写入 slot 的线程把 local 的全局引用发布出去
+                void jnic_publish_constant(JNIEnv* env, jobject* slot, jobject local);
+
+                // String.length - 直接 JNI
+                JNIC_NOTHROW static inline jint inline_string_length(JNIEnv* env, jstring s) {
+                    return s ? (*env)->GetStringLength(env, s) : 0;
+                }
+
+                // Object.getClass
+                JNIC_NOTHROW static inline jclass inline_object_getClass(JNIEnv* env, jobject obj) {
+                    return obj ? (*env)->GetObjectClass(env, obj) : NULL;
+                }
+
+                // Float.floatToIntBits / Double.doubleToLongBits - NaN 统一为规范值
+                static inline jint inline_float_bits(jfloat v) {
+                    jint bits;
+                    if (v != v) return 0x7fc00000;
+                    memcpy(&bits, &v, sizeof(bits));
+                    return bits;
+                }
+                static inline jlong inline_double_bits(jdouble v) {
+                    jlong bits;
+                    if (v != v) return 0x7ff8000000000000LL;
+                    memcpy(&bits, &v, sizeof(bits));
+                    return bits;
+                }
+
+                // 浮点转整数 - 按 JVM 规则饱和, NaN 转为 0 (C 的强制转换在越界时是未定义行为)
+                static inline jint jnic_f2i(jfloat v) {
+                    if (v != v) return 0;
+                    if (v >= 2147483648.0f) return INT32_MAX;
+                    if (v <= -2147483648.0f) return INT32_MIN;
+                    return (jint)v;
+                }
+                static inline jlong jnic_f2l(jfloat v) {
+                    if (v != v) return 0;
+                    if (v >= 9223372036854775808.0f) return INT64_MAX;
+                    if (v <= -9223372036854775808.0f) return INT64_MIN;
+                    return (jlong)v;
+                }
+                static inline jint jnic_d2i(jdouble v) {
+                    if (v != v) return 0;
+                    if (v >= 2147483647.0) return INT32_MAX;
+                    if (v <= -2147483648.0) return INT32_MIN;
+                    return (jint)v;
+                }
+                static inline jlong jnic_d2l(jdouble v) {
+                    if (v != v) return 0;
+                    if (v >= 9223372036854775808.0) return INT64_MAX;
+                    if (v <= -9223372036854775808.0) return INT64_MIN;
+                    return (jlong)v;
+                }
+
+                // Math 函数 - 直接 C 实现, 放在头文件中以便各编译单元内联
+                static inline jdouble inline_math_abs_d(jdouble a) { return fabs(a); }
+                static inline jfloat inline_math_abs_f(jfloat a) { return fabsf(a); }
+                static inline jint inline_math_abs_i(jint a) { return a < 0 ? (jint)(0 - (uint32_t)a) : a; }
+                static inline jlong inline_math_abs_l(jlong a) { return a < 0 ? (jlong)(0 - (uint64_t)a) : a; }
+                static inline jdouble inline_math_max_d(jdouble a, jdouble b) { return a > b ? a : b; }
+                static inline jdouble inline_math_min_d(jdouble a, jdouble b) { return a < b ? a : b; }
+                static inline jint inline_math_max_i(jint a, jint b) { return a > b ? a : b; }
+                static inline jint inline_math_min_i(jint a, jint b) { return a < b ? a : b; }
+                static inline jdouble inline_math_sin(jdouble a) { return sin(a); }
+                static inline jdouble inline_math_cos(jdouble a) { return cos(a); }
+                static inline jdouble inline_math_tan(jdouble a) { return tan(a); }
+                static inline jdouble inline_math_sqrt(jdouble a) { return sqrt(a); }
+                static inline jdouble inline_math_pow(jdouble a, jdouble b) { return pow(a, b); }
+                static inline jdouble inline_math_log(jdouble a) { return log(a); }
+                static inline jdouble inline_math_exp(jdouble a) { return exp(a); }
+                static inline jdouble inline_math_floor(jdouble a) { return floor(a); }
+                static inline jdouble inline_math_ceil(jdouble a) { return ceil(a); }
+                static inline jdouble inline_math_round(jdouble a) { return round(a); }
+
+                """;
+    }
+
+    private String getHelperFunctions() {
+        return """
+                #include "jnic.h"
+
+                // ==================== 调试日志 ====================
                 #if JNIC_DEBUG
                 void log_debug(const char* format, ...) {
                     FILE *f = fopen("native_debug.log", "a");
@@ -122,6 +396,7 @@ public class CGenerator {
                 static jclass g_cls_Arrays = NULL;
                 static jclass g_cls_NullPointerException = NULL;
                 static jclass g_cls_ArrayIndexOutOfBoundsException = NULL;
+                static jclass g_cls_StringIndexOutOfBoundsException = NULL;
                 static jclass g_cls_ArithmeticException = NULL;
                 static jclass g_cls_ClassCastException = NULL;
 
@@ -183,6 +458,7 @@ public class CGenerator {
                     CACHE_CLASS(g_cls_Arrays, "java/util/Arrays");
                     CACHE_CLASS(g_cls_NullPointerException, "java/lang/NullPointerException");
                     CACHE_CLASS(g_cls_ArrayIndexOutOfBoundsException, "java/lang/ArrayIndexOutOfBoundsException");
+                    CACHE_CLASS(g_cls_StringIndexOutOfBoundsException, "java/lang/StringIndexOutOfBoundsException");
                     CACHE_CLASS(g_cls_ArithmeticException, "java/lang/ArithmeticException");
                     CACHE_CLASS(g_cls_ClassCastException, "java/lang/ClassCastException");
 
@@ -233,19 +509,6 @@ public class CGenerator {
                     g_cache_initializing = 0;
                 }
 
-                // ==================== 字符串解密 ====================
-                char* decrypt_string_len(const unsigned char* encrypted, int len, int key) {
-                    char* decrypted = (char*)malloc((size_t)len + 1);
-                    if (decrypted == NULL) return NULL;
-                    for (int i = 0; i < len; i++) decrypted[i] = (char)(encrypted[i] ^ key);
-                    decrypted[len] = 0;
-                    return decrypted;
-                }
-
-                void throw_npe(JNIEnv* env, const char* msg);
-                void throw_aioobe(JNIEnv* env, const char* msg);
-                void throw_arith(JNIEnv* env, const char* msg);
-
                 // ==================== C 层内联实现 ====================
                 // String.equals - 直接比较字符
                 jboolean inline_string_equals(JNIEnv *env, jobject s1, jobject s2) {
@@ -272,56 +535,52 @@ public class CGenerator {
                     jint len1 = (*env)->GetStringLength(env, (jstring)s1);
                     jint len2 = (*env)->GetStringLength(env, (jstring)s2);
                     if (len1 != len2) return JNI_FALSE;
-
-                    const jchar* c1 = (*env)->GetStringChars(env, (jstring)s1, NULL);
-                    const jchar* c2 = (*env)->GetStringChars(env, (jstring)s2, NULL);
-                    jboolean eq = JNI_TRUE;
-                    for (int i = 0; i < len1; i++) {
-                        if (c1[i] != c2[i]) { eq = JNI_FALSE; break; }
-                    }
-                    (*env)->ReleaseStringChars(env, (jstring)s1, c1);
-                    (*env)->ReleaseStringChars(env, (jstring)s2, c2);
+                    if (len1 == 0) return JNI_TRUE;
+
+                    // critical 访问不在 Java 堆上复制, 两个区域之间不能有其他 JNI 调用; 失败时异常已抛出
+                    const jchar* c1 = (*env)->GetStringCritical(env, (jstring)s1, NULL);
+                    if (c1 == NULL) return JNI_FALSE;
+                    const jchar* c2 = (*env)->GetStringCritical(env, (jstring)s2, NULL);
+                    jboolean eq = c2 != NULL && memcmp(c1, c2, (size_t)len1 * sizeof(jchar)) == 0;
+                    if (c2 != NULL) (*env)->ReleaseStringCritical(env, (jstring)s2, c2);
+                    (*env)->ReleaseStringCritical(env, (jstring)s1, c1);
                     return eq;
                 }
 
-                // String.length - 直接 JNI
-                jint inline_string_length(JNIEnv* env, jstring s) {
-                    return s ? (*env)->GetStringLength(env, s) : 0;
-                }
-
-                // String.hashCode - Java 规范算法
+                // String.hashCode - Java 规范算法, critical 访问
                 jint inline_string_hashCode(JNIEnv* env, jstring s) {
-                    if (s == NULL) return 0;
+                    if (s == NULL) {
+                        throw_npe(env, "Cannot invoke \\"String.hashCode()\\" because value is null");
+                        return 0;
+                    }
                     jint len = (*env)->GetStringLength(env, s);
                     if (len == 0) return 0;
-                    const jchar* chars = (*env)->GetStringChars(env, s, NULL);
-                    jint h = 0;
-                    for (int i = 0; i < len; i++) {
+                    const jchar* chars = (*env)->GetStringCritical(env, s, NULL);
+                    if (chars == NULL) return 0;
+                    uint32_t h = 0;
+                    for (jint i = 0; i < len; i++) {
                         h = 31 * h + chars[i];
                     }
-                    (*env)->ReleaseStringChars(env, s, chars);
-                    return h;
+                    (*env)->ReleaseStringCritical(env, s, chars);
+                    return (jint)h;
                 }
 
-                // String.charAt
+                // String.charAt - 只取一个字符
                 jchar inline_string_charAt(JNIEnv* env, jstring s, jint index) {
-                    if (s == NULL) return 0;
+                    if (s == NULL) {
+                        throw_npe(env, "Cannot invoke \\"String.charAt(int)\\" because value is null");
+                        return 0;
+                    }
                     jint len = (*env)->GetStringLength(env, s);
-                    if (index < 0 || index >= len) {
-                        throw_aioobe(env, "String index out of range");
+                    if ((uint32_t)index >= (uint32_t)len) {
+                        throw_sioobe(env, index, len);
                         return 0;
                     }
-                    const jchar* chars = (*env)->GetStringChars(env, s, NULL);
-                    jchar c = chars[index];
-                    (*env)->ReleaseStringChars(env, s, chars);
+                    jchar c = 0;
+                    (*env)->GetStringRegion(env, s, index, 1, &c);
                     return c;
                 }
 
-                // Object.getClass
-                jclass inline_object_getClass(JNIEnv* env, jobject obj) {
-                    return obj ? (*env)->GetObjectClass(env, obj) : NULL;
-                }
-
                 // System.arraycopy - 使用 JNI 批量操作
                 void inline_system_arraycopy(JNIEnv* env, jobject src, jint srcPos, jobject dest, jint destPos, jint length) {
                     if (src == NULL || dest == NULL) {
@@ -348,25 +607,161 @@ public class CGenerator {
                     (*env)->DeleteLocalRef(env, sysCls);
                 }
 
-                // Math 函数 - 直接 C 实现
-                jdouble inline_math_abs_d(jdouble a) { return fabs(a); }
-                jfloat inline_math_abs_f(jfloat a) { return fabsf(a); }
-                jint inline_math_abs_i(jint a) { return a < 0 ? -a : a; }
-                jlong inline_math_abs_l(jlong a) { return a < 0 ? -a : a; }
-                jdouble inline_math_max_d(jdouble a, jdouble b) { return a > b ? a : b; }
-                jdouble inline_math_min_d(jdouble a, jdouble b) { return a < b ? a : b; }
-                jint inline_math_max_i(jint a, jint b) { return a > b ? a : b; }
-                jint inline_math_min_i(jint a, jint b) { return a < b ? a : b; }
-                jdouble inline_math_sin(jdouble a) { return sin(a); }
-                jdouble inline_math_cos(jdouble a) { return cos(a); }
-                jdouble inline_math_tan(jdouble a) { return tan(a); }
-                jdouble inline_math_sqrt(jdouble a) { return sqrt(a); }
-                jdouble inline_math_pow(jdouble a, jdouble b) { return pow(a, b); }
-                jdouble inline_math_log(jdouble a) { return log(a); }
-                jdouble inline_math_exp(jdouble a) { return exp(a); }
-                jdouble inline_math_floor(jdouble a) { return floor(a); }
-                jdouble inline_math_ceil(jdouble a) { return ceil(a); }
-                jdouble inline_math_round(jdouble a) { return round(a); }
+                // 内联缓存
+                int jnic_ic_fill(JNIEnv* env, JnicInlineCache* ic, jclass rcv, const int* classes, const int* targets, int count) {
+                    int target = -1;
+                    for (int i = 0; i < count; i++) {
+                        jclass cls = jnic_class(env, classes[i]);
+                        if (cls == NULL) {
+                            // 加载不到的类不会是接收者
+                            (*env)->ExceptionClear(env);
+                            continue;
+                        }
+                        if ((*env)->IsSameObject(env, rcv, cls)) {
+                            target = targets[i];
+                            break;
+                        }
+                    }
+                    // 只有抢到缓存的线程写入, 先写 target 再发布 cls
+                    int expected = JNIC_IC_EMPTY;
+                    if (__atomic_compare_exchange_n(&ic->target, &expected, target, 0, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+                        jclass global = (jclass)(*env)->NewGlobalRef(env, rcv);
+                        // 缓存只是优化, 发布失败时不留下异常 (调用点不检查 jnic_ic_target)
+                        if (global != NULL) __atomic_store_n(&ic->cls, global, __ATOMIC_RELEASE);
+                        else (*env)->ExceptionClear(env);
+                    }
+                    return target;
+                }
+                #if JNIC_DEBUG
+                void jnic_ic_report(JnicInlineCache* ic, int target, const char* site) {
+                    long hits = target >= 0 ? __atomic_add_fetch(&ic->hits, 1, __ATOMIC_RELAXED) : __atomic_load_n(&ic->hits, __ATOMIC_RELAXED);
+                    long misses = target < 0 ? __atomic_add_fetch(&ic->misses, 1, __ATOMIC_RELAXED) : __atomic_load_n(&ic->misses, __ATOMIC_RELAXED);
+                    // 计数到 2 的幂时输出, 日志量只随调用次数对数增长
+                    long count = target >= 0 ? hits : misses;
+                    if ((count & (count - 1)) == 0) {
+                        log_debug("Inline cache %s: %ld hits, %ld misses\\n", site, hits, misses);
+                    }
+                }
+                #endif
+
+                // 字符串拼接
+                static void jnic_concat_fail(JNIEnv* env, JnicConcat* c, const char* msg) {
+                    c->failed = JNI_TRUE;
+                    jclass cls = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+                    if (cls) (*env)->ThrowNew(env, cls, msg);
+                }
+                jchar* jnic_concat_reserve(JNIEnv* env, JnicConcat* c, jsize n) {
+                    if (c->failed) return NULL;
+                    if (n > c->cap - c->len) {
+                        if (n > INT32_MAX - c->len) {
+                            jnic_concat_fail(env, c, "Overflow: String length out of range");
+                            return NULL;
+                        }
+                        jsize cap = c->cap > INT32_MAX / 2 ? INT32_MAX : c->cap * 2;
+                        if (cap < c->len + n) cap = c->len + n;
+                        jchar* buf = c->heap ? realloc(c->buf, (size_t)cap * sizeof(jchar)) : malloc((size_t)cap * sizeof(jchar));
+                        if (buf == NULL) {
+                            jnic_concat_fail(env, c, "String concatenation");
+                            return NULL;
+                        }
+                        if (!c->heap) memcpy(buf, c->buf, (size_t)c->len * sizeof(jchar));
+                        c->buf = buf;
+                        c->cap = cap;
+                        c->heap = JNI_TRUE;
+                    }
+                    jchar* p = c->buf + c->len;
+                    c->len += n;
+                    return p;
+                }
+                static void jnic_concat_ascii(JNIEnv* env, JnicConcat* c, const char* s) {
+                    jsize n = (jsize)strlen(s);
+                    jchar* p = jnic_concat_reserve(env, c, n);
+                    if (p == NULL) return;
+                    for (jsize i = 0; i < n; i++) p[i] = (jchar)(unsigned char)s[i];
+                }
+                void jnic_concat_string(JNIEnv* env, JnicConcat* c, jstring s) {
+                    if (c->failed) return;
+                    if (s == NULL) {
+                        jnic_concat_ascii(env, c, "null");
+                        return;
+                    }
+                    jsize n = (*env)->GetStringLength(env, s);
+                    jchar* p = jnic_concat_reserve(env, c, n);
+                    if (p != NULL) (*env)->GetStringRegion(env, s, 0, n, p);
+                }
+                void jnic_concat_chars(JNIEnv* env, JnicConcat* c, const jchar* data, jsize n, jchar key) {
+                    jchar* p = jnic_concat_reserve(env, c, n);
+                    if (p == NULL) return;
+                    if (key == 0) {
+                        memcpy(p, data, (size_t)n * sizeof(jchar));
+                        return;
+                    }
+                    for (jsize i = 0; i < n; i++) p[i] = (jchar)(data[i] ^ key);
+                }
+                void jnic_concat_capacity(JNIEnv* env, JnicConcat* c, jint capacity) {
+                    if (c->failed || capacity >= 0) return;
+                    char msg[16];
+                    snprintf(msg, sizeof(msg), "%d", (int)capacity);
+                    c->failed = JNI_TRUE;
+                    jclass cls = (*env)->FindClass(env, "java/lang/NegativeArraySizeException");
+                    if (cls) (*env)->ThrowNew(env, cls, msg);
+                }
+                void jnic_concat_long(JNIEnv* env, JnicConcat* c, jlong v) {
+                    char digits[20];
+                    int n = 0;
+                    uint64_t u = v < 0 ? 0 - (uint64_t)v : (uint64_t)v;
+                    do {
+                        digits[n++] = (char)('0' + u % 10);
+                        u /= 10;
+                    } while (u != 0);
+                    jchar* p = jnic_concat_reserve(env, c, n + (v < 0));
+                    if (p == NULL) return;
+                    if (v < 0) *p++ = '-';
+                    while (n > 0) *p++ = digits[--n];
+                }
+                void jnic_concat_boolean(JNIEnv* env, JnicConcat* c, jboolean v) {
+                    jnic_concat_ascii(env, c, v ? "true" : "false");
+                }
+                static void jnic_concat_result(JNIEnv* env, JnicConcat* c, jstring s) {
+                    if ((*env)->ExceptionCheck(env)) {
+                        c->failed = JNI_TRUE;
+                        return;
+                    }
+                    jnic_concat_string(env, c, s);
+                    (*env)->DeleteLocalRef(env, s);
+                }
+                void jnic_concat_object(JNIEnv* env, JnicConcat* c, jobject obj, jclass string, jmethodID valueOf) {
+                    if (c->failed) return;
+                    if (obj == NULL) {
+                        jnic_concat_ascii(env, c, "null");
+                        return;
+                    }
+                    jnic_concat_result(env, c, (jstring)(*env)->CallStaticObjectMethod(env, string, valueOf, obj));
+                }
+                void jnic_concat_float(JNIEnv* env, JnicConcat* c, jfloat v, jclass string, jmethodID valueOf) {
+                    if (c->failed) return;
+                    jnic_concat_result(env, c, (jstring)(*env)->CallStaticObjectMethod(env, string, valueOf, (jdouble)v));
+                }
+                void jnic_concat_double(JNIEnv* env, JnicConcat* c, jdouble v, jclass string, jmethodID valueOf) {
+                    if (c->failed) return;
+                    jnic_concat_result(env, c, (jstring)(*env)->CallStaticObjectMethod(env, string, valueOf, v));
+                }
+                jstring jnic_concat_finish(JNIEnv* env, JnicConcat* c) {
+                    jstring s = c->failed ? NULL : (*env)->NewString(env, c->buf, c->len);
+                    if (c->heap) free(c->buf);
+                    return s;
+                }
+
+                void jnic_publish_constant(JNIEnv* env, jobject* slot, jobject local) {
+                    if ((*env)->ExceptionCheck(env) || local == NULL) return;
+                    jobject global = (*env)->NewGlobalRef(env, local);
+                    jobject expected = NULL;
+                    if (global != NULL && !__atomic_compare_exchange_n(slot, &expected, global, 0,
+                            __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+                        // 其他线程先发布了, 两者是同一个常量
+                        (*env)->DeleteGlobalRef(env, global);
+                    }
+                }
 
                 // 抛出异常辅助
                 void throw_npe(JNIEnv* env, const char* msg) {
@@ -379,6 +774,14 @@ public class CGenerator {
                     jclass cls = get_or_cache_class(env, &g_cls_ArrayIndexOutOfBoundsException, "java/lang/ArrayIndexOutOfBoundsException");
                     if (cls) (*env)->ThrowNew(env, cls, msg);
                 }
+                // String.charAt 越界, 消息与 JDK 相同
+                void throw_sioobe(JNIEnv* env, jint index, jint length) {
+                    char msg[48];
+                    snprintf(msg, sizeof(msg), "index %d, length %d", (int)index, (int)length);
+                    init_global_cache(env);
+                    jclass cls = get_or_cache_class(env, &g_cls_StringIndexOutOfBoundsException, "java/lang/StringIndexOutOfBoundsException");
+                    if (cls) (*env)->ThrowNew(env, cls, msg);
+                }
                 void throw_arith(JNIEnv* env, const char* msg) {
                     init_global_cache(env);
                     jclass cls = get_or_cache_class(env, &g_cls_ArithmeticException, "java/lang/ArithmeticException");
@@ -388,54 +791,112 @@ public class CGenerator {
                 """;
     }
 
+    /**
+     * Exception check after instruction {@code index}. Instructions covered by the same handlers jump to one shared
+     * dispatch block, see {@link #generateExceptionDispatch}.
+     */
     private String generateExceptionHandling(int index, Type returnType) {
-        if (currentTryCatchBlocks == null || currentTryCatchBlocks.isEmpty()) {
-            // Default behavior: check and return if exception
-            StringBuilder sb = new StringBuilder();
-            sb.append("    if ((*env)->ExceptionCheck(env)) {\n");
-            if (returnType.getSort() == Type.VOID) {
-                sb.append("        return;\n");
-            } else {
-                sb.append("        return 0;\n");
-            }
-            sb.append("    }\n");
-            return sb.toString();
+        int group = currentHandlerGroups == null ? -1 : currentHandlerGroups[index];
+        if (group >= 0) {
+            usedHandlerGroups.add(group);
+            return "    if ((*env)->ExceptionCheck(env)) goto EXC_" + group + ";\n";
         }
-
+        // Default behavior: check and return if exception
         StringBuilder sb = new StringBuilder();
         sb.append("    if ((*env)->ExceptionCheck(env)) {\n");
-        sb.append("        jthrowable ex = (*env)->ExceptionOccurred(env);\n");
-        sb.append("        (*env)->ExceptionClear(env);\n");
+        if (returnType.getSort() == Type.VOID) {
+            sb.append("        return;\n");
+        } else {
+            sb.append("        return 0;\n");
+        }
+        sb.append("    }\n");
+        return sb.toString();
+    }
 
-        for (TryCatchBlockNode tcb : currentTryCatchBlocks) {
-            Integer start = currentLabelMap.get(tcb.start);
-            Integer end = currentLabelMap.get(tcb.end);
-            Integer handler = currentLabelMap.get(tcb.handler);
+    /**
+     * Leaves instruction {@code index} with an exception that is known to be pending, e.g. right after throwing it.
+     */
+    private String generateExceptionExit(int index, Type returnType) {
+        int group = currentHandlerGroups == null ? -1 : currentHandlerGroups[index];
+        if (group >= 0) {
+            usedHandlerGroups.add(group);
+            return "    goto EXC_" + group + ";\n";
+        }
+        return returnType.getSort() == Type.VOID ? "    return;\n" : "    return 0;\n";
+    }
 
-            if (start != null && end != null && handler != null && index >= start && index < end) {
-                if (tcb.type == null) {
-                    sb.append("        stack[sp++].l = ex;\n");
-                    sb.append("        goto L").append(tcb.handler.hashCode()).append(";\n");
-                } else {
-                    sb.append("        {\n");
-                    sb.append("            jclass tc_cls = (*env)->FindClass(env, \"").append(tcb.type)
-                            .append("\");\n");
-                    sb.append("            if (tc_cls == NULL) {\n");
-                    sb.append("                (*env)->ExceptionClear(env);\n");
-                    sb.append("            } else {\n");
-                    sb.append("                jboolean match = (*env)->IsInstanceOf(env, ex, tc_cls);\n");
-                    sb.append("                (*env)->DeleteLocalRef(env, tc_cls);\n");
-                    sb.append("                if (match) {\n");
-                    sb.append("                    stack[sp++].l = ex;\n");
-                    sb.append("                    goto L").append(tcb.handler.hashCode()).append(";\n");
-                    sb.append("                }\n");
-                    sb.append("            }\n");
-                    sb.append("        }\n");
+    /**
+     * Groups the instructions by the handlers covering them, in the order the JVM tries them, and fills
+     * {@code currentHandlerGroups}.
+     *
+     * @return the handlers of each group
+     */
+    private List<List<TryCatchBlockNode>> groupHandlers(InsnList instructions, List<TryCatchBlockNode> blocks) {
+        currentHandlerGroups = new int[instructions.size()];
+        Arrays.fill(currentHandlerGroups, -1);
+        List<List<TryCatchBlockNode>> groups = new ArrayList<>();
+        if (blocks == null || blocks.isEmpty()) {
+            return groups;
+        }
+        int[] starts = new int[blocks.size()];
+        int[] ends = new int[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            starts[i] = instructions.indexOf(blocks.get(i).start);
+            ends[i] = instructions.indexOf(blocks.get(i).end);
+        }
+        Map<List<TryCatchBlockNode>, Integer> groupIds = new HashMap<>();
+        for (int index = 0; index < instructions.size(); index++) {
+            List<TryCatchBlockNode> covering = new ArrayList<>();
+            for (int i = 0; i < blocks.size(); i++) {
+                if (index >= starts[i] && index < ends[i]) {
+                    covering.add(blocks.get(i));
                 }
             }
+            if (!covering.isEmpty()) {
+                currentHandlerGroups[index] = groupIds.computeIfAbsent(covering, k -> {
+                    groups.add(k);
+                    return groups.size() - 1;
+                });
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Takes the pending exception and jumps to the first handler of {@code handlers} that catches it, or rethrows it
+     * and returns. Catch types come from the symbol table.
+     */
+    private String generateExceptionDispatch(int group, List<TryCatchBlockNode> handlers, Type returnType) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("EXC_").append(group).append(":;\n");
+        sb.append("    {\n");
+        sb.append("        jthrowable ex = (*env)->ExceptionOccurred(env);\n");
+        sb.append("        (*env)->ExceptionClear(env);\n");
+        for (TryCatchBlockNode tcb : handlers) {
+            int handler = currentLabelMap.get(tcb.handler);
+            if (tcb.type == null) {
+                // catch-all (finally), later handlers are unreachable
+                sb.append("        ").append(stackVar(0, "l")).append(" = ex;\n");
+                sb.append("        goto L").append(handler).append(";\n");
+                sb.append("    }\n");
+                return sb.toString();
+            }
+            int symbol = symbols.getClass(tcb.type);
+            sb.append("        {\n");
+            sb.append("            jclass tc_cls = ")
+                    .append(SymbolTable.isClassResolvedEarly(tcb.type, currentClassName)
+                            ? "JNIC_CLASS(" + symbol + ")" : "jnic_class(env, " + symbol + ")")
+                    .append(";\n");
+            sb.append("            if (tc_cls == NULL) {\n");
+            sb.append("                (*env)->ExceptionClear(env);\n");
+            sb.append("            } else if ((*env)->IsInstanceOf(env, ex, tc_cls)) {\n");
+            sb.append("                ").append(stackVar(0, "l")).append(" = ex;\n");
+            sb.append("                goto L").append(handler).append(";\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
         }
 
-        // Fallthrough: rethrow
+        // No handler matches: rethrow
         sb.append("        (*env)->Throw(env, ex);\n");
         if (returnType.getSort() == Type.VOID) {
             sb.append("        return;\n");
@@ -448,28 +909,13 @@ public class CGenerator {
 
     public String generateMethod(ClassWrapper owner, MethodWrapper method) {
         StringBuilder methodBody = new StringBuilder();
-        // Use hex string to avoid negative hash code issues and ensure valid C
-        // identifier
-        String functionName = "native_" + Integer.toHexString(method.getOriginalName().hashCode()) + "_"
-                + Integer.toHexString(owner.getName().hashCode());
+        String functionName = getFunctionName(owner.getName(), method.getOriginalName(),
+                method.getOriginalDescriptor());
         Type returnType = Type.getReturnType(method.getOriginalDescriptor());
-
-        // Method Signature
-        methodBody.append("JNIEXPORT ").append(getJNIType(returnType)).append(" JNICALL ").append(functionName)
-                .append("(JNIEnv *env, jobject thiz");
         Type[] argTypes = Type.getArgumentTypes(method.getOriginalDescriptor());
-        for (int i = 0; i < argTypes.length; i++) {
-            methodBody.append(", ").append(getJNIType(argTypes[i])).append(" arg").append(i);
-        }
-        methodBody.append(") {\n");
 
         // Forward declaration
-        functionPrototypes.append("JNIEXPORT ").append(getJNIType(returnType)).append(" JNICALL ").append(functionName)
-                .append("(JNIEnv *env, jobject thiz");
-        for (int i = 0; i < argTypes.length; i++) {
-            functionPrototypes.append(", ").append(getJNIType(argTypes[i])).append(" arg").append(i);
-        }
-        functionPrototypes.append(");\n");
+        functionPrototypes.add(getPrototype(functionName, method.getOriginalDescriptor()) + ";");
 
         // Anti-Debug Injection
         methodBody.append(obfuscator.getAntiDebugCode());
@@ -477,55 +923,55 @@ public class CGenerator {
         // Body Generation
         StringBuilder bodyContent = new StringBuilder();
 
-        // Stack and Locals initialization
-        int maxStack = method.getMethodNode().maxStack + 10; // Safety buffer
-        int maxLocals = method.getMethodNode().maxLocals + 10;
+        usedVariables.clear();
+        usedHandlerGroups.clear();
 
-        // Append declarations directly to methodBody or a prologue buffer that gets
-        // used
-        StringBuilder prologue = new StringBuilder();
-        prologue.append("    StackValue stack[").append(maxStack).append("];\n");
-        prologue.append("    memset(stack, 0, sizeof(stack));\n");
-        prologue.append("    StackValue locals[").append(maxLocals).append("];\n");
-        prologue.append("    memset(locals, 0, sizeof(locals));\n");
-        // prologue.append(" int sp = 0;\n\n"); // Optimized out
+        // Analyze stack for optimization, usually already done for the cost model
+        try {
+            MethodAnalyses.Result analysis = processor.getAnalyses().get(owner.getName(), method.getMethodNode());
+            processor.getAnalyses().invalidate(method.getMethodNode());
+            currentFrames = analysis.frames();
+            currentRefs = analysis.refs();
+            currentPinning = analysis.pinning();
+            currentByteArrays = ClasspathVerifier.resolveByteArrays(owner, method.getMethodNode(),
+                    processor.getJnic().getClasspath());
+        } catch (AnalyzerException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Stack analysis failed for " + method.getOriginalName(), e);
+        }
 
         // Initialize locals from arguments
+        StringBuilder prologue = new StringBuilder();
+        currentParamRefs = new ArrayList<>();
         int localIndex = 0;
         if (!method.isStatic()) {
-            prologue.append("    locals[").append(localIndex++).append("].l = thiz;\n");
+            prologue.append("    ").append(localVar(localIndex++, "l")).append(" = thiz;\n");
+            currentParamRefs.add("thiz");
         }
         for (int i = 0; i < argTypes.length; i++) {
             Type type = argTypes[i];
-            prologue.append("    locals[").append(localIndex).append("].").append(getTypeField(type)).append(" = arg")
-                    .append(i).append(";\n");
+            prologue.append("    ").append(localVar(localIndex, getTypeField(type))).append(" = arg").append(i)
+                    .append(";\n");
             localIndex += type.getSize();
+            if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+                currentParamRefs.add("arg" + i);
+            }
         }
         prologue.append("\n");
-
-        // Append prologue to methodBody
-        methodBody.append(prologue);
-        methodBody.append("    log_debug(\"Enter: ").append(functionName)
-                .append(" env: %p, thiz: %p\\n\", env, thiz);\n");
-        methodBody.append("    if ((*env)->PushLocalFrame(env, 256) < 0) {\n");
+        String enterLog = "    log_debug(\"Enter: " + functionName + " env: %p, thiz: %p\\n\", env, thiz);\n";
+        // Dead references are deleted right away, so the frame only needs one slot per variable that can hold one
+        int frameCapacity = currentRefs.getOwnedVariableCount() + LOCAL_FRAME_RESERVE;
+        StringBuilder framePush = new StringBuilder();
+        framePush.append("    if ((*env)->PushLocalFrame(env, ").append(frameCapacity).append(") < 0) {\n");
         if (returnType.getSort() == Type.VOID) {
-            methodBody.append("        return;\n");
+            framePush.append("        return;\n");
         } else {
-            methodBody.append("        return 0;\n");
+            framePush.append("        return 0;\n");
         }
-        methodBody.append("    }\n");
+        framePush.append("    }\n");
 
         InsnList instructions = method.getMethodNode().instructions;
 
-        // Analyze stack for optimization
-        Analyzer<BasicValue> analyzer = new Analyzer<>(new BasicInterpreter());
-        try {
-            currentFrames = analyzer.analyze(owner.getName(), method.getMethodNode());
-        } catch (AnalyzerException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Stack analysis failed for " + method.getOriginalName(), e);
-        }
-
         // Map labels to C case IDs
         Map<LabelNode, Integer> labelMap = new HashMap<>();
         int instructionIndex = 0;
@@ -536,103 +982,1286 @@ public class CGenerator {
             instructionIndex++;
         }
 
-        currentTryCatchBlocks = method.getMethodNode().tryCatchBlocks;
         currentLabelMap = labelMap;
+        List<List<TryCatchBlockNode>> handlerGroups = groupHandlers(instructions,
+                method.getMethodNode().tryCatchBlocks);
         currentClassName = owner.getName();
+        currentBuilderChains = findBuilderChains(method.getMethodNode());
+        currentConstructions = findConstructions(instructions);
+        currentConstructions.values().removeIf(currentBuilderChains::containsKey);
         currentMethodName = method.getOriginalName();
         currentClass = owner;
+        currentReturnType = returnType;
+        // A leaf method never creates a local reference, so it runs without a frame of its own
+        currentLeaf = isLeaf(method.getMethodNode());
 
         // Generate Code (Linear)
         StringBuilder cBody = new StringBuilder();
         int currentIndex = 0;
         for (AbstractInsnNode insn : instructions) {
-            // Insert Label
-            for (Map.Entry<LabelNode, Integer> entry : labelMap.entrySet()) {
-                if (entry.getValue() == currentIndex) {
-                    cBody.append("L").append(entry.getKey().hashCode()).append(":;\n");
-                }
+            // Pinned on the way in only, jumps back into the loop target the label after it
+            ArrayPinning.Region region = currentPinning == null ? null : currentPinning.getRegion(currentIndex);
+            if (region != null && region.start() == currentIndex) {
+                cBody.append(generatePinning(region, returnType));
             }
 
-            cBody.append(generateInstruction(insn, labelMap, currentIndex, returnType));
+            // Insert Label, named after its index so the output is deterministic
+            if (insn instanceof LabelNode) {
+                cBody.append("L").append(currentIndex).append(":;\n");
+            }
+
+            // Checks after calls that cannot throw are dropped
+            cBody.append(ExceptionCheckEliminator.apply(generateInstruction(insn, labelMap, currentIndex, returnType)));
             currentIndex++;
 
         }
 
+        // Exception dispatch blocks, after the final return so they are only reached through their gotos
+        StringBuilder dispatch = new StringBuilder();
+        for (int group = 0; group < handlerGroups.size(); group++) {
+            if (!usedHandlerGroups.contains(group)) {
+                continue;
+            }
+            dispatch.append(generateExceptionDispatch(group, handlerGroups.get(group), returnType));
+        }
+
+        // Every stack and local variable the body uses, declared up front so gotos never skip an initializer
+        for (String variable : usedVariables) {
+            methodBody.append("    ").append(getVariableDeclaration(variable)).append("\n");
+        }
+        for (BuilderChain chain : new LinkedHashSet<>(currentBuilderChains.values())) {
+            methodBody.append("    JnicConcat sb_").append(chain.start()).append(";\n");
+            methodBody.append("    jchar sbb_").append(chain.start()).append("[JNIC_CONCAT_INLINE];\n");
+        }
+        if (currentPinning != null) {
+            for (ArrayPinning.Region region : currentPinning.getRegions()) {
+                methodBody.append("    jint pin_iter_").append(region.start()).append(" = 0;\n");
+                region.arrays().forEach((local, element) -> {
+                    if (element != ArrayPinning.LENGTH_ONLY) {
+                        methodBody.append("    ").append(getPinnedType(element)).append("* ")
+                                .append(pinVar(region, local)).append(" = NULL;\n");
+                    }
+                    methodBody.append("    jint ").append(pinLength(region, local)).append(" = 0;\n");
+                    if (!getAliasCandidates(region, local).isEmpty()) {
+                        methodBody.append("    jint ").append(pinAlias(region, local)).append(" = 0;\n");
+                    }
+                });
+                List<String> ranges = getRangeConditions(region);
+                for (int k = 0; k < ranges.size(); k++) {
+                    methodBody.append("    jboolean pinsafe_").append(region.start()).append("_").append(k)
+                            .append(" = 0;\n");
+                }
+            }
+        }
+        methodBody.append(prologue);
+        if (currentLeaf) {
+            // Not even a call to the empty logger outside of debug builds
+            methodBody.append("#if JNIC_DEBUG\n").append(enterLog).append("#endif\n");
+        } else {
+            methodBody.append(enterLog);
+            methodBody.append(framePush);
+        }
         methodBody.append(cBody);
 
         // Default return for safety (void or zero)
-        methodBody.append("    (*env)->PopLocalFrame(env, NULL);\n");
+        methodBody.append(framePop());
         if (returnType.getSort() == Type.VOID) {
             methodBody.append("    return;\n");
         } else {
             methodBody.append("    return 0;\n");
         }
+        methodBody.append(dispatch);
 
-        methodBody.append("}\n\n");
-
+        // Structurally identical bodies share one implementation
+        StringBuilder params = new StringBuilder("thiz");
+        for (int i = 0; i < argTypes.length; i++) {
+            params.append(", arg").append(i);
+        }
         String fullCode = methodBody.toString();
-        methodImplementations.append(fullCode); // Append to buffer instead of globalCode
+        // Emitted with the current translation unit
+        deduplicator.add(getPrototype(functionName, method.getOriginalDescriptor()), getJNIType(returnType),
+                params.toString(), fullCode);
 
         generatedMethods.put(owner.getName() + "_" + method.getOriginalName(), functionName);
         nativeEntries.add(new NativeEntry(owner.getName(), method.getOriginalName(), method.getOriginalDescriptor(),
                 functionName, method.isStatic()));
 
         // Clear state
-        currentTryCatchBlocks = null;
+        currentHandlerGroups = null;
         currentLabelMap = null;
         currentFrames = null;
+        currentRefs = null;
+        currentPinning = null;
+        currentByteArrays = null;
+        currentConstructions = null;
+        currentBuilderChains = null;
         currentClassName = null;
 
         return fullCode;
     }
 
-    private int getCompressedStackSize(Frame<BasicValue> frame) {
-        int size = 0;
-        for (int i = 0; i < frame.getStackSize(); i++) {
-            size++;
-            if (frame.getStack(i).getSize() == 2) {
-                if (i + 1 < frame.getStackSize()) {
-                    BasicValue next = frame.getStack(i + 1);
-                    if (next != null && next.equals(BasicValue.UNINITIALIZED_VALUE)) {
-                        i++;
-                    }
-                }
+    /**
+     * {@code new StringBuilder(..).append(..)...toString()} whose builder never leaves the operand stack, computed in
+     * the C buffer {@code sb_<start>} instead of calling into the JVM for every step.
+     *
+     * @param start     index of the NEW
+     * @param constants string constants appended straight from C, by the index of their append; the LDC only pushes a
+     *                  placeholder
+     */
+    private record BuilderChain(int start, Map<Integer, String> constants) {
+    }
+
+    /**
+     * Finds the StringBuilder chains that can be computed in C: the builder is created, initialized, appended to and
+     * converted without ever being stored, duplicated after its constructor or passed anywhere else. The arguments
+     * in between may only be computed by instructions that neither throw nor call into the JVM and are not jump
+     * targets, so the only exceptions come from the appends themselves. Those stop the chain in C and are handled at
+     * its {@code toString}.
+     *
+     * @return every instruction of the chains (NEW, constructor, appends, toString and folded constants) mapped to
+     *         its chain
+     */
+    private Map<Integer, BuilderChain> findBuilderChains(MethodNode method) {
+        InsnList instructions = method.instructions;
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode insn : instructions) {
+            if (insn instanceof JumpInsnNode jump) {
+                targets.add(jump.label);
+            } else if (insn instanceof TableSwitchInsnNode tableSwitch) {
+                targets.add(tableSwitch.dflt);
+                targets.addAll(tableSwitch.labels);
+            } else if (insn instanceof LookupSwitchInsnNode lookupSwitch) {
+                targets.add(lookupSwitch.dflt);
+                targets.addAll(lookupSwitch.labels);
             }
         }
-        return size;
-    }
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            // A chain must not cross the border of a try block either
+            targets.add(tryCatch.start);
+            targets.add(tryCatch.end);
+            targets.add(tryCatch.handler);
+        }
 
-    private String getTypeField(Type type) {
-        switch (type.getSort()) {
-            case Type.BOOLEAN:
-            case Type.CHAR:
-            case Type.BYTE:
-            case Type.SHORT:
-            case Type.INT:
-                return "i";
-            case Type.FLOAT:
-                return "f";
-            case Type.LONG:
-                return "j";
-            case Type.DOUBLE:
-                return "d";
-            case Type.ARRAY:
-            case Type.OBJECT:
-                return "l";
-            default:
-                return "l";
+        Map<Integer, BuilderChain> chains = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn.getOpcode() != Opcodes.NEW || !((TypeInsnNode) insn).desc.equals(BUILDER)
+                    || currentFrames[i] == null || insn.getNext() == null
+                    || insn.getNext().getOpcode() != Opcodes.DUP) {
+                continue;
+            }
+            int base = currentFrames[i].getStackSize();
+            Map<Integer, String> constants = new HashMap<>();
+            List<Integer> members = new ArrayList<>(List.of(i));
+            boolean initialized = false;
+            boolean complete = false;
+            for (int k = i + 2; k < instructions.size() && !complete; k++) {
+                AbstractInsnNode current = instructions.get(k);
+                Frame<BasicValue> frame = currentFrames[k];
+                // The builder, and its duplicate until the constructor, stays below whatever the arguments push
+                if (frame == null || frame.getStackSize() < base + (initialized ? 1 : 2)) {
+                    break;
+                }
+                if (current instanceof LabelNode) {
+                    if (targets.contains(current)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (current instanceof LineNumberNode || current instanceof FrameNode) {
+                    continue;
+                }
+                if (current instanceof MethodInsnNode call) {
+                    if (!call.owner.equals(BUILDER)) {
+                        break;
+                    }
+                    int args = Type.getArgumentTypes(call.desc).length;
+                    boolean init = !initialized && call.getOpcode() == Opcodes.INVOKESPECIAL
+                            && call.name.equals("<init>") && BUILDER_INITS.contains(call.desc)
+                            && frame.getStackSize() == base + 2 + args;
+                    boolean append = initialized && call.getOpcode() == Opcodes.INVOKEVIRTUAL
+                            && isBuilderAppend(call) && frame.getStackSize() == base + 2;
+                    complete = initialized && call.getOpcode() == Opcodes.INVOKEVIRTUAL
+                            && call.name.equals("toString") && call.desc.equals("()Ljava/lang/String;")
+                            && frame.getStackSize() == base + 1;
+                    if (!init && !append && !complete) {
+                        break;
+                    }
+                    initialized = true;
+                    members.add(k);
+                    continue;
+                }
+                if (current instanceof LdcInsnNode ldc && ldc.cst instanceof String value) {
+                    if (!(current.getNext() instanceof MethodInsnNode next) || !isBuilderAppend(next)
+                            || !next.desc.startsWith("(Ljava/lang/String;)")) {
+                        break;
+                    }
+                    constants.put(instructions.indexOf(next), value);
+                    members.add(k);
+                    continue;
+                }
+                if (!isPureValue(current)) {
+                    break;
+                }
+            }
+            if (complete) {
+                BuilderChain chain = new BuilderChain(i, constants);
+                for (int member : members) {
+                    chains.put(member, chain);
+                }
+            }
         }
+        return chains;
     }
 
-    private boolean isUnconditionalJump(AbstractInsnNode insn) {
-        int opcode = insn.getOpcode();
-        return opcode == Opcodes.GOTO || opcode == Opcodes.ATHROW ||
-                opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH;
+    private boolean isBuilderAppend(MethodInsnNode call) {
+        return call.owner.equals(BUILDER) && call.name.equals("append") && call.desc.endsWith(")L" + BUILDER + ";")
+                && BUILDER_APPENDS.contains(call.desc.substring(0, call.desc.indexOf(')') + 1));
     }
 
-    private boolean isReturn(AbstractInsnNode insn) {
+    /**
+     * Instructions that compute a value in plain C: loads, numeric constants and arithmetic that cannot throw.
+     */
+    private boolean isPureValue(AbstractInsnNode insn) {
         int opcode = insn.getOpcode();
-        return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
+        if (opcode == Opcodes.LDC) {
+            return !(((LdcInsnNode) insn).cst instanceof String) && !(((LdcInsnNode) insn).cst instanceof Type);
+        }
+        if (opcode == Opcodes.IDIV || opcode == Opcodes.LDIV || opcode == Opcodes.IREM || opcode == Opcodes.LREM) {
+            return false;
+        }
+        return (opcode >= Opcodes.ACONST_NULL && opcode <= Opcodes.SIPUSH)
+                || (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD)
+                || (opcode >= Opcodes.IADD && opcode <= Opcodes.LXOR)
+                || (opcode >= Opcodes.I2L && opcode <= Opcodes.DCMPG);
+    }
+
+    /**
+     * One step of a {@link BuilderChain}; every value the chain keeps on the operand stack is a {@code NULL}
+     * placeholder.
+     */
+    private String generateBuilderStep(AbstractInsnNode insn, BuilderChain chain, int index, Type returnType) {
+        StringBuilder code = new StringBuilder();
+        String cc = "&sb_" + chain.start();
+        if (insn.getOpcode() == Opcodes.NEW) {
+            code.append("    jnic_concat_init(").append(cc).append(", sbb_").append(chain.start())
+                    .append(", JNIC_CONCAT_INLINE);\n");
+            code.append("    ").append(push("l")).append(" = NULL;\n");
+            return code.toString();
+        }
+        if (insn.getOpcode() == Opcodes.LDC) {
+            code.append("    ").append(push("l")).append(" = NULL;\n");
+            return code.toString();
+        }
+        MethodInsnNode call = (MethodInsnNode) insn;
+        if (call.name.equals("<init>")) {
+            if (call.desc.equals("(I)V")) {
+                String capacity = pop("i");
+                code.append("    jnic_concat_capacity(env, ").append(cc).append(", ").append(capacity).append(");\n");
+            } else if (call.desc.equals("(Ljava/lang/String;)V")) {
+                String str = pop("l");
+                code.append("    if (").append(str).append(" == NULL) {\n");
+                code.append("        throw_npe(env, \"Cannot invoke \\\"String.length()\\\" because \\\"str\\\" is null\");\n");
+                code.append("        sb_").append(chain.start()).append(".failed = JNI_TRUE;\n");
+                code.append("    } else {\n");
+                code.append("        jnic_concat_string(env, ").append(cc).append(", ").append(str).append(");\n");
+                code.append("    }\n");
+            }
+            pop("l");
+            return code.toString();
+        }
+        if (call.name.equals("append")) {
+            Type type = Type.getArgumentTypes(call.desc)[0];
+            String value = pop(getTypeField(type));
+            pop("l");
+            String constant = chain.constants().get(index);
+            if (constant != null) {
+                code.append(concatConstant("    ", cc, constant));
+            } else {
+                code.append("    ").append(concatValue(code, cc, value, type, String.valueOf(index), index,
+                        returnType)).append("\n");
+            }
+            code.append("    ").append(push("l")).append(" = NULL;\n");
+            return code.toString();
+        }
+        pop("l");
+        code.append("    ").append(push("l")).append(" = jnic_concat_finish(env, ").append(cc).append(");\n");
+        code.append(generateExceptionHandling(index, returnType));
+        return code.toString();
+    }
+
+    /**
+     * Finds the {@code NEW T; DUP; <args>; INVOKESPECIAL T.<init>} sequences that can be emitted as a single
+     * {@code NewObjectA}: the constructor call consumes the duplicate of a NEW, the other copy sits right below it and
+     * no other stack slot or live local holds the uninitialized object. Every constructor call of that NEW has to qualify.
+     * <p>
+     * NEW initializes its class before the arguments are evaluated, NewObjectA only after. Unless the class is known to
+     * be initialized already, the arguments must neither run Java code nor throw: {@code new T(10 / zero)} runs the
+     * initializer of T before the ArithmeticException.
+     *
+     * @return index of each fused constructor call mapped to the index of its NEW
+     */
+    private Map<Integer, Integer> findConstructions(InsnList instructions) {
+        Map<Integer, Integer> constructions = new HashMap<>();
+        Set<Integer> rejected = new HashSet<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            Frame<ReferenceAnalysis.RefValue> frame = currentRefs.getFrame(i);
+            if (frame == null || insn.getOpcode() != Opcodes.INVOKESPECIAL
+                    || !((MethodInsnNode) insn).name.equals("<init>")) {
+                continue;
+            }
+            int receiver = frame.getStackSize() - 1 - Type.getArgumentTypes(((MethodInsnNode) insn).desc).length;
+            Set<Integer> origins = frame.getStack(receiver).origins();
+            if (origins.size() != 1 || origins.iterator().next() < 0) {
+                continue;
+            }
+            int origin = origins.iterator().next();
+            AbstractInsnNode created = instructions.get(origin);
+            if (created.getOpcode() != Opcodes.NEW) {
+                continue; // super() or this() in a constructor
+            }
+            boolean fusable = created.getNext() != null && created.getNext().getOpcode() == Opcodes.DUP
+                    && currentFrames[origin].getStackSize() == receiver - 1
+                    && frame.getStack(receiver - 1).equals(frame.getStack(receiver));
+            for (int k = 0; fusable && k < frame.getStackSize(); k++) {
+                if (k != receiver && k != receiver - 1 && frame.getStack(k).isReference()
+                        && frame.getStack(k).origins().contains(origin)) {
+                    fusable = false;
+                }
+            }
+            for (int k = 0; fusable && k < frame.getLocals(); k++) {
+                // A dead local may still hold the object of an earlier iteration
+                if (frame.getLocal(k).isReference() && frame.getLocal(k).origins().contains(origin)
+                        && currentRefs.isLocalLive(i, k)) {
+                    fusable = false;
+                }
+            }
+            if (fusable && !SymbolTable.isInitializedEarly(((TypeInsnNode) created).desc, currentClassName)) {
+                for (int k = origin + 1; k < i; k++) {
+                    if (mayRunJavaCodeOrThrow(instructions.get(k))) {
+                        fusable = false;
+                        break;
+                    }
+                }
+            }
+            if (fusable) {
+                constructions.put(i, origin);
+            } else {
+                rejected.add(origin);
+            }
+        }
+        constructions.values().removeAll(rejected);
+        return constructions;
+    }
+
+    private static boolean mayRunJavaCodeOrThrow(AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            case Opcodes.IDIV:
+            case Opcodes.LDIV:
+            case Opcodes.IREM:
+            case Opcodes.LREM:
+                return true;
+            // Moving references around never throws
+            case Opcodes.ACONST_NULL:
+            case Opcodes.ALOAD:
+            case Opcodes.ASTORE:
+            case Opcodes.IFNULL:
+            case Opcodes.IFNONNULL:
+            case Opcodes.IF_ACMPEQ:
+            case Opcodes.IF_ACMPNE:
+                return false;
+            case Opcodes.LDC:
+                Object cst = ((LdcInsnNode) insn).cst;
+                return !(cst instanceof Number || cst instanceof String);
+            default:
+                // Calls, fields, arrays, casts, monitors, allocations
+                return !isPlain(insn);
+        }
+    }
+
+    /**
+     * C symbol of a nativized method. The descriptor is part of the name so overloads do not collide.
+     */
+    private String getFunctionName(String owner, String name, String desc) {
+        // Use hex string to avoid negative hash code issues and ensure valid C identifier
+        return "native_" + Integer.toHexString(name.hashCode()) + "_" + Integer.toHexString(owner.hashCode()) + "_"
+                + Integer.toHexString(desc.hashCode());
+    }
+
+    private String getPrototype(String functionName, String desc) {
+        StringBuilder sb = new StringBuilder();
+        // Not exported, see the visibility pragma in jnic.h; RegisterNatives still needs the JNI calling convention
+        sb.append(getJNIType(Type.getReturnType(desc))).append(" JNICALL ").append(functionName)
+                .append("(JNIEnv *env, jobject thiz");
+        Type[] argTypes = Type.getArgumentTypes(desc);
+        for (int i = 0; i < argTypes.length; i++) {
+            sb.append(", ").append(getJNIType(argTypes[i])).append(" arg").append(i);
+        }
+        return sb.append(")").toString();
+    }
+
+    private String getTypeField(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return "i";
+            case Type.FLOAT:
+                return "f";
+            case Type.LONG:
+                return "j";
+            case Type.DOUBLE:
+                return "d";
+            case Type.ARRAY:
+            case Type.OBJECT:
+                return "l";
+            default:
+                return "l";
+        }
+    }
+
+    /**
+     * Operand stack value {@code index} of kind {@code kind} ({@link #getTypeField}) is the C variable
+     * {@code s<index>_<kind>}, local slot {@code n} is {@code l<n>_<kind>}. A slot holding different kinds over the
+     * method maps to different variables, so they are never reinterpreted and the C compiler can keep each in a
+     * register.
+     */
+    private String stackVar(int index, String kind) {
+        String name = "s" + index + "_" + kind;
+        usedVariables.add(name);
+        return name;
+    }
+
+    private String localVar(int var, String kind) {
+        String name = "l" + var + "_" + kind;
+        usedVariables.add(name);
+        return name;
+    }
+
+    private String push(String kind) {
+        if (kind.equals("l")) {
+            pushedRefs.add(stackTop);
+        }
+        return stackVar(stackTop++, kind);
+    }
+
+    private String pop(String kind) {
+        if (kind.equals("l")) {
+            consumedRefs.add(stackTop - 1);
+        }
+        return stackVar(--stackTop, kind);
+    }
+
+    /**
+     * @param depth 0 for the top of the stack
+     */
+    private String peek(int depth, String kind) {
+        return stackVar(stackTop - 1 - depth, kind);
+    }
+
+    private String getValueField(BasicValue value) {
+        return value.getType() == null ? "l" : getTypeField(value.getType());
+    }
+
+    private String getKindType(String kind) {
+        return switch (kind) {
+            case "i" -> "jint";
+            case "j" -> "jlong";
+            case "f" -> "jfloat";
+            case "d" -> "jdouble";
+            default -> "jobject";
+        };
+    }
+
+    private String getVariableDeclaration(String name) {
+        String kind = name.substring(name.lastIndexOf('_') + 1);
+        return getKindType(kind) + " " + name + (kind.equals("l") ? " = NULL;" : " = 0;");
+    }
+
+    /**
+     * Emits a DUP/SWAP style shuffle. The inputs are the top {@code inCount} values, bottom first, and {@code order}
+     * lists which input ends up in each output position, bottom first. Copies of a reference share the same local
+     * reference, see {@link ReferenceAnalysis}.
+     */
+    private void shuffle(StringBuilder code, Frame<BasicValue> frame, int inCount, int... order) {
+        String[] kinds = new String[inCount];
+        code.append("    {");
+        for (int i = 0; i < inCount; i++) {
+            kinds[i] = getValueField(frame.getStack(frame.getStackSize() - inCount + i));
+            code.append(" ").append(getKindType(kinds[i])).append(" t").append(i).append(" = ")
+                    .append(stackVar(stackTop - inCount + i, kinds[i])).append(";");
+        }
+        code.append("\n   ");
+        stackTop -= inCount;
+        for (int in : order) {
+            code.append(" ").append(push(kinds[in])).append(" = t").append(in).append(";");
+        }
+        code.append("\n    }\n");
+    }
+
+    /**
+     * Pops two operands and pushes {@code format} applied to them, left operand first.
+     */
+    private void binaryOp(StringBuilder code, String leftKind, String rightKind, String resultKind, String format) {
+        String right = pop(rightKind);
+        String left = pop(leftKind);
+        code.append("    ").append(push(resultKind)).append(" = ").append(String.format(format, left, right))
+                .append(";\n");
+    }
+
+    private void unaryOp(StringBuilder code, String kind, String resultKind, String format) {
+        String value = pop(kind);
+        code.append("    ").append(push(resultKind)).append(" = ").append(String.format(format, value))
+                .append(";\n");
+    }
+
+    /**
+     * {@code StringConcatFactory} call site built in C, see {@link #concatValue}.
+     */
+    private String generateConcat(InvokeDynamicInsnNode indy, int index, Type returnType) {
+        List<IndyLowering.ConcatPart> parts = IndyLowering.parseConcat(indy);
+        if (parts == null) {
+            throw new IllegalStateException("Unsupported invokedynamic: " + indy.bsm);
+        }
+        StringBuilder code = new StringBuilder();
+        Type[] argTypes = Type.getArgumentTypes(indy.desc);
+        String[] args = new String[argTypes.length];
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            args[i] = pop(getTypeField(argTypes[i]));
+        }
+
+        String cc = "&cc_" + index;
+        code.append("    {\n");
+        code.append("        JnicConcat cc_").append(index).append(";\n");
+        code.append("        jchar ccb_").append(index).append("[JNIC_CONCAT_INLINE];\n");
+        code.append("        jnic_concat_init(").append(cc).append(", ccb_").append(index)
+                .append(", JNIC_CONCAT_INLINE);\n");
+        for (int i = 0; i < parts.size(); i++) {
+            IndyLowering.ConcatPart part = parts.get(i);
+            String id = index + "_" + i;
+            if (part.arg() < 0) {
+                code.append(concatConstant("        ", cc, part.constant()));
+            } else {
+                code.append("        ").append(concatValue(code, cc, args[part.arg()], argTypes[part.arg()], id,
+                        index, returnType)).append("\n");
+            }
+        }
+        code.append("        ").append(push("l")).append(" = jnic_concat_finish(env, ").append(cc).append(");\n");
+        code.append("    }\n");
+        code.append(generateExceptionHandling(index, returnType));
+        return code.toString();
+    }
+
+    /**
+     * Appends the constant {@code value} to the {@code JnicConcat} at {@code cc}. The text is read from the
+     * {@link StringTable} data, so it takes no JNI call and the unit only refers to it by index.
+     */
+    private String concatConstant(String indent, String cc, String value) {
+        return indent + "jnic_concat_constant(env, " + cc + ", " + strings.getString(value) + ");\n";
+    }
+
+    /**
+     * C statement appending {@code value} of type {@code type} to the {@code JnicConcat} at {@code cc}, formatted
+     * like {@code String.valueOf}: strings are copied, {@code int}/{@code long}/{@code char}/{@code boolean} are
+     * formatted natively, only {@code float}/{@code double} and other objects call {@code String.valueOf}.
+     */
+    private String concatValue(StringBuilder code, String cc, String value, Type type, String id, int index,
+            Type returnType) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "jnic_concat_boolean(env, " + cc + ", (jboolean)" + value + ");";
+            case Type.CHAR:
+                return "jnic_concat_char(env, " + cc + ", (jchar)" + value + ");";
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+            case Type.LONG:
+                return "jnic_concat_long(env, " + cc + ", " + value + ");";
+            default:
+                break;
+        }
+        if (type.getDescriptor().equals("Ljava/lang/String;")) {
+            return "jnic_concat_string(env, " + cc + ", " + value + ");";
+        }
+        String string = classSymbol(code, "cls_" + id, "java/lang/String", index, returnType);
+        String function = type.getSort() == Type.FLOAT ? "jnic_concat_float"
+                : type.getSort() == Type.DOUBLE ? "jnic_concat_double" : "jnic_concat_object";
+        String desc = type.getSort() == Type.FLOAT || type.getSort() == Type.DOUBLE ? type.getDescriptor()
+                : "Ljava/lang/Object;";
+        String mid = methodSymbol(code, "mid_" + id, "java/lang/String", "valueOf",
+                "(" + desc + ")Ljava/lang/String;", true, index, returnType);
+        return function + "(env, " + cc + ", " + value + ", " + string + ", " + mid + ");";
+    }
+
+    /**
+     * Call of an {@link IndyLowering#CONSTANT_WRAPPER}: the first result is kept as a global reference, later
+     * executions only create a local reference to it.
+     */
+    private String generateConstantIndy(String owner, String name, String desc, int index, Type returnType) {
+        StringBuilder code = new StringBuilder();
+        String cls = classSymbol(code, "cls_" + index, owner, index, returnType);
+        String mid = methodSymbol(code, "mid_" + index, owner, name, desc, true, index, returnType);
+        String result = push("l");
+        code.append("    static jobject indy_").append(index).append(" = NULL;\n");
+        code.append("    jobject const_").append(index).append(" = __atomic_load_n(&indy_").append(index)
+                .append(", __ATOMIC_ACQUIRE);\n");
+        code.append("    if (const_").append(index).append(" != NULL) {\n");
+        code.append("        ").append(result).append(" = (*env)->NewLocalRef(env, const_").append(index)
+                .append(");\n");
+        code.append("    } else {\n");
+        code.append("        ").append(result).append(" = (*env)->CallStaticObjectMethod(env, ").append(cls)
+                .append(", ").append(mid).append(");\n");
+        code.append("        jnic_publish_constant(env, &indy_").append(index).append(", ").append(result).append(");\n");
+        code.append("    }\n");
+        code.append(generateExceptionHandling(index, returnType));
+        return code.toString();
+    }
+
+    /**
+     * C expression for a class of the {@link SymbolTable}. A class that is not resolved before the method can run is
+     * looked up into {@code var} first; if that fails, the pending NoClassDefFoundError is handled like any other
+     * exception of the instruction.
+     */
+    private String classSymbol(StringBuilder code, String var, String internalName, int index, Type returnType) {
+        int symbol = symbols.getClass(internalName);
+        if (SymbolTable.isClassResolvedEarly(internalName, currentClassName)) {
+            return "JNIC_CLASS(" + symbol + ")";
+        }
+        return lazySymbol(code, "jclass", var, "jnic_class(env, " + symbol + ")", index, returnType);
+    }
+
+    private String fieldSymbol(StringBuilder code, String var, String owner, String name, String desc,
+            boolean isStatic, int index, Type returnType) {
+        int symbol = symbols.getField(owner, name, desc, isStatic);
+        if (SymbolTable.isMemberResolvedEarly(owner, currentClassName)) {
+            return "JNIC_FIELD(" + symbol + ")";
+        }
+        return lazySymbol(code, "jfieldID", var, "jnic_field(env, " + symbol + ")", index, returnType);
+    }
+
+    private String methodSymbol(StringBuilder code, String var, String owner, String name, String desc,
+            boolean isStatic, int index, Type returnType) {
+        int symbol = symbols.getMethod(owner, name, desc, isStatic);
+        if (SymbolTable.isMemberResolvedEarly(owner, currentClassName)) {
+            return "JNIC_METHOD(" + symbol + ")";
+        }
+        return lazySymbol(code, "jmethodID", var, "jnic_method(env, " + symbol + ")", index, returnType);
+    }
+
+    private String lazySymbol(StringBuilder code, String type, String var, String lookup, int index,
+            Type returnType) {
+        code.append("    ").append(type).append(" ").append(var).append(" = ").append(lookup).append(";\n");
+        code.append("    if (").append(var).append(" == NULL) {\n");
+        // The resolvers only return NULL with an exception pending
+        code.append(generateExceptionExit(index, returnType));
+        code.append("    }\n");
+        return var;
+    }
+
+    /**
+     * Deletes the local references that die on the edge from instruction {@code index} to {@code successor}: the
+     * reference operands the instruction popped and the reference locals that are no longer read. A reference that
+     * another live variable may still hold is only deleted if the handles differ at runtime.
+     */
+    private String getReleaseCode(int index, int successor) {
+        Frame<ReferenceAnalysis.RefValue> frame = currentRefs.getFrame(index);
+        Frame<ReferenceAnalysis.RefValue> next = currentRefs.getFrame(successor);
+        if (next == null) {
+            return "";
+        }
+        ArrayPinning.Region region = currentPinning == null ? null : currentPinning.getRegion(index);
+        String unpin = "";
+        if (region != null) {
+            if (region.contains(successor)) {
+                // No JNI call while the arrays are pinned, references dying inside are left to the local frame
+                return successor <= index ? renewPins(region, index) : "";
+            }
+            unpin = releasePins(region);
+        }
+        List<String> holders = new ArrayList<>();
+        List<ReferenceAnalysis.RefValue> holderValues = new ArrayList<>();
+        for (int i = 0; i < next.getStackSize(); i++) {
+            if (next.getStack(i).isReference()) {
+                holders.add(stackVar(i, "l"));
+                holderValues.add(next.getStack(i));
+            }
+        }
+        for (int i = 0; i < next.getLocals(); i++) {
+            if (next.getLocal(i).isReference() && currentRefs.isLocalLive(successor, i)) {
+                holders.add(localVar(i, "l"));
+                holderValues.add(next.getLocal(i));
+            }
+        }
+
+        List<String> dying = new ArrayList<>();
+        List<ReferenceAnalysis.RefValue> dyingValues = new ArrayList<>();
+        for (int position : consumedRefs) {
+            dying.add(pushedRefs.contains(position) ? "rel_" + index + "_" + position : stackVar(position, "l"));
+            dyingValues.add(frame.getStack(position));
+        }
+        AbstractInsnNode insn = currentRefs.getInstruction(index);
+        int loaded = insn.getOpcode() == Opcodes.ALOAD ? ((VarInsnNode) insn).var : -1;
+        int stored = insn.getOpcode() == Opcodes.ASTORE ? ((VarInsnNode) insn).var : -1;
+        for (int i = 0; i < frame.getLocals(); i++) {
+            // A local that was just loaded lives on in the stack slot it was copied to
+            if (i == loaded || currentRefs.isLocalLive(successor, i)) {
+                continue;
+            }
+            if (i == stored) {
+                dying.add(localVar(i, "l"));
+                dyingValues.add(frame.getStack(frame.getStackSize() - 1));
+            } else if (currentRefs.isLocalLive(index, i) && frame.getLocal(i).isReference()) {
+                dying.add(localVar(i, "l"));
+                dyingValues.add(frame.getLocal(i));
+            }
+        }
+
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < dying.size(); i++) {
+            ReferenceAnalysis.RefValue value = dyingValues.get(i);
+            if (!value.isOwned()) {
+                continue;
+            }
+            String ref = dying.get(i);
+            StringBuilder condition = new StringBuilder(ref).append(" != NULL");
+            for (int j = 0; j < holders.size(); j++) {
+                if (value.mayAlias(holderValues.get(j))) {
+                    condition.append(" && ").append(ref).append(" != ").append(holders.get(j));
+                }
+            }
+            // Two dying variables holding the same reference must only delete it once
+            for (int j = 0; j < i; j++) {
+                if (value.mayAlias(dyingValues.get(j))) {
+                    condition.append(" && ").append(ref).append(" != ").append(dying.get(j));
+                }
+            }
+            if (value.origins().contains(ReferenceAnalysis.PARAM)) {
+                for (String param : currentParamRefs) {
+                    condition.append(" && ").append(ref).append(" != ").append(param);
+                }
+            }
+            if (value.origins().contains(ReferenceAnalysis.GLOBAL)) {
+                condition.append(" && (*env)->GetObjectRefType(env, ").append(ref).append(") == JNILocalRefType");
+            }
+            code.append("    if (").append(condition).append(") (*env)->DeleteLocalRef(env, ").append(ref)
+                    .append(");\n");
+        }
+        return unpin + code;
+    }
+
+    /**
+     * @return {@code 'Z'} or {@code 'B'} if the array of a {@code BALOAD}/{@code BASTORE} is known to be a
+     *         {@code boolean[]} or a {@code byte[]}, {@code 0} if it has to be checked at runtime
+     */
+    private char getByteArrayKind(int index) {
+        return currentByteArrays == null ? 0 : currentByteArrays[index];
+    }
+
+    /**
+     * Element access of a {@code byte[]} or {@code boolean[]} through {@code arr}, {@code idx} and {@code val}.
+     */
+    private String byteArrayAccess(boolean store, boolean isBoolean) {
+        String indent = "                ";
+        String type = isBoolean ? "Boolean" : "Byte";
+        StringBuilder code = new StringBuilder();
+        if (store) {
+            // Like the JVM, only the lowest bit goes into a boolean[]
+            code.append(indent).append(isBoolean ? "jboolean b = (jboolean)(val & 1);\n" : "jbyte b = (jbyte)val;\n");
+            code.append(indent).append("(*env)->Set").append(type).append("ArrayRegion(env, (j")
+                    .append(type.toLowerCase()).append("Array)arr, idx, 1, &b);\n");
+        } else {
+            code.append(indent).append(isBoolean ? "jboolean b = 0;\n" : "jbyte b = 0;\n");
+            code.append(indent).append("(*env)->Get").append(type).append("ArrayRegion(env, (j")
+                    .append(type.toLowerCase()).append("Array)arr, idx, 1, &b);\n");
+            code.append(indent).append("val = b;\n");
+        }
+        return code.toString();
+    }
+
+    private ClassHierarchy getHierarchy() {
+        if (hierarchy == null) {
+            hierarchy = new ClassHierarchy(processor.getJnic().getClasses(), processor.getJnic().getClasspath());
+        }
+        return hierarchy;
+    }
+
+    private boolean isSynchronized(String owner, String name, String desc) {
+        ClassWrapper wrapper = processor.getJnic().getClasses().get(owner);
+        MethodNode method = wrapper == null ? null : wrapper.getMethodNode(name, desc);
+        return method != null && (method.access & Opcodes.ACC_SYNCHRONIZED) != 0;
+    }
+
+    /**
+     * Receivers of a virtual call site whose implementation is a native method that can be called directly.
+     *
+     * @param functions C functions of the implementations
+     * @param classes   symbol indices of the receiver classes
+     * @param targets   index into {@code functions} for every receiver class
+     */
+    private record InlineCache(List<String> functions, List<Integer> classes, List<Integer> targets) {
+    }
+
+    /**
+     * @return the inline cache of a virtual or interface call, or {@code null} if no receiver known at build time
+     *         dispatches to a method that can be called directly
+     */
+    private InlineCache getInlineCache(String owner, String name, String desc) {
+        List<String> functions = new ArrayList<>();
+        List<Integer> classes = new ArrayList<>();
+        List<Integer> targets = new ArrayList<>();
+        for (Map.Entry<String, String> entry : getHierarchy().getImplementations(owner, name, desc).entrySet()) {
+            String implementation = entry.getValue();
+            // The JVM only takes the monitor of a synchronized method when it is called through the JVM
+            if (!processor.isNative(implementation, name, desc) || isSynchronized(implementation, name, desc)) {
+                continue;
+            }
+            String function = getFunctionName(implementation, name, desc);
+            if (!functions.contains(function)) {
+                functions.add(function);
+                // The target may live in another translation unit
+                functionPrototypes.add(getPrototype(function, desc) + ";");
+            }
+            classes.add(symbols.getClass(entry.getKey()));
+            targets.add(functions.indexOf(function));
+            if (classes.size() == MAX_CACHE_CLASSES) {
+                break;
+            }
+        }
+        return functions.isEmpty() ? null : new InlineCache(functions, classes, targets);
+    }
+
+    /**
+     * Calls the implementation cached for the class of {@code obj}, or runs {@code fallback} on a miss.
+     * <p>
+     * Bodies shared by {@link MethodDeduplicator} also share the cache, which is fine: the receiver classes and the
+     * functions are spelled out in the body, so the cached class maps to the same implementation at every site.
+     */
+    private String generateInlineCache(String methodHash, InlineCache cache, String site, String obj, String assign,
+            String argList, String fallback) {
+        StringBuilder code = new StringBuilder();
+        code.append("    {\n");
+        code.append("        static JnicInlineCache ic_").append(methodHash).append(" = { NULL, JNIC_IC_EMPTY };\n");
+        code.append("        static const int icc_").append(methodHash).append("[] = {");
+        for (int i = 0; i < cache.classes().size(); i++) {
+            code.append(i == 0 ? " " : ", ").append(cache.classes().get(i));
+        }
+        code.append(" };\n");
+        code.append("        static const int ict_").append(methodHash).append("[] = {");
+        for (int i = 0; i < cache.targets().size(); i++) {
+            code.append(i == 0 ? " " : ", ").append(cache.targets().get(i));
+        }
+        code.append(" };\n");
+        code.append("        switch (jnic_ic_target(env, &ic_").append(methodHash).append(", ").append(obj)
+                .append(", icc_").append(methodHash).append(", ict_").append(methodHash).append(", ")
+                .append(cache.classes().size()).append(", \"").append(site).append("\")) {\n");
+        for (int i = 0; i < cache.functions().size(); i++) {
+            code.append("        case ").append(i).append(":\n");
+            code.append("            ").append(assign).append(cache.functions().get(i)).append("(env, ").append(obj)
+                    .append(argList).append(");\n");
+            code.append("            break;\n");
+        }
+        code.append("        default:\n");
+        code.append("            ").append(assign).append(fallback).append(";\n");
+        code.append("            break;\n");
+        code.append("        }\n");
+        code.append("    }\n");
+        return code.toString();
+    }
+
+    /**
+     * Sets {@code direct_<hash>} to whether the class of {@code obj} is one of {@code receivers}.
+     */
+    private String generateReceiverGuard(String methodHash, String obj, List<String> receivers) {
+        StringBuilder code = new StringBuilder();
+        code.append("        jclass rcv_").append(methodHash).append(" = (*env)->GetObjectClass(env, ").append(obj)
+                .append(");\n");
+        code.append("        jboolean direct_").append(methodHash).append(" = ");
+        for (int i = 0; i < receivers.size(); i++) {
+            code.append(i == 0 ? "" : "\n                || ").append("(*env)->IsSameObject(env, rcv_")
+                    .append(methodHash).append(", ").append(receivers.get(i)).append(")");
+        }
+        code.append(";\n");
+        code.append("        (*env)->DeleteLocalRef(env, rcv_").append(methodHash).append(");\n");
+        return code.toString();
+    }
+
+    /**
+     * Whether a method only works on primitives: every instruction lowers to plain C, apart from throwing an
+     * {@code ArithmeticException}, which needs no frame. Any reference, field, array, call that is not a
+     * {@link #PURE_INTRINSICS} expression or handler takes the method out.
+     */
+    private static boolean isLeaf(MethodNode method) {
+        if (!method.tryCatchBlocks.isEmpty()) {
+            return false;
+        }
+        for (AbstractInsnNode insn : method.instructions) {
+            if (!isPlain(insn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether an instruction lowers to plain C on primitives. Only the integer divisions can throw.
+     */
+    private static boolean isPlain(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        if (opcode < 0) {
+            // Labels, line numbers and frames
+            return true;
+        }
+        if (opcode == Opcodes.LDC) {
+            return ((LdcInsnNode) insn).cst instanceof Number;
+        }
+        if (opcode == Opcodes.INVOKESTATIC) {
+            MethodInsnNode call = (MethodInsnNode) insn;
+            return PURE_INTRINSICS.containsKey(call.owner + "." + call.name + call.desc);
+        }
+        return opcode == Opcodes.NOP
+                || opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.SIPUSH
+                || opcode >= Opcodes.ILOAD && opcode <= Opcodes.DLOAD
+                || opcode >= Opcodes.ISTORE && opcode <= Opcodes.DSTORE
+                // Stack operations, they only move what other instructions pushed
+                || opcode >= Opcodes.POP && opcode <= Opcodes.SWAP
+                // Arithmetic, IINC, conversions, compares and the int branches
+                || opcode >= Opcodes.IADD && opcode <= Opcodes.IF_ICMPLE
+                || opcode == Opcodes.GOTO || opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH
+                || opcode >= Opcodes.IRETURN && opcode <= Opcodes.DRETURN || opcode == Opcodes.RETURN;
+    }
+
+    /**
+     * Leaves the local frame on the way out of a method that pushed one.
+     */
+    private String framePop() {
+        return currentLeaf ? "" : "    (*env)->PopLocalFrame(env, NULL);\n";
+    }
+
+    private String pinVar(ArrayPinning.Region region, int local) {
+        return "pin_" + region.start() + "_" + local;
+    }
+
+    private String pinLength(ArrayPinning.Region region, int local) {
+        return "pinlen_" + region.start() + "_" + local;
+    }
+
+    private String pinAlias(ArrayPinning.Region region, int local) {
+        return "pinalias_" + region.start() + "_" + local;
+    }
+
+    /**
+     * Pinned locals before {@code local} with the same element type, which may hold the very same array.
+     */
+    private List<Integer> getAliasCandidates(ArrayPinning.Region region, int local) {
+        char element = region.arrays().get(local);
+        List<Integer> candidates = new ArrayList<>();
+        // Strings are only read, a copy of the same string is as good as the original
+        if (element == ArrayPinning.LENGTH_ONLY || element == ArrayPinning.STRING) {
+            return candidates;
+        }
+        region.arrays().forEach((other, otherElement) -> {
+            if (other < local && otherElement == element) {
+                candidates.add(other);
+            }
+        });
+        return candidates;
+    }
+
+    private String getPinnedType(char element) {
+        return switch (element) {
+            case 'J' -> "jlong";
+            case 'F' -> "jfloat";
+            case 'D' -> "jdouble";
+            case 'B' -> "jbyte";
+            case 'C' -> "jchar";
+            case 'S' -> "jshort";
+            case ArrayPinning.STRING -> "jchar";
+            default -> "jint";
+        };
+    }
+
+    /**
+     * Entry of a pinned loop, see {@link ArrayPinning}. The lengths are read first, as nothing but another critical
+     * get may follow a critical get. The JVM may hand out a copy instead of the array itself (checked JNI always
+     * does), so an array that is passed twice is pinned once and shares its pointer, or writes through one local would
+     * not be seen through the other.
+     */
+    private String generatePinning(ArrayPinning.Region region, Type returnType) {
+        StringBuilder code = new StringBuilder();
+        region.arrays().forEach((local, element) -> {
+            String array = localVar(local, "l");
+            code.append("    ").append(pinLength(region, local)).append(" = ").append(array).append(" == NULL ? 0 : ")
+                    .append(element == ArrayPinning.STRING ? "(*env)->GetStringLength(env, (jstring)"
+                            : "(*env)->GetArrayLength(env, (jarray)")
+                    .append(array).append(");\n");
+            List<Integer> candidates = getAliasCandidates(region, local);
+            if (!candidates.isEmpty()) {
+                code.append("    ").append(pinAlias(region, local)).append(" = 0;\n");
+                for (int k = 0; k < candidates.size(); k++) {
+                    code.append("    ").append(k == 0 ? "if" : "else if").append(" ((*env)->IsSameObject(env, ")
+                            .append(array).append(", ").append(localVar(candidates.get(k), "l")).append(")) ")
+                            .append(pinAlias(region, local)).append(" = ").append(k + 1).append(";\n");
+                }
+            }
+        });
+        List<String> ranges = getRangeConditions(region);
+        for (int k = 0; k < ranges.size(); k++) {
+            code.append("    pinsafe_").append(region.start()).append("_").append(k).append(" = ").append(ranges.get(k))
+                    .append(";\n");
+        }
+        code.append("    pin_iter_").append(region.start()).append(" = 0;\n");
+        code.append(acquirePins(region, region.start(), returnType));
+        return code.toString();
+    }
+
+    /**
+     * Checks on entry of a pinned loop that prove index ranges in bounds, see {@link ArrayPinning.Range}. Accesses
+     * with the same check share its flag.
+     */
+    private List<String> getRangeConditions(ArrayPinning.Region region) {
+        List<String> conditions = new ArrayList<>();
+        for (int i = region.start(); i <= region.end(); i++) {
+            ArrayPinning.Range range = currentPinning.getRange(i);
+            if (range != null && !conditions.contains(getRangeCondition(region, range))) {
+                conditions.add(getRangeCondition(region, range));
+            }
+        }
+        return conditions;
+    }
+
+    private String rangeFlag(ArrayPinning.Region region, ArrayPinning.Range range) {
+        return "pinsafe_" + region.start() + "_" + getRangeConditions(region).indexOf(getRangeCondition(region, range));
+    }
+
+    /**
+     * C condition on entry of the region under which every index of {@code range} is in bounds: the first value of an
+     * increasing variable is not negative and its bound is at most the length, the first value of a decreasing one is
+     * below the length, and a fixed index is in bounds.
+     */
+    private String getRangeCondition(ArrayPinning.Region region, ArrayPinning.Range range) {
+        String length = pinLength(region, range.array());
+        if (range.variable() < 0) {
+            return range.constant() + " < " + length;
+        }
+        String variable = localVar(range.variable(), "i");
+        if (range.step() < 0) {
+            return variable + " < " + length;
+        }
+        if (range.step() == 0) {
+            return "(uint32_t)" + variable + " < (uint32_t)" + length;
+        }
+        ArrayPinning.Limit limit = range.limit();
+        if (limit.kind() == 'L' && limit.value() == range.array()) {
+            return variable + " >= 0";
+        }
+        String bound = switch (limit.kind()) {
+            case 'I' -> localVar(limit.value(), "i");
+            case 'L' -> pinLength(region, limit.value());
+            default -> String.valueOf(limit.value());
+        };
+        return "(" + variable + " >= 0 && " + bound + " <= " + length + ")";
+    }
+
+    private String acquirePins(ArrayPinning.Region region, int index, Type returnType) {
+        StringBuilder code = new StringBuilder();
+        region.arrays().forEach((local, element) -> {
+            if (element != ArrayPinning.LENGTH_ONLY) {
+                code.append("    ").append(pinVar(region, local)).append(" = NULL;\n");
+            }
+        });
+        region.arrays().forEach((local, element) -> {
+            if (element == ArrayPinning.LENGTH_ONLY) {
+                return;
+            }
+            String array = localVar(local, "l");
+            String pin = pinVar(region, local);
+            List<Integer> candidates = getAliasCandidates(region, local);
+            code.append("    if (").append(array).append(" != NULL) {\n");
+            for (int k = 0; k < candidates.size(); k++) {
+                code.append("        ").append(k == 0 ? "" : "else ").append("if (").append(pinAlias(region, local))
+                        .append(" == ").append(k + 1).append(") ").append(pin).append(" = ")
+                        .append(pinVar(region, candidates.get(k))).append(";\n");
+            }
+            if (!candidates.isEmpty()) {
+                code.append("        else {\n");
+            }
+            code.append("        ").append(pin).append(" = (").append(getPinnedType(element)).append("*)")
+                    .append(element == ArrayPinning.STRING ? "(*env)->GetStringCritical(env, (jstring)"
+                            : "(*env)->GetPrimitiveArrayCritical(env, (jarray)")
+                    .append(array).append(", NULL);\n");
+            // Only fails for lack of memory, an empty array may legitimately have no address
+            code.append("        if (").append(pin).append(" == NULL && ").append(pinLength(region, local))
+                    .append(" > 0) {\n");
+            code.append(releasePins(region));
+            code.append(generateExceptionExit(index, returnType));
+            code.append("        }\n");
+            if (!candidates.isEmpty()) {
+                code.append("        }\n");
+            }
+            code.append("    }\n");
+        });
+        return code.toString();
+    }
+
+    /**
+     * Unpins the arrays of {@code region}, on every way out of it.
+     */
+    private String releasePins(ArrayPinning.Region region) {
+        List<Integer> locals = new ArrayList<>(region.arrays().keySet());
+        Collections.reverse(locals);
+        StringBuilder code = new StringBuilder();
+        for (int local : locals) {
+            if (region.arrays().get(local) == ArrayPinning.LENGTH_ONLY) {
+                continue;
+            }
+            String pin = pinVar(region, local);
+            String shared = getAliasCandidates(region, local).isEmpty() ? ""
+                    : " && " + pinAlias(region, local) + " == 0";
+            if (region.arrays().get(local) == ArrayPinning.STRING) {
+                code.append("    if (").append(pin).append(" != NULL) (*env)->ReleaseStringCritical(env, (jstring)")
+                        .append(localVar(local, "l")).append(", ").append(pin).append(");\n");
+                continue;
+            }
+            code.append("    if (").append(pin).append(" != NULL").append(shared)
+                    .append(") (*env)->ReleasePrimitiveArrayCritical(env, (jarray)")
+                    .append(localVar(local, "l")).append(", ").append(pin).append(", 0);\n");
+        }
+        return code.toString();
+    }
+
+    private String releasePins(int index) {
+        ArrayPinning.Region region = currentPinning == null ? null : currentPinning.getRegion(index);
+        return region == null ? "" : releasePins(region);
+    }
+
+    /**
+     * Backward jump inside a pinned loop: every {@code optimization.pinIterations} iterations the arrays are released
+     * and pinned again, so a long running loop does not hold off the GC.
+     */
+    private String renewPins(ArrayPinning.Region region, int index) {
+        StringBuilder code = new StringBuilder();
+        code.append("    if (++pin_iter_").append(region.start()).append(" >= ").append(config.getPinIterations())
+                .append(") {\n");
+        code.append("        pin_iter_").append(region.start()).append(" = 0;\n");
+        code.append(releasePins(region));
+        code.append(acquirePins(region, index, currentReturnType));
+        code.append("    }\n");
+        return code.toString();
+    }
+
+    /**
+     * Element access of a pinned array, see {@link ArrayPinning}. Bounds are checked against the length read on
+     * entry, and the arrays are released before anything is thrown.
+     */
+    private void generatePinnedAccess(StringBuilder code, int opcode, int index, Type returnType) {
+        ArrayPinning.Region region = currentPinning.getRegion(index);
+        int local = currentPinning.getPinnedLocal(index);
+        char element = region.arrays().get(local);
+        String kind = element == 'J' ? "j" : element == 'F' ? "f" : element == 'D' ? "d" : "i";
+        boolean isStore = opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+        String pin = pinVar(region, local);
+
+        code.append("    {\n");
+        String value = isStore ? pop(kind) : null;
+        code.append("        jint idx = ").append(pop("i")).append(";\n");
+        pop("l"); // Same array as the pinned local
+        // A null array has length 0, so one comparison covers both
+        String check = "(uint32_t)idx >= (uint32_t)" + pinLength(region, local);
+        ArrayPinning.Range range = currentPinning.getRange(index);
+        if (range != null) {
+            // Only checked here if the check on entry of the loop failed, to throw at the right access
+            check = "!" + rangeFlag(region, range) + " && " + check;
+        }
+        code.append("        if (").append(check).append(") {\n");
+        code.append(releasePins(region));
+        code.append("            if (").append(localVar(local, "l")).append(" == NULL) {\n");
+        code.append("                throw_npe(env, \"Array is null\");\n");
+        code.append("            } else {\n");
+        code.append("                throw_aioobe(env, \"Array index out of range\");\n");
+        code.append("            }\n");
+        code.append(generateExceptionExit(index, returnType));
+        code.append("        }\n");
+        if (isStore) {
+            if (opcode == Opcodes.BASTORE && getByteArrayKind(index) == 'Z') {
+                value = "(" + value + " & 1)";
+            }
+            code.append("        ").append(pin).append("[idx] = (").append(getPinnedType(element)).append(")")
+                    .append(value).append(";\n");
+        } else {
+            code.append("        ").append(push(kind)).append(" = ").append(pin).append("[idx];\n");
+        }
+        code.append("    }\n");
+    }
+
+    /**
+     * {@code String.charAt}/{@code String.length} of a string pinned for its loop, see {@link ArrayPinning}: the
+     * characters are read through the pointer from {@code GetStringCritical}, the length is the one read on entry.
+     */
+    private void generatePinnedString(StringBuilder code, String methodName, int index, Type returnType) {
+        ArrayPinning.Region region = currentPinning.getRegion(index);
+        int local = currentPinning.getPinnedLocal(index);
+        String str = localVar(local, "l");
+        String length = pinLength(region, local);
+        if (methodName.equals("length")) {
+            pop("l"); // Same string as the pinned local
+            code.append("    if (").append(str).append(" == NULL) {\n");
+            code.append(releasePins(region));
+            code.append("        throw_npe(env, \"Cannot invoke \\\"String.length()\\\" because value is null\");\n");
+            code.append(generateExceptionExit(index, returnType));
+            code.append("    }\n");
+            code.append("    ").append(push("i")).append(" = ").append(length).append(";\n");
+            return;
+        }
+        code.append("    {\n");
+        code.append("        jint idx = ").append(pop("i")).append(";\n");
+        pop("l");
+        // A null string has length 0, so one comparison covers both
+        String check = "(uint32_t)idx >= (uint32_t)" + length;
+        ArrayPinning.Range range = currentPinning.getRange(index);
+        if (range != null) {
+            check = "!" + rangeFlag(region, range) + " && " + check;
+        }
+        code.append("        if (").append(check).append(") {\n");
+        code.append(releasePins(region));
+        code.append("            if (").append(str).append(" == NULL) {\n");
+        code.append("                throw_npe(env, \"Cannot invoke \\\"String.charAt(int)\\\" because value is null\");\n");
+        code.append("            } else {\n");
+        code.append("                throw_sioobe(env, idx, ").append(length).append(");\n");
+        code.append("            }\n");
+        code.append(generateExceptionExit(index, returnType));
+        code.append("        }\n");
+        code.append("        ").append(push("i")).append(" = ").append(pinVar(region, local)).append("[idx];\n");
+        code.append("    }\n");
+    }
+
+    /**
+     * {@code goto} to a branch target, releasing the references that die on that edge first.
+     */
+    private String jumpTo(int index, LabelNode label) {
+        int target = currentLabelMap.get(label);
+        String release = getReleaseCode(index, target);
+        if (release.isEmpty()) {
+            return "goto L" + target + ";";
+        }
+        StringBuilder block = new StringBuilder("{\n");
+        for (String line : release.split("\n")) {
+            block.append("    ").append(line).append("\n");
+        }
+        return block.append("        goto L").append(target).append(";\n    }").toString();
+    }
+
+    private boolean isUnconditionalJump(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        return opcode == Opcodes.GOTO || opcode == Opcodes.ATHROW ||
+                opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH;
+    }
+
+    private boolean isReturn(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
     }
 
     private String generateInstruction(AbstractInsnNode insn, Map<LabelNode, Integer> labelMap, int currentIndex,
@@ -646,21 +2275,29 @@ public class CGenerator {
         if (frame == null) {
             return ""; // Unreachable code
         }
-        int sp = getCompressedStackSize(frame);
+        stackTop = frame.getStackSize();
+        consumedRefs.clear();
+        pushedRefs.clear();
 
         StringBuilder code = new StringBuilder();
         // code.append(" // Instruction Index: ").append(currentIndex).append(" Opcode:
         // ").append(insn.getOpcode())
         // .append("\n");
-        code.append("    { int sp = ").append(sp).append(";\n");
 
         int opcode = insn.getOpcode();
+        if (isReturn(insn)) {
+            code.append(releasePins(currentIndex));
+        }
 
-        switch (opcode) {
+        BuilderChain chain = currentBuilderChains.get(currentIndex);
+        switch (chain != null ? -1 : opcode) {
+            case -1:
+                code.append(generateBuilderStep(insn, chain, currentIndex, returnType));
+                break;
             case Opcodes.NOP:
                 break;
             case Opcodes.ACONST_NULL:
-                code.append("    stack[sp++].l = NULL;\n");
+                code.append("    ").append(push("l")).append(" = NULL;\n");
                 break;
             case Opcodes.ICONST_M1:
             case Opcodes.ICONST_0:
@@ -669,136 +2306,61 @@ public class CGenerator {
             case Opcodes.ICONST_3:
             case Opcodes.ICONST_4:
             case Opcodes.ICONST_5:
-                code.append("    stack[sp++].i = ").append(opcode - Opcodes.ICONST_0).append(";\n");
+                code.append("    ").append(push("i")).append(" = ").append(opcode - Opcodes.ICONST_0).append(";\n");
                 break;
             case Opcodes.LCONST_0:
             case Opcodes.LCONST_1:
-                code.append("    stack[sp++].j = ").append(opcode - Opcodes.LCONST_0).append("LL;\n");
+                code.append("    ").append(push("j")).append(" = ").append(opcode - Opcodes.LCONST_0).append("LL;\n");
                 break;
             case Opcodes.FCONST_0:
             case Opcodes.FCONST_1:
             case Opcodes.FCONST_2:
-                code.append("    stack[sp++].f = ").append(opcode - Opcodes.FCONST_0).append(".0f;\n");
+                code.append("    ").append(push("f")).append(" = ").append(opcode - Opcodes.FCONST_0).append(".0f;\n");
                 break;
             case Opcodes.DCONST_0:
             case Opcodes.DCONST_1:
-                code.append("    stack[sp++].d = ").append(opcode - Opcodes.DCONST_0).append(".0;\n");
+                code.append("    ").append(push("d")).append(" = ").append(opcode - Opcodes.DCONST_0).append(".0;\n");
                 break;
             case Opcodes.BIPUSH:
             case Opcodes.SIPUSH:
-                code.append("    stack[sp++].i = ").append(((IntInsnNode) insn).operand).append(";\n");
+                code.append("    ").append(push("i")).append(" = ").append(((IntInsnNode) insn).operand).append(";\n");
                 break;
             case Opcodes.LDC:
                 LdcInsnNode ldc = (LdcInsnNode) insn;
                 if (ldc.cst instanceof Integer) {
-                    code.append("    stack[sp++].i = ").append(ldc.cst).append(";\n");
+                    code.append("    ").append(push("i")).append(" = ").append(ldc.cst).append(";\n");
                 } else if (ldc.cst instanceof Float) {
-                    code.append("    stack[sp++].f = ").append(ldc.cst).append("f;\n");
+                    code.append("    ").append(push("f")).append(" = ").append(ldc.cst).append("f;\n");
                 } else if (ldc.cst instanceof Long) {
-                    code.append("    stack[sp++].j = ").append(ldc.cst).append("LL;\n");
+                    code.append("    ").append(push("j")).append(" = ").append(ldc.cst).append("LL;\n");
                 } else if (ldc.cst instanceof Double) {
-                    code.append("    stack[sp++].d = ").append(ldc.cst).append(";\n");
+                    code.append("    ").append(push("d")).append(" = ").append(ldc.cst).append(";\n");
                 } else if (ldc.cst instanceof String) {
-                    code.append("    {\n");
-                    int sid = Math.abs(insn.hashCode());
-                    code.append("        static jstring cached_").append(sid).append(" = NULL;\n");
-                    code.append("        if (cached_").append(sid).append(" == NULL) {\n");
-                    if (config.isStringEncryption()) {
-                        Obfuscator.EncryptedString enc = obfuscator.encryptStringData((String) ldc.cst);
-                        code.append("            const unsigned char enc_").append(sid).append("[] = ")
-                                .append(enc.cArrayLiteral()).append(";\n");
-                        code.append("            char* dec_").append(sid).append(" = decrypt_string_len(enc_")
-                                .append(sid).append(", ").append(enc.length()).append(", ").append(enc.key())
-                                .append(");\n");
-                        code.append("            if (dec_").append(sid).append(" == NULL) {\n");
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("                return;\n");
-                        } else {
-                            code.append("                return 0;\n");
-                        }
-                        code.append("            }\n");
-                        code.append("            jstring tmp = (*env)->NewStringUTF(env, dec_").append(sid)
-                                .append(");\n");
-                        code.append("            free(dec_").append(sid).append(");\n");
-                        code.append("            if (tmp == NULL) {\n");
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("                return;\n");
-                        } else {
-                            code.append("                return 0;\n");
-                        }
-                        code.append("            }\n");
-                        code.append("            cached_").append(sid).append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                        code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                    } else {
-                        code.append("            jstring tmp = (*env)->NewStringUTF(env, ")
-                                .append(obfuscator.encryptString((String) ldc.cst)).append(");\n");
-                        code.append("            if (tmp == NULL) {\n");
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("                return;\n");
-                        } else {
-                            code.append("                return 0;\n");
-                        }
-                        code.append("            }\n");
-                        code.append("            cached_").append(sid).append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                        code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                    }
-                    code.append("            if (cached_").append(sid).append(" == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("                return;\n");
-                    } else {
-                        code.append("                return 0;\n");
-                    }
-                    code.append("            }\n");
-                    code.append("        }\n");
-                    code.append("        stack[sp++].l = (*env)->NewLocalRef(env, cached_").append(sid).append(");\n");
-                    code.append("    }\n");
+                    String str = lazySymbol(code, "jstring", "str_" + currentIndex,
+                            "jnic_string(env, " + strings.getString((String) ldc.cst) + ")", currentIndex,
+                            returnType);
+                    code.append("    ").append(push("l")).append(" = ").append(str).append(";\n");
                 } else if (ldc.cst instanceof Type) {
-                    Type type = (Type) ldc.cst;
-                    code.append("    {\n");
-                    code.append("        static jclass cached_").append(Math.abs(insn.hashCode())).append(" = NULL;\n");
-                    code.append("        if (cached_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                    code.append("            jclass tmp = (*env)->FindClass(env, \"").append(type.getInternalName())
-                            .append("\");\n");
-                    code.append("            if (tmp == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("                return;\n");
-                    } else {
-                        code.append("                return 0;\n");
-                    }
-                    code.append("            }\n");
-                    code.append("            cached_").append(Math.abs(insn.hashCode()))
-                            .append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                    code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                    code.append("            if (cached_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("                return;\n");
-                    } else {
-                        code.append("                return 0;\n");
-                    }
-                    code.append("            }\n");
-                    code.append("        }\n");
-                    code.append("        stack[sp++].l = (*env)->NewLocalRef(env, cached_")
-                            .append(Math.abs(insn.hashCode())).append(");\n");
-                    code.append("    }\n");
+                    String cls = classSymbol(code, "cls_" + currentIndex, ((Type) ldc.cst).getInternalName(),
+                            currentIndex, returnType);
+                    code.append("    ").append(push("l")).append(" = ").append(cls).append(";\n");
                 }
                 break;
 
             // Loads
             case Opcodes.ILOAD:
-                code.append("    stack[sp++].i = locals[").append(((VarInsnNode) insn).var).append("].i;\n");
-                break;
             case Opcodes.LLOAD:
-                code.append("    stack[sp++].j = locals[").append(((VarInsnNode) insn).var).append("].j;\n");
-                break;
             case Opcodes.FLOAD:
-                code.append("    stack[sp++].f = locals[").append(((VarInsnNode) insn).var).append("].f;\n");
-                break;
-            case Opcodes.DLOAD:
-                code.append("    stack[sp++].d = locals[").append(((VarInsnNode) insn).var).append("].d;\n");
+            case Opcodes.DLOAD: {
+                String kind = String.valueOf("ijfd".charAt(opcode - Opcodes.ILOAD));
+                String local = localVar(((VarInsnNode) insn).var, kind);
+                code.append("    ").append(push(kind)).append(" = ").append(local).append(";\n");
+            }
                 break;
-            case Opcodes.ALOAD:
-                code.append("    stack[sp++].l = (*env)->NewLocalRef(env, locals[").append(((VarInsnNode) insn).var)
-                        .append("].l);\n");
+            case Opcodes.ALOAD: {
+                String local = localVar(((VarInsnNode) insn).var, "l");
+                code.append("    ").append(push("l")).append(" = ").append(local).append(";\n");
+            }
                 break;
 
             // Field Access
@@ -818,70 +2380,13 @@ public class CGenerator {
                     /* PushLocalFrame removed */
                 }
 
-                String fieldHash = String.valueOf(Math.abs(insn.hashCode()));
-
-                // Get FieldID with Caching
-                code.append("    static jfieldID fid_").append(fieldHash).append(" = NULL;\n");
-                if (isStaticField) {
-                    code.append("    static jclass fcls_").append(fieldHash).append(" = NULL;\n");
-                    code.append("    if (fid_").append(fieldHash).append(" == NULL) {\n");
-                    code.append("        jclass tmp = (*env)->FindClass(env, \"").append(fieldOwner).append("\");\n");
-                    code.append("        if (tmp == NULL) {\n");
-                    if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                        /* PopLocalFrame removed */
-                    }
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    code.append("        fcls_").append(fieldHash).append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                    code.append("        if (fcls_").append(fieldHash).append(" == NULL) {\n");
-                    code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                    if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                        /* PopLocalFrame removed */
-                    }
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    code.append("        fid_").append(fieldHash).append(" = (*env)->GetStaticFieldID(env, fcls_")
-                            .append(fieldHash).append(", \"").append(fieldName).append("\", \"").append(fieldDesc)
-                            .append("\");\n");
-                    code.append("        (*env)->DeleteLocalRef(env, tmp);\n");
-                    code.append("    }\n");
-                } else {
-                    code.append("    if (fid_").append(fieldHash).append(" == NULL) {\n");
-                    code.append("        jclass tmp = (*env)->FindClass(env, \"").append(fieldOwner).append("\");\n");
-                    code.append("        if (tmp == NULL) {\n");
-                    if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                        /* PopLocalFrame removed */
-                    }
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    code.append("        fid_").append(fieldHash).append(" = (*env)->GetFieldID(env, tmp, \"")
-                            .append(fieldName).append("\", \"").append(fieldDesc).append("\");\n");
-                    code.append("        (*env)->DeleteLocalRef(env, tmp);\n");
-                    code.append("    }\n");
-                }
+                String fieldHash = String.valueOf(currentIndex);
 
-                code.append("    if (fid_").append(fieldHash).append(" == NULL) {\n");
-                if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                    /* PopLocalFrame removed */
-                }
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("        return;\n");
-                } else {
-                    code.append("        return 0;\n");
-                }
-                code.append("    }\n");
+                String fid = fieldSymbol(code, "fid_" + fieldHash, fieldOwner, fieldName, fieldDesc, isStaticField,
+                        currentIndex, returnType);
+                String fcls = isStaticField
+                        ? classSymbol(code, "fcls_" + fieldHash, fieldOwner, currentIndex, returnType)
+                        : null;
 
                 String typeName = getJNICallType(fieldType);
                 String unionField = getTypeField(fieldType);
@@ -890,42 +2395,27 @@ public class CGenerator {
                     // PUTFIELD/PUTSTATIC
                     code.append("    ");
                     String valVar = "val_" + fieldHash;
-                    code.append(getJNIType(fieldType)).append(" ").append(valVar).append(" = stack[--sp].")
-                            .append(unionField).append(";\n");
+                    code.append(getJNIType(fieldType)).append(" ").append(valVar).append(" = ").append(pop(unionField))
+                            .append(";\n");
 
                     code.append("    jobject obj_").append(fieldHash).append(" = ");
                     if (isStaticField) {
                         code.append("NULL;\n");
                     } else {
-                        code.append("stack[--sp].l;\n"); // Pop object ref
+                        code.append(pop("l")).append(";\n"); // Pop object ref
                     }
 
                     if (!isStaticField) {
                         code.append("    if (obj_").append(fieldHash).append(" == NULL) {\n");
-                        code.append(
-                                "        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                        code.append("        if (npeCls != NULL) {\n");
-                        code.append("            (*env)->ThrowNew(env, npeCls, \"Null pointer access\");\n");
-                        code.append("        }\n");
-                        if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                            /* PopLocalFrame removed */
-                        }
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("        return;\n");
-                        } else {
-                            code.append("        return 0;\n");
-                        }
+                        code.append("        throw_npe(env, \"Null pointer access\");\n");
+                        code.append(generateExceptionExit(currentIndex, returnType));
                         code.append("    }\n");
                     }
 
                     String setFunc = isStaticField ? "SetStatic" + typeName + "Field" : "Set" + typeName + "Field";
                     code.append("    (*env)->").append(setFunc).append("(env, ");
-                    if (isStaticField) {
-                        code.append("fcls_").append(fieldHash);
-                    } else {
-                        code.append("obj_").append(fieldHash);
-                    }
-                    code.append(", fid_").append(fieldHash).append(", ").append(valVar).append(");\n");
+                    code.append(isStaticField ? fcls : "obj_" + fieldHash).append(", ").append(fid).append(", ")
+                            .append(valVar).append(");\n");
 
                     if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
                         /* PopLocalFrame removed */
@@ -939,37 +2429,21 @@ public class CGenerator {
                     if (isStaticField) {
                         code.append("NULL;\n");
                     } else {
-                        code.append("stack[--sp].l;\n"); // Pop object ref
+                        code.append(pop("l")).append(";\n"); // Pop object ref
                     }
 
                     if (!isStaticField) {
                         code.append("    if (obj_").append(fieldHash).append(" == NULL) {\n");
-                        code.append(
-                                "        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                        code.append("        if (npeCls != NULL) {\n");
-                        code.append("            (*env)->ThrowNew(env, npeCls, \"Null pointer access\");\n");
-                        code.append("        }\n");
-                        if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
-                            /* PopLocalFrame removed */
-                        }
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("        return;\n");
-                        } else {
-                            code.append("        return 0;\n");
-                        }
+                        code.append("        throw_npe(env, \"Null pointer access\");\n");
+                        code.append(generateExceptionExit(currentIndex, returnType));
                         code.append("    }\n");
                     }
 
                     code.append("    ").append(getJNIType(fieldType)).append(" res_").append(fieldHash)
                             .append(" = (*env)->").append(getFunc).append("(env, ");
-                    if (isStaticField) {
-                        code.append("fcls_").append(fieldHash);
-                    } else {
-                        code.append("obj_").append(fieldHash);
-                    }
-                    code.append(", fid_").append(fieldHash).append(");\n");
+                    code.append(isStaticField ? fcls : "obj_" + fieldHash).append(", ").append(fid).append(");\n");
 
-                    code.append("    stack[sp++].").append(unionField).append(" = res_").append(fieldHash)
+                    code.append("    ").append(push(unionField)).append(" = res_").append(fieldHash)
                             .append(";\n");
 
                     if (fieldType.getSort() == Type.OBJECT || fieldType.getSort() == Type.ARRAY) {
@@ -988,21 +2462,21 @@ public class CGenerator {
             case Opcodes.BALOAD:
             case Opcodes.CALOAD:
             case Opcodes.SALOAD:
+                if (currentPinning != null && currentPinning.getPinnedLocal(currentIndex) >= 0) {
+                    generatePinnedAccess(code, opcode, currentIndex, returnType);
+                    break;
+                }
                 code.append("    {\n");
-                code.append("        jint idx = stack[--sp].i;\n");
+                code.append("        jint idx = ").append(pop("i")).append(";\n");
                 if (opcode == Opcodes.AALOAD) {
-                    code.append("        jobjectArray arr = (jobjectArray)stack[--sp].l;\n");
+                    code.append("        jobjectArray arr = (jobjectArray)").append(pop("l")).append(";\n");
                     code.append("        jobject val = NULL;\n");
                     code.append("        if (arr != NULL) {\n");
                     code.append("            val = (*env)->GetObjectArrayElement(env, arr, idx);\n");
                     code.append("        } else {\n");
-                    code.append(
-                            "            jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                    code.append("            if (npeCls != NULL) {\n");
-                    code.append("                (*env)->ThrowNew(env, npeCls, \"Array is null\");\n");
-                    code.append("            }\n");
+                    code.append("            throw_npe(env, \"Array is null\");\n");
                     code.append("        }\n");
-                    code.append("        stack[sp++].l = val;\n");
+                    code.append("        ").append(push("l")).append(" = val;\n");
                 } else {
                     String valType, stackField, funcName, arrayCast;
                     if (opcode == Opcodes.IALOAD) {
@@ -1043,507 +2517,371 @@ public class CGenerator {
                     }
 
                     code.append("        ").append(arrayCast).append(" arr = (").append(arrayCast)
-                            .append(")stack[--sp].l;\n");
+                            .append(")").append(pop("l")).append(";\n");
                     code.append("        ").append(valType).append(" val = 0;\n");
                     code.append("        if (arr != NULL) {\n");
 
                     if (opcode == Opcodes.BALOAD) {
-                        code.append(
-                                "            if ((*env)->IsInstanceOf(env, arr, (*env)->FindClass(env, \"[Z\"))) {\n");
-                        code.append("                jboolean b = 0;\n");
-                        code.append(
-                                "                (*env)->GetBooleanArrayRegion(env, (jbooleanArray)arr, idx, 1, &b);\n");
-                        code.append("                val = b;\n");
-                        code.append("            } else {\n");
-                        code.append("                jbyte b = 0;\n");
-                        code.append("                (*env)->GetByteArrayRegion(env, (jbyteArray)arr, idx, 1, &b);\n");
-                        code.append("                val = b;\n");
-                        code.append("            }\n");
+                        char kind = getByteArrayKind(currentIndex);
+                        if (kind == 0) {
+                            String booleanArray = classSymbol(code, "cls", "[Z", currentIndex, returnType);
+                            code.append("            if ((*env)->IsInstanceOf(env, arr, ").append(booleanArray)
+                                    .append(")) {\n");
+                            code.append(byteArrayAccess(false, true));
+                            code.append("            } else {\n");
+                            code.append(byteArrayAccess(false, false));
+                            code.append("            }\n");
+                        } else {
+                            code.append("            {\n");
+                            code.append(byteArrayAccess(false, kind == 'Z'));
+                            code.append("            }\n");
+                        }
                     } else {
                         code.append("            (*env)->").append(funcName).append("(env, arr, idx, 1, &val);\n");
                     }
 
                     code.append("        } else {\n");
-                    code.append(
-                            "            jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                    code.append("            if (npeCls != NULL) {\n");
-                    code.append("                (*env)->ThrowNew(env, npeCls, \"Array is null\");\n");
-                    code.append("            }\n");
+                    code.append("            throw_npe(env, \"Array is null\");\n");
                     code.append("        }\n");
-                    code.append("        stack[sp++].").append(stackField).append(" = val;\n");
+                    code.append("        ").append(push(stackField)).append(" = val;\n");
                 }
                 code.append(generateExceptionHandling(currentIndex, returnType));
                 code.append("    }\n");
                 break;
 
             // Stack Manipulation
-            case Opcodes.POP: {
-                BasicValue val = frame.getStack(frame.getStackSize() - 1);
-                if (isReferenceType(val)) {
-                    code.append("    if (stack[sp-1].l != NULL) {\n");
-                    code.append("        (*env)->DeleteLocalRef(env, stack[sp-1].l);\n");
-                    code.append("    }\n");
-                }
-                code.append("    sp--;\n");
-            }
-                break;
+            // Shuffles work on values, a long/double is a single value in the analyzer frames
+            case Opcodes.POP:
             case Opcodes.POP2: {
-                BasicValue val1 = frame.getStack(frame.getStackSize() - 1);
-                if (val1.getSize() == 2) {
-                    // Long/Double. Pop 1 slot.
-                    code.append("    sp--;\n");
-                } else {
-                    // val1 is size 1. val2 must be size 1.
-                    if (isReferenceType(val1)) {
-                        code.append("    if (stack[sp-1].l != NULL) {\n");
-                        code.append("        (*env)->DeleteLocalRef(env, stack[sp-1].l);\n");
-                        code.append("    }\n");
-                    }
-
-                    BasicValue val2 = frame.getStack(frame.getStackSize() - 2);
-                    if (isReferenceType(val2)) {
-                        code.append("    if (stack[sp-2].l != NULL) {\n");
-                        code.append("        (*env)->DeleteLocalRef(env, stack[sp-2].l);\n");
-                        code.append("    }\n");
-                    }
-                    code.append("    sp -= 2;\n");
+                int count = opcode == Opcodes.POP2 && frame.getStack(frame.getStackSize() - 1).getSize() == 1 ? 2 : 1;
+                for (int i = 0; i < count; i++) {
+                    BasicValue val = frame.getStack(frame.getStackSize() - 1 - i);
+                    // Popped references are released on the outgoing edge
+                    pop(getValueField(val));
                 }
             }
                 break;
-            case Opcodes.DUP: {
-                BasicValue val = frame.getStack(frame.getStackSize() - 1);
-                if (isReferenceType(val)) {
-                    code.append("    stack[sp].l = (*env)->NewLocalRef(env, stack[sp-1].l);\n");
-                    code.append("    sp++;\n");
+            case Opcodes.DUP:
+                shuffle(code, frame, 1, 0, 0);
+                break;
+            case Opcodes.DUP_X1:
+                // ..., value2, value1 -> ..., value1, value2, value1
+                shuffle(code, frame, 2, 1, 0, 1);
+                break;
+            case Opcodes.DUP_X2:
+                // ..., value3, value2, value1 -> ..., value1, value3, value2, value1
+                if (frame.getStack(frame.getStackSize() - 2).getSize() == 2) {
+                    shuffle(code, frame, 2, 1, 0, 1);
                 } else {
-                    code.append("    stack[sp] = stack[sp-1]; sp++;\n");
+                    shuffle(code, frame, 3, 2, 0, 1, 2);
                 }
-            }
                 break;
-            case Opcodes.DUP_X1:
-            // ..., value2, value1 -> ..., value1, value2, value1
-            {
-                BasicValue val1 = frame.getStack(frame.getStackSize() - 1);
-                code.append("    stack[sp] = stack[sp-1];\n");
-                code.append("    stack[sp-1] = stack[sp-2];\n");
-                code.append("    stack[sp-2] = stack[sp];\n");
-                if (isReferenceType(val1)) {
-                    code.append("    stack[sp].l = (*env)->NewLocalRef(env, stack[sp].l);\n");
+            case Opcodes.DUP2:
+                if (frame.getStack(frame.getStackSize() - 1).getSize() == 2) {
+                    shuffle(code, frame, 1, 0, 0);
+                } else {
+                    shuffle(code, frame, 2, 0, 1, 0, 1);
                 }
-                code.append("    sp++;\n");
-            }
                 break;
-            case Opcodes.DUP_X2:
-            // ..., value3, value2, value1 -> ..., value1, value3, value2, value1
-            {
-                BasicValue val1 = frame.getStack(frame.getStackSize() - 1);
-                BasicValue val2 = frame.getStack(frame.getStackSize() - 2);
-
-                if (val2.getSize() == 2) {
-                    // Form 2: value1, value2(long). C stack: sp-1(val1), sp-2(val2).
-                    // Like DUP_X1 in C.
-                    code.append("    stack[sp] = stack[sp-1];\n");
-                    code.append("    stack[sp-1] = stack[sp-2];\n");
-                    code.append("    stack[sp-2] = stack[sp];\n");
-                    if (isReferenceType(val1)) {
-                        code.append("    stack[sp].l = (*env)->NewLocalRef(env, stack[sp].l);\n");
-                    }
-                    code.append("    sp++;\n");
+            case Opcodes.DUP2_X1:
+                if (frame.getStack(frame.getStackSize() - 1).getSize() == 2) {
+                    shuffle(code, frame, 2, 1, 0, 1);
                 } else {
-                    // Form 1: value1, value2, value3.
-                    code.append("    stack[sp] = stack[sp-1];\n");
-                    code.append("    stack[sp-1] = stack[sp-2];\n");
-                    code.append("    stack[sp-2] = stack[sp-3];\n");
-                    code.append("    stack[sp-3] = stack[sp];\n");
-                    if (isReferenceType(val1)) {
-                        code.append("    stack[sp].l = (*env)->NewLocalRef(env, stack[sp].l);\n");
-                    }
-                    code.append("    sp++;\n");
+                    shuffle(code, frame, 3, 1, 2, 0, 1, 2);
                 }
-            }
                 break;
-            case Opcodes.DUP2: {
-                BasicValue val1 = frame.getStack(frame.getStackSize() - 1);
-                if (val1.getSize() == 2) {
-                    // Form 2: value1(long).
-                    // In C, this is DUP.
-                    code.append("    stack[sp] = stack[sp-1];\n");
-                    code.append("    sp++;\n");
+            case Opcodes.DUP2_X2: {
+                boolean wide1 = frame.getStack(frame.getStackSize() - 1).getSize() == 2;
+                boolean wide2 = frame.getStack(frame.getStackSize() - 2).getSize() == 2;
+                if (wide1 && wide2) {
+                    shuffle(code, frame, 2, 1, 0, 1);
+                } else if (wide1) {
+                    shuffle(code, frame, 3, 2, 0, 1, 2);
+                } else if (frame.getStack(frame.getStackSize() - 3).getSize() == 2) {
+                    shuffle(code, frame, 3, 1, 2, 0, 1, 2);
                 } else {
-                    // Form 1: value1, value2.
-                    BasicValue val2 = frame.getStack(frame.getStackSize() - 2);
-
-                    code.append("    stack[sp] = stack[sp-2];\n");
-                    if (isReferenceType(val2)) {
-                        code.append("    stack[sp].l = (*env)->NewLocalRef(env, stack[sp].l);\n");
-                    }
-
-                    code.append("    stack[sp+1] = stack[sp-1];\n");
-                    if (isReferenceType(val1)) {
-                        code.append("    stack[sp+1].l = (*env)->NewLocalRef(env, stack[sp+1].l);\n");
-                    }
-                    code.append("    sp += 2;\n");
+                    shuffle(code, frame, 4, 2, 3, 0, 1, 2, 3);
                 }
             }
                 break;
             case Opcodes.SWAP:
-                code.append("    StackValue tmp_").append(Math.abs(insn.hashCode())).append(" = stack[sp-1];\n");
-                code.append("    stack[sp-1] = stack[sp-2];\n");
-                code.append("    stack[sp-2] = tmp_").append(Math.abs(insn.hashCode())).append(";\n");
+                shuffle(code, frame, 2, 1, 0);
                 break;
 
             // Object Creation
-            case Opcodes.NEW:
-                /* PushLocalFrame removed */
+            case Opcodes.NEW: {
                 TypeInsnNode typeInsn = (TypeInsnNode) insn;
-                // code.append(" printf(\"New: ").append(typeInsn.desc).append("\\n\");
-                // fflush(stdout);\n");
-                code.append("    jclass cls_").append(Math.abs(insn.hashCode())).append(" = (*env)->FindClass(env, \"")
-                        .append(typeInsn.desc).append("\");\n");
-                code.append("    if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("        return;\n");
-                } else {
-                    code.append("        return 0;\n");
+                if (currentConstructions.containsValue(currentIndex)) {
+                    // Created by NewObjectA at the constructor call, until then the stack only holds a placeholder
+                    code.append("    ").append(push("l")).append(" = NULL;\n");
+                    break;
                 }
-                code.append("    }\n");
-                code.append("    jobject obj_").append(Math.abs(insn.hashCode()))
-                        .append(" = (*env)->AllocObject(env, cls_").append(Math.abs(insn.hashCode())).append(");\n");
-                code.append("    stack[sp++].l = obj_").append(Math.abs(insn.hashCode())).append(";\n");
-                code.append("    if ((*env)->ExceptionCheck(env)) {\n");
-                code.append("        jthrowable ex = (*env)->ExceptionOccurred(env);\n");
-                code.append("        (*env)->ExceptionClear(env);\n");
-
-                code.append("        (*env)->Throw(env, ex);\n");
-                code.append("        stack[sp-1].l = NULL;\n");
-                code.append("    } else {\n");
-                code.append("        stack[sp-1].l = stack[sp-1].l;\n");
-                code.append("    }\n");
+                String cls = classSymbol(code, "cls_" + currentIndex, typeInsn.desc, currentIndex, returnType);
+                code.append("    ").append(push("l")).append(" = (*env)->AllocObject(env, ").append(cls)
+                        .append(");\n");
                 code.append(generateExceptionHandling(currentIndex, returnType));
+            }
                 break;
             case Opcodes.NEWARRAY:
                 IntInsnNode newarr = (IntInsnNode) insn;
-                code.append("    jsize len_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].i;\n");
+                code.append("    jsize len_").append(currentIndex).append(" = ").append(pop("i")).append(";\n");
                 String arrayFunc = getNewArrayFunc(newarr.operand);
-                code.append("    stack[sp++].l = (*env)->").append(arrayFunc).append("(env, len_")
-                        .append(Math.abs(insn.hashCode())).append(");\n");
+                code.append("    ").append(push("l")).append(" = (*env)->").append(arrayFunc).append("(env, len_")
+                        .append(currentIndex).append(");\n");
                 code.append(generateExceptionHandling(currentIndex, returnType));
                 break;
-            case Opcodes.ANEWARRAY:
-                /* PushLocalFrame removed */
+            case Opcodes.ANEWARRAY: {
                 TypeInsnNode anew = (TypeInsnNode) insn;
-                code.append("    jsize len_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].i;\n");
-                code.append("    jclass cls_").append(Math.abs(insn.hashCode())).append(" = (*env)->FindClass(env, \"")
-                        .append(anew.desc).append("\");\n");
-                code.append("    if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("        return;\n");
-                } else {
-                    code.append("        return 0;\n");
-                }
-                code.append("    }\n");
-                code.append("    stack[sp++].l = (*env)->NewObjectArray(env, len_").append(Math.abs(insn.hashCode()))
-                        .append(", cls_").append(Math.abs(insn.hashCode())).append(", NULL);\n");
-                /* PopLocalFrame removed */
-                code.append("    (*env)->ExceptionCheck(env);\n");
-                break;
-            case Opcodes.ARRAYLENGTH:
-                code.append("    if (stack[sp-1].l == NULL) {\n");
-                code.append("        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                code.append("        if (npeCls != NULL) {\n");
-                code.append("            (*env)->ThrowNew(env, npeCls, \"Array is null\");\n");
-                code.append("        }\n");
+                code.append("    jsize len_").append(currentIndex).append(" = ").append(pop("i")).append(";\n");
+                String cls = classSymbol(code, "cls_" + currentIndex, anew.desc, currentIndex, returnType);
+                code.append("    ").append(push("l")).append(" = (*env)->NewObjectArray(env, len_").append(currentIndex)
+                        .append(", ").append(cls).append(", NULL);\n");
                 code.append(generateExceptionHandling(currentIndex, returnType));
+            }
+                break;
+            case Opcodes.ARRAYLENGTH: {
+                String array = pop("l");
+                String length = push("i");
+                if (currentPinning != null && currentPinning.getPinnedLocal(currentIndex) >= 0) {
+                    // Read when the loop was entered
+                    ArrayPinning.Region region = currentPinning.getRegion(currentIndex);
+                    int local = currentPinning.getPinnedLocal(currentIndex);
+                    code.append("    if (").append(localVar(local, "l")).append(" == NULL) {\n");
+                    code.append(releasePins(region));
+                    code.append("        throw_npe(env, \"Array is null\");\n");
+                    code.append(generateExceptionExit(currentIndex, returnType));
+                    code.append("    }\n");
+                    code.append("    ").append(length).append(" = ").append(pinLength(region, local)).append(";\n");
+                    break;
+                }
+                code.append("    if (").append(array).append(" == NULL) {\n");
+                code.append("        throw_npe(env, \"Array is null\");\n");
+                code.append(generateExceptionExit(currentIndex, returnType));
                 code.append("    } else {\n");
-                code.append("        stack[sp-1].i = (*env)->GetArrayLength(env, (jarray)stack[sp-1].l);\n");
+                code.append("        ").append(length).append(" = (*env)->GetArrayLength(env, (jarray)").append(array)
+                        .append(");\n");
                 code.append("    }\n");
+            }
                 break;
             case Opcodes.ATHROW:
                 code.append("    {\n");
-                code.append("        jobject ex = stack[--sp].l;\n");
+                code.append("        jobject ex = ").append(pop("l")).append(";\n");
                 code.append("        (*env)->Throw(env, (jthrowable)ex);\n");
                 code.append("    }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
+                code.append(generateExceptionExit(currentIndex, returnType));
                 break;
             case Opcodes.CHECKCAST:
                 TypeInsnNode checkcast = (TypeInsnNode) insn;
-                code.append("    if (stack[sp-1].l != NULL) {\n");
-                code.append("        static jclass cls_").append(Math.abs(insn.hashCode())).append(" = NULL;\n");
-                code.append("        if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                code.append("            jclass tmp = (*env)->FindClass(env, \"").append(checkcast.desc)
-                        .append("\");\n");
-                code.append("            if (tmp == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("                return;\n");
-                } else {
-                    code.append("                return 0;\n");
-                }
-                code.append("            }\n");
-                code.append("            cls_").append(Math.abs(insn.hashCode()))
-                        .append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                code.append("            if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("                return;\n");
-                } else {
-                    code.append("                return 0;\n");
-                }
-                code.append("            }\n");
-                code.append("        }\n");
-                code.append("        if (!(*env)->IsInstanceOf(env, stack[sp-1].l, cls_")
-                        .append(Math.abs(insn.hashCode())).append(")) {\n");
+                String casted = peek(0, "l");
+                code.append("    if (").append(casted).append(" != NULL) {\n");
+                String castClass = classSymbol(code, "cls_" + currentIndex, checkcast.desc, currentIndex,
+                        returnType);
+                code.append("        if (!(*env)->IsInstanceOf(env, ").append(casted).append(", ").append(castClass)
+                        .append(")) {\n");
                 code.append("            jclass castEx = (*env)->FindClass(env, \"java/lang/ClassCastException\");\n");
                 code.append("            if (castEx != NULL) {\n");
                 code.append("                (*env)->ThrowNew(env, castEx, \"").append(checkcast.desc).append("\");\n");
+                code.append("                (*env)->DeleteLocalRef(env, castEx);\n");
                 code.append("            }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
+                code.append(generateExceptionExit(currentIndex, returnType));
                 code.append("        }\n");
                 code.append("    }\n");
                 break;
             case Opcodes.INSTANCEOF:
                 TypeInsnNode instanceofInsn = (TypeInsnNode) insn;
-                code.append("    {\n");
-                code.append("        static jclass cls_").append(Math.abs(insn.hashCode())).append(" = NULL;\n");
-                code.append("        if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                code.append("            jclass tmp = (*env)->FindClass(env, \"").append(instanceofInsn.desc)
-                        .append("\");\n");
-                code.append("            if (tmp == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("                return;\n");
-                } else {
-                    code.append("                return 0;\n");
-                }
-                code.append("            }\n");
-                code.append("            cls_").append(Math.abs(insn.hashCode()))
-                        .append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                code.append("            (*env)->DeleteLocalRef(env, tmp);\n");
-                code.append("            if (cls_").append(Math.abs(insn.hashCode())).append(" == NULL) {\n");
-                if (returnType.getSort() == Type.VOID) {
-                    code.append("                return;\n");
-                } else {
-                    code.append("                return 0;\n");
-                }
-                code.append("            }\n");
-                code.append("        }\n");
-                code.append("        stack[sp-1].i = (*env)->IsInstanceOf(env, stack[sp-1].l, cls_")
-                        .append(Math.abs(insn.hashCode())).append(");\n");
-                code.append("    }\n");
+                String tested = pop("l");
+                String testedClass = classSymbol(code, "cls_" + currentIndex, instanceofInsn.desc, currentIndex,
+                        returnType);
+                // IsInstanceOf is true for null, instanceof is not
+                code.append("    ").append(push("i")).append(" = ").append(tested)
+                        .append(" != NULL && (*env)->IsInstanceOf(env, ").append(tested).append(", ")
+                        .append(testedClass).append(");\n");
                 break;
             case Opcodes.MONITORENTER:
-                code.append("    (*env)->MonitorEnter(env, stack[--sp].l);\n");
+                code.append("    (*env)->MonitorEnter(env, ").append(pop("l")).append(");\n");
+                code.append(generateExceptionHandling(currentIndex, returnType));
                 break;
             case Opcodes.MONITOREXIT:
-                code.append("    (*env)->MonitorExit(env, stack[--sp].l);\n");
+                // IllegalMonitorStateException
+                code.append("    (*env)->MonitorExit(env, ").append(pop("l")).append(");\n");
+                code.append(generateExceptionHandling(currentIndex, returnType));
                 break;
 
             // Stores
             case Opcodes.ISTORE:
-                code.append("    locals[").append(((VarInsnNode) insn).var).append("].i = stack[--sp].i;\n");
-                break;
             case Opcodes.LSTORE:
-                code.append("    locals[").append(((VarInsnNode) insn).var).append("].j = stack[--sp].j;\n");
-                break;
             case Opcodes.FSTORE:
-                code.append("    locals[").append(((VarInsnNode) insn).var).append("].f = stack[--sp].f;\n");
-                break;
-            case Opcodes.DSTORE:
-                code.append("    locals[").append(((VarInsnNode) insn).var).append("].d = stack[--sp].d;\n");
+            case Opcodes.DSTORE: {
+                String kind = String.valueOf("ijfd".charAt(opcode - Opcodes.ISTORE));
+                String value = pop(kind);
+                code.append("    ").append(localVar(((VarInsnNode) insn).var, kind)).append(" = ").append(value)
+                        .append(";\n");
+            }
                 break;
-            case Opcodes.ASTORE:
-                int var = ((VarInsnNode) insn).var;
-                code.append("    {\n");
-                code.append("        jobject tmp_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].l;\n");
-                code.append("        if (locals[").append(var).append("].l != NULL && locals[").append(var)
-                        .append("].l != tmp_").append(Math.abs(insn.hashCode())).append(") {\n");
-                code.append("            (*env)->DeleteLocalRef(env, locals[").append(var).append("].l);\n");
-                code.append("        }\n");
-                code.append("        locals[").append(var).append("].l = tmp_").append(Math.abs(insn.hashCode()))
+            case Opcodes.ASTORE: {
+                // The reference moves into the local, it is not released like a consumed operand
+                String value = peek(0, "l");
+                stackTop--;
+                code.append("    ").append(localVar(((VarInsnNode) insn).var, "l")).append(" = ").append(value)
                         .append(";\n");
-                code.append("    }\n");
+            }
                 break;
 
             // Math
+            // Signed overflow is undefined in C but wraps in Java, so int/long add, sub, mul and neg are done on
+            // the unsigned types. Shift distances are masked like the JVM does.
             case Opcodes.IADD:
-                code.append("    sp--; __asm__(\"add %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "(jint)((uint32_t)%s + (uint32_t)%s)");
                 break;
             case Opcodes.LADD:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j + stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "(jlong)((uint64_t)%s + (uint64_t)%s)");
                 break;
             case Opcodes.FADD:
-                code.append("    sp--; stack[sp-1].f = stack[sp-1].f + stack[sp].f;\n");
+                binaryOp(code, "f", "f", "f", "%s + %s");
                 break;
             case Opcodes.DADD:
-                code.append("    sp--; stack[sp-1].d = stack[sp-1].d + stack[sp].d;\n");
+                binaryOp(code, "d", "d", "d", "%s + %s");
                 break;
 
             case Opcodes.ISUB:
-                code.append("    sp--; __asm__(\"sub %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "(jint)((uint32_t)%s - (uint32_t)%s)");
                 break;
             case Opcodes.LSUB:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j - stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "(jlong)((uint64_t)%s - (uint64_t)%s)");
                 break;
             case Opcodes.FSUB:
-                code.append("    sp--; stack[sp-1].f = stack[sp-1].f - stack[sp].f;\n");
+                binaryOp(code, "f", "f", "f", "%s - %s");
                 break;
             case Opcodes.DSUB:
-                code.append("    sp--; stack[sp-1].d = stack[sp-1].d - stack[sp].d;\n");
+                binaryOp(code, "d", "d", "d", "%s - %s");
                 break;
 
             case Opcodes.IMUL:
-                code.append("    sp--; __asm__(\"imul %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "(jint)((uint32_t)%s * (uint32_t)%s)");
                 break;
             case Opcodes.LMUL:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j * stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "(jlong)((uint64_t)%s * (uint64_t)%s)");
                 break;
             case Opcodes.FMUL:
-                code.append("    sp--; stack[sp-1].f = stack[sp-1].f * stack[sp].f;\n");
+                binaryOp(code, "f", "f", "f", "%s * %s");
                 break;
             case Opcodes.DMUL:
-                code.append("    sp--; stack[sp-1].d = stack[sp-1].d * stack[sp].d;\n");
+                binaryOp(code, "d", "d", "d", "%s * %s");
                 break;
 
             case Opcodes.IDIV:
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp].i == 0) {\n");
-                code.append("        jclass arithEx = (*env)->FindClass(env, \"java/lang/ArithmeticException\");\n");
-                code.append("        if (arithEx != NULL) {\n");
-                code.append("            (*env)->ThrowNew(env, arithEx, \"/ by zero\");\n");
-                code.append("        }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
-                code.append("    } else {\n");
-                code.append("        stack[sp-1].i = stack[sp-1].i / stack[sp].i;\n");
-                code.append("    }\n");
-                break;
             case Opcodes.LDIV:
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp].j == 0) {\n");
-                code.append("        jclass arithEx = (*env)->FindClass(env, \"java/lang/ArithmeticException\");\n");
-                code.append("        if (arithEx != NULL) {\n");
-                code.append("            (*env)->ThrowNew(env, arithEx, \"/ by zero\");\n");
-                code.append("        }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
+            case Opcodes.IREM:
+            case Opcodes.LREM: {
+                boolean isLong = opcode == Opcodes.LDIV || opcode == Opcodes.LREM;
+                String kind = isLong ? "j" : "i";
+                String divisor = pop(kind);
+                String dividend = pop(kind);
+                String result = push(kind);
+                code.append("    if (").append(divisor).append(" == 0) {\n");
+                code.append(releasePins(currentIndex));
+                code.append("        throw_arith(env, \"/ by zero\");\n");
+                code.append(generateExceptionExit(currentIndex, returnType));
+                code.append("    } else if (").append(divisor).append(" == -1) {\n");
+                // MIN_VALUE / -1 traps on x86, Java defines it as MIN_VALUE
+                if (opcode == Opcodes.IDIV || opcode == Opcodes.LDIV) {
+                    code.append("        ").append(result).append(" = (").append(getKindType(kind)).append(")(0 - (")
+                            .append(isLong ? "uint64_t" : "uint32_t").append(")").append(dividend).append(");\n");
+                } else {
+                    code.append("        ").append(result).append(" = 0;\n");
+                }
                 code.append("    } else {\n");
-                code.append("        stack[sp-1].j = stack[sp-1].j / stack[sp].j;\n");
+                code.append("        ").append(result).append(" = ").append(dividend)
+                        .append(opcode == Opcodes.IDIV || opcode == Opcodes.LDIV ? " / " : " % ").append(divisor)
+                        .append(";\n");
                 code.append("    }\n");
+            }
                 break;
             case Opcodes.FDIV:
-                code.append("    sp--; stack[sp-1].f = stack[sp-1].f / stack[sp].f;\n");
+                binaryOp(code, "f", "f", "f", "%s / %s");
                 break;
             case Opcodes.DDIV:
-                code.append("    sp--; stack[sp-1].d = stack[sp-1].d / stack[sp].d;\n");
-                break;
-
-            case Opcodes.IREM:
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp].i == 0) {\n");
-                code.append("        jclass arithEx = (*env)->FindClass(env, \"java/lang/ArithmeticException\");\n");
-                code.append("        if (arithEx != NULL) {\n");
-                code.append("            (*env)->ThrowNew(env, arithEx, \"/ by zero\");\n");
-                code.append("        }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
-                code.append("    } else {\n");
-                code.append("        stack[sp-1].i = stack[sp-1].i % stack[sp].i;\n");
-                code.append("    }\n");
-                break;
-            case Opcodes.LREM:
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp].j == 0) {\n");
-                code.append("        jclass arithEx = (*env)->FindClass(env, \"java/lang/ArithmeticException\");\n");
-                code.append("        if (arithEx != NULL) {\n");
-                code.append("            (*env)->ThrowNew(env, arithEx, \"/ by zero\");\n");
-                code.append("        }\n");
-                code.append(generateExceptionHandling(currentIndex, returnType));
-                code.append("    } else {\n");
-                code.append("        stack[sp-1].j = stack[sp-1].j % stack[sp].j;\n");
-                code.append("    }\n");
+                binaryOp(code, "d", "d", "d", "%s / %s");
                 break;
             case Opcodes.FREM:
-                code.append("    sp--; stack[sp-1].f = (jfloat)fmod(stack[sp-1].f, stack[sp].f);\n");
+                binaryOp(code, "f", "f", "f", "(jfloat)fmod(%s, %s)");
                 break;
             case Opcodes.DREM:
-                code.append("    sp--; stack[sp-1].d = fmod(stack[sp-1].d, stack[sp].d);\n");
+                binaryOp(code, "d", "d", "d", "fmod(%s, %s)");
                 break;
 
             case Opcodes.INEG:
-                code.append("    __asm__(\"neg %0\" : \"+r\"(stack[sp-1].i));\n");
+                unaryOp(code, "i", "i", "(jint)(0 - (uint32_t)%s)");
                 break;
             case Opcodes.LNEG:
-                code.append("    stack[sp-1].j = -stack[sp-1].j;\n");
+                unaryOp(code, "j", "j", "(jlong)(0 - (uint64_t)%s)");
                 break;
             case Opcodes.FNEG:
-                code.append("    stack[sp-1].f = -stack[sp-1].f;\n");
+                unaryOp(code, "f", "f", "-%s");
                 break;
             case Opcodes.DNEG:
-                code.append("    stack[sp-1].d = -stack[sp-1].d;\n");
+                unaryOp(code, "d", "d", "-%s");
                 break;
 
             case Opcodes.ISHL:
-                code.append("    sp--; stack[sp-1].i = stack[sp-1].i << stack[sp].i;\n");
+                binaryOp(code, "i", "i", "i", "(jint)((uint32_t)%s << (%s & 31))");
                 break;
             case Opcodes.LSHL:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j << stack[sp].i;\n");
+                binaryOp(code, "j", "i", "j", "(jlong)((uint64_t)%s << (%s & 63))");
                 break;
             case Opcodes.ISHR:
-                code.append("    sp--; stack[sp-1].i = stack[sp-1].i >> stack[sp].i;\n");
+                binaryOp(code, "i", "i", "i", "%s >> (%s & 31)");
                 break;
             case Opcodes.LSHR:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j >> stack[sp].i;\n");
+                binaryOp(code, "j", "i", "j", "%s >> (%s & 63)");
                 break;
             case Opcodes.IUSHR:
-                code.append("    sp--; stack[sp-1].i = (jint)((unsigned int)stack[sp-1].i >> stack[sp].i);\n");
+                binaryOp(code, "i", "i", "i", "(jint)((uint32_t)%s >> (%s & 31))");
                 break;
             case Opcodes.LUSHR:
-                code.append("    sp--; stack[sp-1].j = (jlong)((unsigned long long)stack[sp-1].j >> stack[sp].i);\n");
+                binaryOp(code, "j", "i", "j", "(jlong)((uint64_t)%s >> (%s & 63))");
                 break;
 
             case Opcodes.IAND:
-                code.append("    sp--; __asm__(\"and %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "%s & %s");
                 break;
             case Opcodes.LAND:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j & stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "%s & %s");
                 break;
             case Opcodes.IOR:
-                code.append("    sp--; __asm__(\"or %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "%s | %s");
                 break;
             case Opcodes.LOR:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j | stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "%s | %s");
                 break;
             case Opcodes.IXOR:
-                code.append("    sp--; __asm__(\"xor %1, %0\" : \"+r\"(stack[sp-1].i) : \"r\"(stack[sp].i));\n");
+                binaryOp(code, "i", "i", "i", "%s ^ %s");
                 break;
             case Opcodes.LXOR:
-                code.append("    sp--; stack[sp-1].j = stack[sp-1].j ^ stack[sp].j;\n");
+                binaryOp(code, "j", "j", "j", "%s ^ %s");
                 break;
 
-            case Opcodes.IINC:
+            case Opcodes.IINC: {
                 IincInsnNode iinc = (IincInsnNode) insn;
-                code.append("    __asm__(\"add %1, %0\" : \"+r\"(locals[").append(iinc.var).append("].i) : \"r\"(")
-                        .append(iinc.incr).append("));\n");
+                String local = localVar(iinc.var, "i");
+                code.append("    ").append(local).append(" = (jint)((uint32_t)").append(local).append(" + (uint32_t)")
+                        .append(iinc.incr).append(");\n");
+            }
                 break;
 
             case Opcodes.LCMP:
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp-1].j > stack[sp].j) stack[sp-1].i = 1;\n");
-                code.append("    else if (stack[sp-1].j == stack[sp].j) stack[sp-1].i = 0;\n");
-                code.append("    else stack[sp-1].i = -1;\n");
+                binaryOp(code, "j", "j", "i", "(%1$s > %2$s) ? 1 : (%1$s == %2$s) ? 0 : -1");
                 break;
             case Opcodes.FCMPL:
             case Opcodes.FCMPG:
-                // TODO: Handle NaN correctly for L/G
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp-1].f > stack[sp].f) stack[sp-1].i = 1;\n");
-                code.append("    else if (stack[sp-1].f == stack[sp].f) stack[sp-1].i = 0;\n");
-                code.append("    else if (stack[sp-1].f < stack[sp].f) stack[sp-1].i = -1;\n");
-                code.append("    else stack[sp-1].i = ").append(opcode == Opcodes.FCMPG ? "1" : "-1").append(";\n");
-                break;
             case Opcodes.DCMPL:
-            case Opcodes.DCMPG:
-                // TODO: Handle NaN correctly
-                code.append("    sp--;\n");
-                code.append("    if (stack[sp-1].d > stack[sp].d) stack[sp-1].i = 1;\n");
-                code.append("    else if (stack[sp-1].d == stack[sp].d) stack[sp-1].i = 0;\n");
-                code.append("    else if (stack[sp-1].d < stack[sp].d) stack[sp-1].i = -1;\n");
-                code.append("    else stack[sp-1].i = ").append(opcode == Opcodes.DCMPG ? "1" : "-1").append(";\n");
+            case Opcodes.DCMPG: {
+                // Every comparison with NaN is false, so NaN ends up in the last branch
+                String kind = opcode == Opcodes.FCMPL || opcode == Opcodes.FCMPG ? "f" : "d";
+                String nan = opcode == Opcodes.FCMPG || opcode == Opcodes.DCMPG ? "1" : "-1";
+                binaryOp(code, kind, kind, "i",
+                        "(%1$s > %2$s) ? 1 : (%1$s == %2$s) ? 0 : (%1$s < %2$s) ? -1 : " + nan);
+            }
                 break;
 
             // Array Stores
@@ -1555,19 +2893,19 @@ public class CGenerator {
             case Opcodes.BASTORE:
             case Opcodes.CASTORE:
             case Opcodes.SASTORE:
+                if (currentPinning != null && currentPinning.getPinnedLocal(currentIndex) >= 0) {
+                    generatePinnedAccess(code, opcode, currentIndex, returnType);
+                    break;
+                }
                 code.append("    {\n");
                 if (opcode == Opcodes.AASTORE) {
-                    code.append("        jobject val = stack[--sp].l;\n");
-                    code.append("        jint idx = stack[--sp].i;\n");
-                    code.append("        jobjectArray arr = (jobjectArray)stack[--sp].l;\n");
+                    code.append("        jobject val = ").append(pop("l")).append(";\n");
+                    code.append("        jint idx = ").append(pop("i")).append(";\n");
+                    code.append("        jobjectArray arr = (jobjectArray)").append(pop("l")).append(";\n");
                     code.append("        if (arr != NULL) {\n");
                     code.append("            (*env)->SetObjectArrayElement(env, arr, idx, val);\n");
                     code.append("        } else {\n");
-                    code.append(
-                            "            jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                    code.append("            if (npeCls != NULL) {\n");
-                    code.append("                (*env)->ThrowNew(env, npeCls, \"Array is null\");\n");
-                    code.append("            }\n");
+                    code.append("            throw_npe(env, \"Array is null\");\n");
                     code.append("        }\n");
                 } else {
                     String valType, stackField, funcName, arrayCast;
@@ -1608,39 +2946,45 @@ public class CGenerator {
                         arrayCast = "jbyteArray";
                     }
 
-                    code.append("        ").append(valType).append(" val = stack[--sp].").append(stackField)
+                    code.append("        ").append(valType).append(" val = ").append(pop(stackField))
                             .append(";\n");
-                    code.append("        jint idx = stack[--sp].i;\n");
-                    code.append("        jarray arr = (jarray)stack[--sp].l;\n");
+                    code.append("        jint idx = ").append(pop("i")).append(";\n");
+                    code.append("        jarray arr = (jarray)").append(pop("l")).append(";\n");
                     code.append("        if (arr != NULL) {\n");
 
                     if (opcode == Opcodes.BASTORE) {
-                        code.append(
-                                "            if ((*env)->IsInstanceOf(env, arr, (*env)->FindClass(env, \"[Z\"))) {\n");
-                        code.append("                jboolean b = (jboolean)val;\n");
-                        code.append(
-                                "                (*env)->SetBooleanArrayRegion(env, (jbooleanArray)arr, idx, 1, &b);\n");
-                        code.append("            } else {\n");
-                        code.append("                jbyte b = (jbyte)val;\n");
-                        code.append("                (*env)->SetByteArrayRegion(env, (jbyteArray)arr, idx, 1, &b);\n");
-                        code.append("            }\n");
+                        char kind = getByteArrayKind(currentIndex);
+                        if (kind == 0) {
+                            String booleanArray = classSymbol(code, "cls", "[Z", currentIndex, returnType);
+                            code.append("            if ((*env)->IsInstanceOf(env, arr, ").append(booleanArray)
+                                    .append(")) {\n");
+                            code.append(byteArrayAccess(true, true));
+                            code.append("            } else {\n");
+                            code.append(byteArrayAccess(true, false));
+                            code.append("            }\n");
+                        } else {
+                            code.append("            {\n");
+                            code.append(byteArrayAccess(true, kind == 'Z'));
+                            code.append("            }\n");
+                        }
                     } else {
                         code.append("            (*env)->").append(funcName).append("(env, (").append(arrayCast)
                                 .append(")arr, idx, 1, &val);\n");
                     }
 
                     code.append("        } else {\n");
-                    code.append(
-                            "            jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                    code.append("            if (npeCls != NULL) {\n");
-                    code.append("                (*env)->ThrowNew(env, npeCls, \"Array is null\");\n");
-                    code.append("            }\n");
+                    code.append("            throw_npe(env, \"Array is null\");\n");
                     code.append("        }\n");
                 }
                 code.append(generateExceptionHandling(currentIndex, returnType));
                 code.append("    }\n");
                 break;
 
+            case Opcodes.INVOKEDYNAMIC:
+                // Only string concatenations are left, see IndyLowering
+                code.append(generateConcat((InvokeDynamicInsnNode) insn, currentIndex, returnType));
+                break;
+
             // Method Calls
             case Opcodes.INVOKEVIRTUAL:
             case Opcodes.INVOKESTATIC:
@@ -1653,17 +2997,22 @@ public class CGenerator {
                 Type callReturnType = Type.getReturnType(methodDesc);
                 Type[] argTypes = Type.getArgumentTypes(methodDesc);
 
-                String methodHash = String.valueOf(Math.abs(insn.hashCode()));
+                String methodHash = String.valueOf(currentIndex);
 
                 // ==================== C 层内联函数路由 ====================
                 // 检查是否可以使用 C 层内联实现
-                String inlineCode = getInlineImplementation(ownerClass, methodName, methodDesc, methodHash, returnType);
+                String inlineCode = getInlineImplementation(ownerClass, methodName, methodDesc, currentIndex, returnType);
                 if (inlineCode != null) {
                     code.append(inlineCode);
                     break;
                 }
                 // ==================== End 内联路由 ====================
 
+                if (opcode == Opcodes.INVOKESTATIC && methodName.startsWith(IndyLowering.CONSTANT_WRAPPER)) {
+                    code.append(generateConstantIndy(ownerClass, methodName, methodDesc, currentIndex, returnType));
+                    break;
+                }
+
                 // Optimize: Direct C call for same-class static/private methods
                 boolean isStatic = (opcode == Opcodes.INVOKESTATIC);
                 boolean isSpecial = (opcode == Opcodes.INVOKESPECIAL);
@@ -1686,35 +3035,35 @@ public class CGenerator {
 
                 /* PushLocalFrame removed */
 
-                code.append("    jvalue args_").append(methodHash).append("[").append(Math.max(1, argTypes.length))
-                        .append("];\n");
-                code.append("    memset(args_").append(methodHash).append(", 0, sizeof(args_").append(methodHash)
-                        .append("));\n");
+                // Arguments are passed straight from their stack variables: as parameters to direct calls, through
+                // the variadic Call*Method forms to JNI (which promote booleans, chars, bytes, shorts and floats the way
+                // JNI reads them back)
+                String[] args = new String[argTypes.length];
                 for (int i = argTypes.length - 1; i >= 0; i--) {
-                    Type argType = argTypes[i];
-                    String field = getTypeField(argType);
-                    if (argType.getSort() == Type.OBJECT || argType.getSort() == Type.ARRAY) {
-                        code.append("    {\n");
-                        code.append("        jobject tmp = stack[--sp].l;\n");
-                        code.append("        if (tmp != NULL) {\n");
-                        code.append("            args_").append(methodHash).append("[").append(i).append("].l = tmp;\n");
-                        code.append("        } else {\n");
-                        code.append("            args_").append(methodHash).append("[").append(i)
-                                .append("].l = NULL;\n");
-                        code.append("        }\n");
-                        code.append("    }\n");
-                    } else {
-                        code.append("    args_").append(methodHash).append("[").append(i).append("].").append(field)
-                                .append(" = stack[--sp].").append(field).append(";\n");
-                    }
+                    args[i] = pop(getTypeField(argTypes[i]));
+                }
+                String argList = args.length == 0 ? "" : ", " + String.join(", ", args);
+
+                if (currentConstructions.containsKey(currentIndex)) {
+                    // NEW/DUP/<init>: drop the receiver placeholder, the copy below it becomes the new object
+                    pop("l");
+                    String cls = classSymbol(code, "cls_" + methodHash, ownerClass, currentIndex, returnType);
+                    String mid = methodSymbol(code, "mid_" + methodHash, ownerClass, methodName, methodDesc, false,
+                            currentIndex, returnType);
+                    code.append("    ").append(peek(0, "l")).append(" = (*env)->NewObject(env, ").append(cls)
+                            .append(", ").append(mid).append(argList).append(");\n");
+                    code.append(generateExceptionHandling(currentIndex, returnType));
+                    break;
                 }
 
                 // Optimized Direct Call Logic
                 // Check if target is native-ized
                 boolean isNativeTarget = processor.isNative(ownerClass, methodName, methodDesc);
 
-                boolean canDirectCall = isStatic || isSpecial;
-                if (!canDirectCall && isNativeTarget) {
+                // A static call into another class goes through JNI, which initializes that class and so registers
+                // its natives and resolves its symbols first; a final owner or method only settles virtual dispatch
+                boolean canDirectCall = (isStatic && ownerClass.equals(currentClassName)) || isSpecial;
+                if (!canDirectCall && !isStatic && isNativeTarget) {
                     ClassWrapper ownerCW = processor.getJnic().getClasses().get(ownerClass);
                     if (ownerCW != null) {
                         if (ownerCW.isFinal()) {
@@ -1728,44 +3077,75 @@ public class CGenerator {
                     }
                 }
 
+                // Class hierarchy analysis: a virtual call with a single implementation in the input
+                String directOwner = ownerClass;
+                List<String> guardClasses = List.of();
+                if (!canDirectCall && !isStatic && !isSpecial && !config.getDevirtualize().equals("off")) {
+                    ClassHierarchy.Target target = getHierarchy().resolve(ownerClass, methodName, methodDesc);
+                    boolean guarded = config.getDevirtualize().equals("guarded")
+                            && (target == null || (target.method().access & Opcodes.ACC_PRIVATE) == 0);
+                    if (target != null && processor.isNative(target.owner(), methodName, methodDesc)
+                            && (!guarded || target.receivers().size() <= MAX_GUARD_CLASSES)) {
+                        canDirectCall = true;
+                        isNativeTarget = true;
+                        directOwner = target.owner();
+                        guardClasses = guarded ? target.receivers() : List.of();
+                    }
+                }
+                // The JVM only takes the monitor of a synchronized method when it is called through the JVM
+                if (canDirectCall && isSynchronized(directOwner, methodName, methodDesc)) {
+                    canDirectCall = false;
+                }
+
                 if (canDirectCall && isNativeTarget
-                        && !methodName.startsWith("<") && !methodName.startsWith("indy_wrapper_")) {
+                        && !methodName.startsWith("<") && !methodName.startsWith(IndyLowering.WRAPPER)) {
                     // Direct Call
                     // Use hex string here too
-                    String cFunc = "native_" + Integer.toHexString(methodName.hashCode()) + "_"
-                            + Integer.toHexString(ownerClass.hashCode());
+                    String cFunc = getFunctionName(directOwner, methodName, methodDesc);
+                    // The target may live in another translation unit
+                    functionPrototypes.add(getPrototype(cFunc, methodDesc) + ";");
 
                     if (!isStatic) {
-                        code.append("    jobject obj_").append(methodHash).append(";\n");
-                        code.append("    {\n");
-                        code.append("        jobject tmp = stack[--sp].l;\n");
-                        code.append("        if (tmp != NULL) {\n");
-                        code.append("            obj_").append(methodHash).append(" = tmp;\n");
-                        code.append("        } else {\n");
-                        code.append("            obj_").append(methodHash).append(" = NULL;\n");
-                        code.append("        }\n");
-                        code.append("    }\n");
-                        code.append("    if (obj_").append(methodHash).append(" == NULL) {\n");
-                        code.append(
-                                "        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                        code.append("        if (npeCls != NULL) {\n");
-                        code.append("            (*env)->ThrowNew(env, npeCls, \"Null pointer access\");\n");
-                        code.append("        }\n");
+                        String obj = pop("l");
+                        // Classes defined at runtime were not part of the analysis, they go through the JVM
+                        String guard = null;
+                        String fallback = null;
+                        if (!guardClasses.isEmpty()) {
+                            List<String> receivers = new ArrayList<>();
+                            for (String receiver : guardClasses) {
+                                receivers.add(classSymbol(code, "rcls_" + methodHash + "_" + receivers.size(),
+                                        receiver, currentIndex, returnType));
+                            }
+                            String mid = methodSymbol(code, "mid_" + methodHash, ownerClass, methodName, methodDesc,
+                                    false, currentIndex, returnType);
+                            guard = generateReceiverGuard(methodHash, obj, receivers);
+                            fallback = "(*env)->Call" + getJNICallType(callReturnType) + "Method(env, " + obj + ", "
+                                    + mid + argList + ")";
+                        }
+
+                        code.append("    if (").append(obj).append(" == NULL) {\n");
+                        code.append("        throw_npe(env, \"Null pointer access\");\n");
                         code.append("    } else {\n");
 
-                        code.append("        ");
+                        String direct = cFunc + "(env, " + obj + argList + ")";
                         if (callReturnType.getSort() != Type.VOID) {
-                            code.append(getJNIType(callReturnType)).append(" res_").append(methodHash).append(" = ");
+                            code.append("        ").append(getJNIType(callReturnType)).append(" res_")
+                                    .append(methodHash).append(";\n");
                         }
-                        code.append(cFunc).append("(env, obj_").append(methodHash);
-                        for (int i = 0; i < argTypes.length; i++) {
-                            code.append(", args_").append(methodHash).append("[").append(i).append("].")
-                                    .append(getTypeField(argTypes[i]));
+                        String assign = callReturnType.getSort() != Type.VOID ? "res_" + methodHash + " = " : "";
+                        if (guard != null) {
+                            code.append(guard);
+                            code.append("        if (direct_").append(methodHash).append(") {\n");
+                            code.append("            ").append(assign).append(direct).append(";\n");
+                            code.append("        } else {\n");
+                            code.append("            ").append(assign).append(fallback).append(";\n");
+                            code.append("        }\n");
+                        } else {
+                            code.append("        ").append(assign).append(direct).append(";\n");
                         }
-                        code.append(");\n");
 
                         if (callReturnType.getSort() != Type.VOID) {
-                            code.append("        stack[sp++].").append(getTypeField(callReturnType)).append(" = res_")
+                            code.append("        ").append(push(getTypeField(callReturnType))).append(" = res_")
                                     .append(methodHash).append(";\n");
                         }
                         code.append("    }\n");
@@ -1774,15 +3154,10 @@ public class CGenerator {
                         if (callReturnType.getSort() != Type.VOID) {
                             code.append(getJNIType(callReturnType)).append(" res_").append(methodHash).append(" = ");
                         }
-                        code.append(cFunc).append("(env, NULL");
-                        for (int i = 0; i < argTypes.length; i++) {
-                            code.append(", args_").append(methodHash).append("[").append(i).append("].")
-                                    .append(getTypeField(argTypes[i]));
-                        }
-                        code.append(");\n");
+                        code.append(cFunc).append("(env, NULL").append(argList).append(");\n");
 
                         if (callReturnType.getSort() != Type.VOID) {
-                            code.append("    stack[sp++].").append(getTypeField(callReturnType)).append(" = res_")
+                            code.append("    ").append(push(getTypeField(callReturnType))).append(" = res_")
                                     .append(methodHash).append(";\n");
                         }
                     }
@@ -1794,136 +3169,77 @@ public class CGenerator {
                 } else if (ownerClass.equals("java/lang/String") && methodName.equals("equals")
                         && methodDesc.equals("(Ljava/lang/Object;)Z")) {
                     // Optimized String.equals implementation in C
-                    // Args are already popped into args_...
-                    // arg0: this (from stack), arg1: other (args_[0])
-                    // Wait, args_... calculation above pops args in reverse order.
-                    // Stack: [..., this, arg0, arg1]
-                    // Loop pops: arg1 -> args[1], arg0 -> args[0].
-                    // Then stack top is 'this'.
-                    // For INVOKEVIRTUAL:
-                    // stack[--sp].l is 'this'.
-
-                    // We need to access 'this' and the argument.
-                    // The 'args_' array logic above only captured the METHOD ARGUMENTS.
-                    // 'this' is popped separately for INVOKEVIRTUAL/SPECIAL/INTERFACE.
-                    // See below: "jobject obj_... = stack[--sp].l;"
-
-                    // So we can insert our optimization here.
+                    // The argument is already popped into args[0], 'this' is right below it
 
                     // 1. Get 'this' object
-                    code.append("    jobject obj_").append(methodHash).append(";\n");
-                    code.append("    {\n");
-                    code.append("        jobject tmp = stack[--sp].l;\n");
-                    code.append("        if (tmp != NULL) {\n");
-                    code.append("            obj_").append(methodHash).append(" = tmp;\n");
-                    code.append("        } else {\n");
-                    code.append("            obj_").append(methodHash).append(" = NULL;\n");
-                    code.append("        }\n");
-                    code.append("    }\n");
-
-                    // 2. Get argument (Object other)
-                    code.append("    jobject other_").append(methodHash).append(" = args_").append(methodHash)
-                            .append("[0].l;\n");
+                    String obj = pop("l");
 
-                    // 3. Check for NULL 'this' (Java throws NPE)
-                    code.append("    if (obj_").append(methodHash).append(" == NULL) {\n");
-                    code.append(
-                            "        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                    code.append("        if (npeCls != NULL) {\n");
-                    code.append("            (*env)->ThrowNew(env, npeCls, \"Null pointer access\");\n");
-                    code.append("        }\n");
+                    // 2. Check for NULL 'this' (Java throws NPE)
+                    code.append("    if (").append(obj).append(" == NULL) {\n");
+                    code.append("        throw_npe(env, \"Null pointer access\");\n");
+                    code.append(generateExceptionExit(currentIndex, returnType));
                     code.append("    } else {\n");
 
-                    // 4. Call helper function
-                    code.append("        jboolean res_").append(methodHash).append(" = inline_string_equals(env, obj_")
-                            .append(methodHash).append(", other_").append(methodHash).append(");\n");
-                    code.append("        stack[sp++].i = res_").append(methodHash).append(";\n");
+                    // 3. Call helper function
+                    code.append("        jboolean res_").append(methodHash).append(" = inline_string_equals(env, ")
+                            .append(obj).append(", ").append(args[0]).append(");\n");
+                    code.append("        ").append(push("i")).append(" = res_").append(methodHash).append(";\n");
                     code.append("    }\n");
 
                     code.append(generateExceptionHandling(currentIndex, returnType));
 
                 } else {
                     // Standard JNI Call
-                    code.append("    static jclass cls_").append(methodHash).append(" = NULL;\n");
-                    code.append("    static jmethodID mid_").append(methodHash).append(" = NULL;\n");
-                    code.append("    if (mid_").append(methodHash).append(" == NULL) {\n");
-                    code.append("        jclass tmp = (*env)->FindClass(env, \"").append(ownerClass).append("\");\n");
-                    code.append("        if (tmp == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    code.append("        cls_").append(methodHash).append(" = (*env)->NewGlobalRef(env, tmp);\n");
-                    code.append("        (*env)->DeleteLocalRef(env, tmp);\n");
-                    code.append("        if (cls_").append(methodHash).append(" == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    String midFunc = isStatic ? "GetStaticMethodID" : "GetMethodID";
-                    code.append("        mid_").append(methodHash).append(" = (*env)->").append(midFunc)
-                            .append("(env, cls_").append(methodHash).append(", \"").append(methodName).append("\", \"")
-                            .append(methodDesc).append("\");\n");
-                    code.append("        if (mid_").append(methodHash).append(" == NULL) {\n");
-                    if (returnType.getSort() == Type.VOID) {
-                        code.append("            return;\n");
-                    } else {
-                        code.append("            return 0;\n");
-                    }
-                    code.append("        }\n");
-                    code.append("    }\n");
-
-                    if (!isStatic) {
-                        code.append("    jobject obj_").append(methodHash).append(";\n");
-                        code.append("    {\n");
-                        code.append("        jobject tmp = stack[--sp].l;\n");
-                        code.append("        if (tmp != NULL) {\n");
-                        code.append("            obj_").append(methodHash).append(" = tmp;\n");
-                        code.append("        } else {\n");
-                        code.append("            obj_").append(methodHash).append(" = NULL;\n");
-                        code.append("        }\n");
-                        code.append("    }\n");
-                    }
-
+                    String mid = methodSymbol(code, "mid_" + methodHash, ownerClass, methodName, methodDesc, isStatic,
+                            currentIndex, returnType);
+                    String cls = isStatic || isSpecial
+                            ? classSymbol(code, "cls_" + methodHash, ownerClass, currentIndex, returnType)
+                            : null;
+                    InlineCache cache = !isStatic && !isSpecial && config.isInlineCache()
+                            && !methodName.startsWith(IndyLowering.WRAPPER)
+                            ? getInlineCache(ownerClass, methodName, methodDesc)
+                            : null;
+
+                    String obj = isStatic ? null : pop("l");
                     if (!isStatic) {
-                        code.append("    if (obj_").append(methodHash).append(" == NULL) {\n");
-                        code.append(
-                                "        jclass npeCls = (*env)->FindClass(env, \"java/lang/NullPointerException\");\n");
-                        code.append("        if (npeCls != NULL) {\n");
-                        code.append("            (*env)->ThrowNew(env, npeCls, \"Null pointer access\");\n");
-                        code.append("        }\n");
-                        if (returnType.getSort() == Type.VOID) {
-                            code.append("        return;\n");
-                        } else {
-                            code.append("        return 0;\n");
-                        }
+                        code.append("    if (").append(obj).append(" == NULL) {\n");
+                        code.append("        throw_npe(env, \"Null pointer access\");\n");
+                        code.append(generateExceptionExit(currentIndex, returnType));
                         code.append("    }\n");
                     }
 
                     String callType = getJNICallType(callReturnType);
-                    String callFunc = isStatic ? "CallStatic" + callType + "MethodA" : "Call" + callType + "MethodA";
+                    // INVOKESPECIAL (constructors, private and super methods) must not dispatch virtually
+                    String callFunc = isStatic ? "CallStatic" + callType + "Method"
+                            : isSpecial ? "CallNonvirtual" + callType + "Method" : "Call" + callType + "Method";
 
-                    code.append("    ");
-                    if (callReturnType.getSort() != Type.VOID) {
-                        code.append(getJNIType(
-                                callType.equals("Object") ? Type.getObjectType("java/lang/Object") : callReturnType))
-                                .append(" res_").append(methodHash).append(" = ");
-                    }
-                    code.append("(*env)->").append(callFunc).append("(env, ");
-                    if (isStatic) {
-                        code.append("cls_").append(methodHash);
+                    if (cache != null) {
+                        if (callReturnType.getSort() != Type.VOID) {
+                            code.append("    ").append(getJNIType(callType.equals("Object")
+                                    ? Type.getObjectType("java/lang/Object") : callReturnType))
+                                    .append(" res_").append(methodHash).append(";\n");
+                        }
+                        String assign = callReturnType.getSort() != Type.VOID ? "res_" + methodHash + " = " : "";
+                        code.append(generateInlineCache(methodHash, cache, ownerClass + "." + methodName + methodDesc,
+                                obj, assign, argList, "(*env)->" + callFunc + "(env, " + obj + ", " + mid + argList + ")"));
                     } else {
-                        code.append("obj_").append(methodHash);
+                        code.append("    ");
+                        if (callReturnType.getSort() != Type.VOID) {
+                            code.append(getJNIType(
+                                    callType.equals("Object") ? Type.getObjectType("java/lang/Object") : callReturnType))
+                                    .append(" res_").append(methodHash).append(" = ");
+                        }
+                        code.append("(*env)->").append(callFunc).append("(env, ");
+                        code.append(isStatic ? cls : obj).append(", ");
+                        if (isSpecial) {
+                            code.append(cls).append(", ");
+                        }
+                        code.append(mid).append(argList).append(");\n");
                     }
-                    code.append(", mid_").append(methodHash).append(", args_").append(methodHash).append(");\n");
 
                     if (callReturnType.getSort() != Type.VOID) {
                         String field = getTypeField(callReturnType);
-                        code.append("    stack[sp++].").append(field).append(" = res_").append(methodHash)
+                        code.append("    ").append(push(field)).append(" = res_").append(methodHash)
                                 .append(";\n");
                     }
 
@@ -1939,9 +3255,8 @@ public class CGenerator {
             case Opcodes.IFGT:
             case Opcodes.IFLE:
                 JumpInsnNode jinsn = (JumpInsnNode) insn;
-                int targetState = jinsn.label.hashCode();
 
-                code.append("    if (stack[--sp].i ");
+                code.append("    if (").append(pop("i")).append(" ");
                 switch (opcode) {
                     case Opcodes.IFEQ:
                         code.append("== 0");
@@ -1962,7 +3277,7 @@ public class CGenerator {
                         code.append("<= 0");
                         break;
                 }
-                code.append(") { goto L").append(targetState).append("; }\n");
+                code.append(") ").append(jumpTo(currentIndex, jinsn.label)).append("\n");
                 break;
 
             case Opcodes.IF_ICMPEQ:
@@ -1972,11 +3287,10 @@ public class CGenerator {
             case Opcodes.IF_ICMPGT:
             case Opcodes.IF_ICMPLE:
                 JumpInsnNode jinsn2 = (JumpInsnNode) insn;
-                int targetState2 = jinsn2.label.hashCode();
 
-                code.append("    jint v2_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].i;\n");
-                code.append("    jint v1_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].i;\n");
-                code.append("    if (v1_").append(Math.abs(insn.hashCode())).append(" ");
+                code.append("    jint v2_").append(currentIndex).append(" = ").append(pop("i")).append(";\n");
+                code.append("    jint v1_").append(currentIndex).append(" = ").append(pop("i")).append(";\n");
+                code.append("    if (v1_").append(currentIndex).append(" ");
                 switch (opcode) {
                     case Opcodes.IF_ICMPEQ:
                         code.append("==");
@@ -1997,132 +3311,145 @@ public class CGenerator {
                         code.append("<=");
                         break;
                 }
-                code.append(" v2_").append(Math.abs(insn.hashCode())).append(") { goto L").append(targetState2)
-                        .append("; }\n");
+                code.append(" v2_").append(currentIndex).append(") ").append(jumpTo(currentIndex, jinsn2.label))
+                        .append("\n");
                 break;
 
             case Opcodes.IF_ACMPEQ:
             case Opcodes.IF_ACMPNE:
                 JumpInsnNode jinsn3 = (JumpInsnNode) insn;
-                int targetState3 = jinsn3.label.hashCode();
-
-                code.append("    jobject v2_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].l;\n");
-                code.append("    jobject v1_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].l;\n");
-                if (opcode == Opcodes.IF_ACMPEQ) {
-                    code.append("    if ((*env)->IsSameObject(env, v1_").append(Math.abs(insn.hashCode()))
-                            .append(", v2_").append(Math.abs(insn.hashCode())).append(")) { goto L")
-                            .append(targetState3).append("; }\n");
-                } else {
-                    code.append("    if (!(*env)->IsSameObject(env, v1_").append(Math.abs(insn.hashCode()))
-                            .append(", v2_").append(Math.abs(insn.hashCode())).append(")) { goto L")
-                            .append(targetState3).append("; }\n");
-                }
-                // We should also delete the refs?
-                // They are popped.
-                code.append("    if (v1_").append(Math.abs(insn.hashCode()))
-                        .append(" != NULL) (*env)->DeleteLocalRef(env, v1_").append(Math.abs(insn.hashCode()))
-                        .append(");\n");
-                code.append("    if (v2_").append(Math.abs(insn.hashCode()))
-                        .append(" != NULL) (*env)->DeleteLocalRef(env, v2_").append(Math.abs(insn.hashCode()))
-                        .append(");\n");
+
+                code.append("    jobject v2_").append(currentIndex).append(" = ").append(pop("l")).append(";\n");
+                code.append("    jobject v1_").append(currentIndex).append(" = ").append(pop("l")).append(";\n");
+                code.append("    if (").append(opcode == Opcodes.IF_ACMPEQ ? "" : "!")
+                        .append("(*env)->IsSameObject(env, v1_").append(currentIndex).append(", v2_")
+                        .append(currentIndex).append(")) ").append(jumpTo(currentIndex, jinsn3.label)).append("\n");
                 break;
 
             case Opcodes.GOTO:
                 JumpInsnNode gotoInsn = (JumpInsnNode) insn;
-                code.append("    goto L").append(gotoInsn.label.hashCode()).append(";\n");
+                code.append("    ").append(jumpTo(currentIndex, gotoInsn.label)).append("\n");
+                break;
+
+            case Opcodes.TABLESWITCH: {
+                TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+                code.append("    switch (").append(pop("i")).append(") {\n");
+                for (int i = 0; i < tableSwitch.labels.size(); i++) {
+                    code.append("        case ").append(tableSwitch.min + i).append(": ")
+                            .append(jumpTo(currentIndex, tableSwitch.labels.get(i))).append("\n");
+                }
+                code.append("        default: ").append(jumpTo(currentIndex, tableSwitch.dflt)).append("\n");
+                code.append("    }\n");
+            }
+                break;
+            case Opcodes.LOOKUPSWITCH: {
+                LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+                code.append("    switch (").append(pop("i")).append(") {\n");
+                for (int i = 0; i < lookupSwitch.keys.size(); i++) {
+                    code.append("        case ").append(lookupSwitch.keys.get(i)).append(": ")
+                            .append(jumpTo(currentIndex, lookupSwitch.labels.get(i))).append("\n");
+                }
+                code.append("        default: ").append(jumpTo(currentIndex, lookupSwitch.dflt)).append("\n");
+                code.append("    }\n");
+            }
                 break;
 
             case Opcodes.IFNULL:
             case Opcodes.IFNONNULL:
                 JumpInsnNode jnull = (JumpInsnNode) insn;
-                int targetNull = jnull.label.hashCode();
-                code.append("    jobject vnull_").append(Math.abs(insn.hashCode())).append(" = stack[--sp].l;\n");
-                code.append("    if (vnull_").append(Math.abs(insn.hashCode()))
-                        .append(opcode == Opcodes.IFNULL ? " == " : " != ").append("NULL) { goto L").append(targetNull)
-                        .append("; }\n");
-                code.append("    if (vnull_").append(Math.abs(insn.hashCode()))
-                        .append(" != NULL) (*env)->DeleteLocalRef(env, vnull_").append(Math.abs(insn.hashCode()))
-                        .append(");\n");
+                code.append("    jobject vnull_").append(currentIndex).append(" = ").append(pop("l")).append(";\n");
+                code.append("    if (vnull_").append(currentIndex)
+                        .append(opcode == Opcodes.IFNULL ? " == " : " != ").append("NULL) ")
+                        .append(jumpTo(currentIndex, jnull.label)).append("\n");
                 break;
 
             // Type Conversion
             case Opcodes.I2L:
-                code.append("    stack[sp-1].j = (jlong)stack[sp-1].i;\n");
+                unaryOp(code, "i", "j", "(jlong)%s");
                 break;
             case Opcodes.I2F:
-                code.append("    stack[sp-1].f = (jfloat)stack[sp-1].i;\n");
+                unaryOp(code, "i", "f", "(jfloat)%s");
                 break;
             case Opcodes.I2D:
-                code.append("    stack[sp-1].d = (jdouble)stack[sp-1].i;\n");
+                unaryOp(code, "i", "d", "(jdouble)%s");
                 break;
             case Opcodes.L2I:
-                code.append("    stack[sp-1].i = (jint)stack[sp-1].j;\n");
+                unaryOp(code, "j", "i", "(jint)%s");
                 break;
             case Opcodes.L2F:
-                code.append("    stack[sp-1].f = (jfloat)stack[sp-1].j;\n");
+                unaryOp(code, "j", "f", "(jfloat)%s");
                 break;
             case Opcodes.L2D:
-                code.append("    stack[sp-1].d = (jdouble)stack[sp-1].j;\n");
+                unaryOp(code, "j", "d", "(jdouble)%s");
                 break;
             case Opcodes.F2I:
-                code.append("    stack[sp-1].i = (jint)stack[sp-1].f;\n");
+                unaryOp(code, "f", "i", "jnic_f2i(%s)");
                 break;
             case Opcodes.F2L:
-                code.append("    stack[sp-1].j = (jlong)stack[sp-1].f;\n");
+                unaryOp(code, "f", "j", "jnic_f2l(%s)");
                 break;
             case Opcodes.F2D:
-                code.append("    stack[sp-1].d = (jdouble)stack[sp-1].f;\n");
+                unaryOp(code, "f", "d", "(jdouble)%s");
                 break;
             case Opcodes.D2I:
-                code.append("    stack[sp-1].i = (jint)stack[sp-1].d;\n");
+                unaryOp(code, "d", "i", "jnic_d2i(%s)");
                 break;
             case Opcodes.D2L:
-                code.append("    stack[sp-1].j = (jlong)stack[sp-1].d;\n");
+                unaryOp(code, "d", "j", "jnic_d2l(%s)");
                 break;
             case Opcodes.D2F:
-                code.append("    stack[sp-1].f = (jfloat)stack[sp-1].d;\n");
+                unaryOp(code, "d", "f", "(jfloat)%s");
                 break;
             case Opcodes.I2B:
-                code.append("    stack[sp-1].i = (jbyte)stack[sp-1].i;\n");
+                unaryOp(code, "i", "i", "(jbyte)%s");
                 break;
             case Opcodes.I2C:
-                code.append("    stack[sp-1].i = (jchar)stack[sp-1].i;\n");
+                unaryOp(code, "i", "i", "(jchar)%s");
                 break;
             case Opcodes.I2S:
-                code.append("    stack[sp-1].i = (jshort)stack[sp-1].i;\n");
+                unaryOp(code, "i", "i", "(jshort)%s");
                 break;
 
             // Returns
             case Opcodes.RETURN:
-                code.append("    (*env)->PopLocalFrame(env, NULL);\n");
+                code.append(framePop());
                 code.append("    return;\n");
                 break;
             case Opcodes.IRETURN:
-                code.append("    (*env)->PopLocalFrame(env, NULL);\n");
-                code.append("    return stack[--sp].i;\n");
+                code.append(framePop());
+                code.append("    return ").append(pop("i")).append(";\n");
                 break;
             case Opcodes.LRETURN:
-                code.append("    (*env)->PopLocalFrame(env, NULL);\n");
-                code.append("    return stack[--sp].j;\n");
+                code.append(framePop());
+                code.append("    return ").append(pop("j")).append(";\n");
                 break;
             case Opcodes.FRETURN:
-                code.append("    (*env)->PopLocalFrame(env, NULL);\n");
-                code.append("    return stack[--sp].f;\n");
+                code.append(framePop());
+                code.append("    return ").append(pop("f")).append(";\n");
                 break;
             case Opcodes.DRETURN:
-                code.append("    (*env)->PopLocalFrame(env, NULL);\n");
-                code.append("    return stack[--sp].d;\n");
+                code.append(framePop());
+                code.append("    return ").append(pop("d")).append(";\n");
                 break;
             case Opcodes.ARETURN:
-                code.append("    return (*env)->PopLocalFrame(env, stack[--sp].l);\n");
+                code.append("    return (*env)->PopLocalFrame(env, ").append(pop("l")).append(");\n");
                 break;
 
             default:
                 code.append("    // Unhandled opcode: ").append(opcode).append("\n");
                 break;
         }
-        code.append(" }\n");
         // code.append(" // End Instruction Index: ").append(currentIndex).append("\n");
+        if (!isUnconditionalJump(insn) && !isReturn(insn) && currentIndex + 1 < currentFrames.length) {
+            code.append(getReleaseCode(currentIndex, currentIndex + 1));
+        }
+        // A consumed reference whose variable got overwritten by the result is released through a copy
+        for (int position : consumedRefs) {
+            if (pushedRefs.contains(position) && code.indexOf("rel_" + currentIndex + "_" + position) >= 0) {
+                code.insert(0, "    jobject rel_" + currentIndex + "_" + position + " = " + stackVar(position, "l")
+                        + ";\n");
+            }
+        }
         String result = code.toString();
         int braceCount = 0;
         for (char c : result.toCharArray()) {
@@ -2231,36 +3558,63 @@ public class CGenerator {
     /**
      * 检查方法是否可以使用 C 层内联实现，返回生成的 C 代码或 null
      */
-    private String getInlineImplementation(String ownerClass, String methodName, String methodDesc, String methodHash,
+    private String getInlineImplementation(String ownerClass, String methodName, String methodDesc, int index,
             Type returnType) {
         StringBuilder code = new StringBuilder();
+        String methodHash = String.valueOf(index);
+
+        // ==================== java/lang/Math, java/lang/Float, java/lang/Double ====================
+        String pure = PURE_INTRINSICS.get(ownerClass + "." + methodName + methodDesc);
+        if (pure != null) {
+            Type[] args = Type.getArgumentTypes(methodDesc);
+            String result = getTypeField(Type.getReturnType(methodDesc));
+            if (args.length == 1) {
+                unaryOp(code, getTypeField(args[0]), result, pure);
+            } else {
+                binaryOp(code, getTypeField(args[0]), getTypeField(args[1]), result, pure);
+            }
+            return code.toString();
+        }
 
         // ==================== java/lang/String ====================
         if ("java/lang/String".equals(ownerClass)) {
             if ("equals".equals(methodName) && "(Ljava/lang/Object;)Z".equals(methodDesc)) {
-                code.append("    jobject str_other_").append(methodHash).append(" = stack[--sp].l;\n");
-                code.append("    jobject str_this_").append(methodHash).append(" = stack[--sp].l;\n");
-                code.append("    if (str_this_").append(methodHash)
-                        .append(" == NULL) { throw_npe(env, \"String.equals on null\"); }\n");
-                code.append("    else { stack[sp++].i = inline_string_equals(env, str_this_").append(methodHash)
-                        .append(", str_other_").append(methodHash).append("); }\n");
+                code.append("    jobject str_other_").append(methodHash).append(" = ").append(pop("l")).append(";\n");
+                code.append("    jobject str_this_").append(methodHash).append(" = ").append(pop("l")).append(";\n");
+                code.append("    if (str_this_").append(methodHash).append(" == NULL) {\n");
+                code.append("        throw_npe(env, \"String.equals on null\");\n");
+                code.append(generateExceptionExit(index, returnType));
+                code.append("    }\n");
+                code.append("    ").append(push("i")).append(" = inline_string_equals(env, str_this_").append(methodHash)
+                        .append(", str_other_").append(methodHash).append(");\n");
+                code.append(generateExceptionHandling(index, returnType));
+                return code.toString();
+            }
+            if (currentPinning != null && currentPinning.getPinnedLocal(index) >= 0) {
+                generatePinnedString(code, methodName, index, returnType);
                 return code.toString();
             }
             if ("length".equals(methodName) && "()I".equals(methodDesc)) {
-                code.append("    jstring str_").append(methodHash).append(" = (jstring)stack[--sp].l;\n");
-                code.append("    stack[sp++].i = inline_string_length(env, str_").append(methodHash).append(");\n");
+                code.append("    jstring str_").append(methodHash).append(" = (jstring)").append(pop("l")).append(";\n");
+                code.append("    if (str_").append(methodHash).append(" == NULL) {\n");
+                code.append("        throw_npe(env, \"Cannot invoke \\\"String.length()\\\" because value is null\");\n");
+                code.append(generateExceptionExit(index, returnType));
+                code.append("    }\n");
+                code.append("    ").append(push("i")).append(" = inline_string_length(env, str_").append(methodHash).append(");\n");
                 return code.toString();
             }
             if ("hashCode".equals(methodName) && "()I".equals(methodDesc)) {
-                code.append("    jstring str_").append(methodHash).append(" = (jstring)stack[--sp].l;\n");
-                code.append("    stack[sp++].i = inline_string_hashCode(env, str_").append(methodHash).append(");\n");
+                code.append("    jstring str_").append(methodHash).append(" = (jstring)").append(pop("l")).append(";\n");
+                code.append("    ").append(push("i")).append(" = inline_string_hashCode(env, str_").append(methodHash).append(");\n");
+                code.append(generateExceptionHandling(index, returnType));
                 return code.toString();
             }
             if ("charAt".equals(methodName) && "(I)C".equals(methodDesc)) {
-                code.append("    jint idx_").append(methodHash).append(" = stack[--sp].i;\n");
-                code.append("    jstring str_").append(methodHash).append(" = (jstring)stack[--sp].l;\n");
-                code.append("    stack[sp++].i = inline_string_charAt(env, str_").append(methodHash).append(", idx_")
+                code.append("    jint idx_").append(methodHash).append(" = ").append(pop("i")).append(";\n");
+                code.append("    jstring str_").append(methodHash).append(" = (jstring)").append(pop("l")).append(";\n");
+                code.append("    ").append(push("i")).append(" = inline_string_charAt(env, str_").append(methodHash).append(", idx_")
                         .append(methodHash).append(");\n");
+                code.append(generateExceptionHandling(index, returnType));
                 return code.toString();
             }
         }
@@ -2268,93 +3622,8 @@ public class CGenerator {
         // ==================== java/lang/Object ====================
         if ("java/lang/Object".equals(ownerClass)) {
             if ("getClass".equals(methodName) && "()Ljava/lang/Class;".equals(methodDesc)) {
-                code.append("    jobject obj_").append(methodHash).append(" = stack[--sp].l;\n");
-                code.append("    stack[sp++].l = inline_object_getClass(env, obj_").append(methodHash).append(");\n");
-                return code.toString();
-            }
-        }
-
-        // ==================== java/lang/Math ====================
-        if ("java/lang/Math".equals(ownerClass)) {
-            // Math.abs
-            if ("abs".equals(methodName)) {
-                if ("(D)D".equals(methodDesc)) {
-                    code.append("    stack[sp-1].d = inline_math_abs_d(stack[sp-1].d);\n");
-                    return code.toString();
-                }
-                if ("(F)F".equals(methodDesc)) {
-                    code.append("    stack[sp-1].f = inline_math_abs_f(stack[sp-1].f);\n");
-                    return code.toString();
-                }
-                if ("(I)I".equals(methodDesc)) {
-                    code.append("    stack[sp-1].i = inline_math_abs_i(stack[sp-1].i);\n");
-                    return code.toString();
-                }
-                if ("(J)J".equals(methodDesc)) {
-                    code.append("    stack[sp-1].j = inline_math_abs_l(stack[sp-1].j);\n");
-                    return code.toString();
-                }
-            }
-            // Math.max/min
-            if ("max".equals(methodName)) {
-                if ("(DD)D".equals(methodDesc)) {
-                    code.append("    sp--; stack[sp-1].d = inline_math_max_d(stack[sp-1].d, stack[sp].d);\n");
-                    return code.toString();
-                }
-                if ("(II)I".equals(methodDesc)) {
-                    code.append("    sp--; stack[sp-1].i = inline_math_max_i(stack[sp-1].i, stack[sp].i);\n");
-                    return code.toString();
-                }
-            }
-            if ("min".equals(methodName)) {
-                if ("(DD)D".equals(methodDesc)) {
-                    code.append("    sp--; stack[sp-1].d = inline_math_min_d(stack[sp-1].d, stack[sp].d);\n");
-                    return code.toString();
-                }
-                if ("(II)I".equals(methodDesc)) {
-                    code.append("    sp--; stack[sp-1].i = inline_math_min_i(stack[sp-1].i, stack[sp].i);\n");
-                    return code.toString();
-                }
-            }
-            // Math trigonometric
-            if ("sin".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_sin(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("cos".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_cos(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("tan".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_tan(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("sqrt".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_sqrt(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("pow".equals(methodName) && "(DD)D".equals(methodDesc)) {
-                code.append("    sp--; stack[sp-1].d = inline_math_pow(stack[sp-1].d, stack[sp].d);\n");
-                return code.toString();
-            }
-            if ("log".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_log(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("exp".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_exp(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("floor".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_floor(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("ceil".equals(methodName) && "(D)D".equals(methodDesc)) {
-                code.append("    stack[sp-1].d = inline_math_ceil(stack[sp-1].d);\n");
-                return code.toString();
-            }
-            if ("round".equals(methodName) && "(D)J".equals(methodDesc)) {
-                code.append("    stack[sp-1].j = (jlong)inline_math_round(stack[sp-1].d);\n");
+                code.append("    jobject obj_").append(methodHash).append(" = ").append(pop("l")).append(";\n");
+                code.append("    ").append(push("l")).append(" = inline_object_getClass(env, obj_").append(methodHash).append(");\n");
                 return code.toString();
             }
         }
@@ -2362,11 +3631,11 @@ public class CGenerator {
         // ==================== java/lang/System ====================
         if ("java/lang/System".equals(ownerClass)) {
             if ("arraycopy".equals(methodName) && "(Ljava/lang/Object;ILjava/lang/Object;II)V".equals(methodDesc)) {
-                code.append("    jint len_").append(methodHash).append(" = stack[--sp].i;\n");
-                code.append("    jint destPos_").append(methodHash).append(" = stack[--sp].i;\n");
-                code.append("    jobject dest_").append(methodHash).append(" = stack[--sp].l;\n");
-                code.append("    jint srcPos_").append(methodHash).append(" = stack[--sp].i;\n");
-                code.append("    jobject src_").append(methodHash).append(" = stack[--sp].l;\n");
+                code.append("    jint len_").append(methodHash).append(" = ").append(pop("i")).append(";\n");
+                code.append("    jint destPos_").append(methodHash).append(" = ").append(pop("i")).append(";\n");
+                code.append("    jobject dest_").append(methodHash).append(" = ").append(pop("l")).append(";\n");
+                code.append("    jint srcPos_").append(methodHash).append(" = ").append(pop("i")).append(";\n");
+                code.append("    jobject src_").append(methodHash).append(" = ").append(pop("l")).append(";\n");
                 code.append("    inline_system_arraycopy(env, src_").append(methodHash).append(", srcPos_")
                         .append(methodHash);
                 code.append(", dest_").append(methodHash).append(", destPos_").append(methodHash).append(", len_")
@@ -2378,24 +3647,74 @@ public class CGenerator {
         return null; // 无内联实现
     }
 
-    public void finalizeGeneration() {
-        // Append prototypes
-        globalCode.append("\n// Forward Declarations\n");
-        globalCode.append(functionPrototypes);
-        globalCode.append("\n");
+    /**
+     * Writes the common header and the runtime translation unit (helpers and {@code JNI_OnLoad}). Neither depends
+     * on the methods being generated, so the runtime can be compiled while generation is still running.
+     *
+     * @return the runtime C file
+     */
+    public File writeRuntime() {
+        writeFile(new File(Jnic.getInstance().getTmpdir(), "jnic.h"), headerCode.toString());
 
-        // Append method implementations
-        globalCode.append(methodImplementations);
+        StringBuilder runtimeCode = new StringBuilder();
+        runtimeCode.append(getHelperFunctions());
 
         // Generate JNI_OnLoad with global cache initialization
-        globalCode.append("JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {\n");
-        globalCode.append("    g_jvm = vm;\n");
-        globalCode.append("    JNIEnv* env;\n");
-        globalCode.append("    if ((*vm)->GetEnv(vm, (void**)&env, JNI_VERSION_1_6) == JNI_OK) {\n");
-        globalCode.append("        init_global_cache(env);\n");
-        globalCode.append("    }\n");
-        globalCode.append("    return JNI_VERSION_1_6;\n");
-        globalCode.append("}\n\n");
+        runtimeCode.append("JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {\n");
+        runtimeCode.append("    g_jvm = vm;\n");
+        runtimeCode.append("    JNIEnv* env;\n");
+        runtimeCode.append("    if ((*vm)->GetEnv(vm, (void**)&env, JNI_VERSION_1_6) == JNI_OK) {\n");
+        runtimeCode.append("        init_global_cache(env);\n");
+        runtimeCode.append("    }\n");
+        runtimeCode.append("    return JNI_VERSION_1_6;\n");
+        runtimeCode.append("}\n");
+
+        File outFile = getUnitFile("runtime");
+        writeFile(outFile, runtimeCode.toString());
+        return outFile;
+    }
+
+    /**
+     * Writes the methods generated since the last flush as one translation unit.
+     *
+     * @param unitName name of the unit, usually the package of the generated classes
+     * @return the C file, or {@code null} if nothing was generated
+     */
+    public File flushUnit(String unitName) {
+        if (deduplicator.isEmpty()) {
+            return null;
+        }
+        MethodDeduplicator.Unit unit = deduplicator.flush();
+        functionPrototypes.addAll(unit.prototypes());
+        StringBuilder unitCode = new StringBuilder();
+        unitCode.append("#include \"jnic.h\"\n\n");
+        unitCode.append("// Forward Declarations\n");
+        for (String prototype : functionPrototypes) {
+            unitCode.append(prototype).append("\n");
+        }
+        unitCode.append("\n");
+        unitCode.append(unit.code());
+
+        functionPrototypes.clear();
+
+        // Prefixed so that no package can take the name of the runtime or registry unit
+        File outFile = getUnitFile(unitName.isEmpty() ? "default" : "pkg_" + mangle(unitName));
+        writeFile(outFile, unitCode.toString());
+        return outFile;
+    }
+
+    /**
+     * Writes the registration unit. Must be called after every method has been generated.
+     *
+     * @return the registration C file
+     */
+    public File finalizeGeneration() {
+        StringBuilder globalCode = new StringBuilder();
+        // Prototypes of every registered function
+        for (NativeEntry entry : nativeEntries) {
+            globalCode.append(getPrototype(entry.cFunctionName, entry.signature)).append(";\n");
+        }
+        globalCode.append("\n");
 
         // Generate Java_cn_sky_jnic_JNICLoader_registerNatives
         globalCode.append(
@@ -2419,7 +3738,7 @@ public class CGenerator {
         globalCode.append("    }\n\n");
 
         globalCode.append("    jstring nameStr = (jstring)(*env)->CallObjectMethod(env, target, mid_getName);\n");
-        globalCode.append("    if (nameStr == NULL) {\n");
+        globalCode.append("    if ((*env)->ExceptionCheck(env) || nameStr == NULL) {\n");
         globalCode.append("        log_debug(\"nameStr is NULL\\n\");\n");
         globalCode.append("        return;\n");
         globalCode.append("    }\n\n");
@@ -2431,6 +3750,12 @@ public class CGenerator {
         globalCode.append("    }\n");
         globalCode.append("    log_debug(\"Registering natives for class: %s\\n\", className);\n\n");
 
+        // A failed resolution leaves its error pending, which fails the initialization of the class
+        globalCode.append("    if (jnic_init_symbols(env, loader, target) < 0) {\n");
+        globalCode.append("        (*env)->ReleaseStringUTFChars(env, nameStr, className);\n");
+        globalCode.append("        return;\n");
+        globalCode.append("    }\n\n");
+
         // Group methods by class
         Map<String, List<NativeEntry>> classGroups = new HashMap<>();
         for (NativeEntry entry : nativeEntries) {
@@ -2442,7 +3767,7 @@ public class CGenerator {
             String internalName = group.getKey(); // e.g. java/lang/String
             String dotName = internalName.replace('/', '.');
             List<NativeEntry> methods = group.getValue();
-            String safeClassName = internalName.replace('/', '_').replace('$', '_');
+            String safeClassName = mangle(internalName);
 
             if (!first)
                 globalCode.append("    else ");
@@ -2453,6 +3778,8 @@ public class CGenerator {
             // globalCode.append(" printf(\"Match found for %s, registering %d methods\\n\",
             // className, ").append(methods.size()).append("); fflush(stdout);\n");
 
+            globalCode.append(symbols.generateLink(internalName, "        ",
+                    "(*env)->ReleaseStringUTFChars(env, nameStr, className); return;"));
             globalCode.append("        JNINativeMethod methods_").append(safeClassName).append("[] = {\n");
             for (NativeEntry method : methods) {
                 globalCode.append("            {\"").append(method.methodName).append("\", \"")
@@ -2478,12 +3805,48 @@ public class CGenerator {
         globalCode.append("\n    (*env)->ReleaseStringUTFChars(env, nameStr, className);\n");
         globalCode.append("}\n");
 
-        // Write to file
-        File outFile = new File(Jnic.getInstance().getTmpdir(), Jnic.getInstance().getTempC().toString() + ".c");
-        try (FileWriter writer = new FileWriter(outFile)) {
-            writer.write(globalCode.toString());
+        Jnic.getLogger().info("Generated " + deduplicator.getBodyCount() + " distinct bodies for "
+                + deduplicator.getMethodCount() + " methods, " + deduplicator.getSharedCount() + " shared");
+        Jnic.getLogger().info("Symbol table: " + symbols.getClassCount() + " classes, " + symbols.getMemberCount()
+                + " members, " + strings.getStringCount() + " strings");
+
+        // Generated last, generateLink may have added the registered classes to the table
+        File outFile = getUnitFile("registry");
+        writeFile(outFile, "#include \"jnic.h\"\n\n" + symbols.generate() + strings.generate() + globalCode);
+        return outFile;
+    }
+
+    /**
+     * File and C name part for an internal name, escaped the way JNI mangles names so that two names never map to the
+     * same one: {@code /} becomes {@code _}, {@code _} becomes {@code _1} and anything but an ASCII letter or digit
+     * becomes {@code _0xxxx}.
+     */
+    static String mangle(String internalName) {
+        StringBuilder sb = new StringBuilder(internalName.length());
+        for (int i = 0; i < internalName.length(); i++) {
+            char c = internalName.charAt(i);
+            if (c == '/') {
+                sb.append('_');
+            } else if (c == '_') {
+                sb.append("_1");
+            } else if (c < 128 && Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append("_0").append(String.format("%04x", (int) c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private File getUnitFile(String unitName) {
+        return new File(Jnic.getInstance().getTmpdir(), Jnic.getInstance().getTempC().toString() + "_" + unitName + ".c");
+    }
+
+    private void writeFile(File outFile, String content) {
+        try (FileWriter writer = new FileWriter(outFile, StandardCharsets.UTF_8)) {
+            writer.write(content);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException("Failed to write " + outFile.getName(), e);
         }
     }
 }
@@ -0,0 +1,252 @@
+package cn.sky.jnic.generator;
+
+import cn.sky.jnic.utils.asm.ClassWrapper;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class hierarchy of the input and the configured libraries, used to find virtual calls that can only reach one
+ * implementation.
+ * <p>
+ * The analysis assumes a closed world: every class that can be a receiver is known at build time. Classes defined at
+ * runtime (proxies, plugins, generated code) break that assumption, which is why the generator can guard a direct call
+ * with the exact receiver classes found here.
+ */
+public class ClassHierarchy {
+    // Not part of the classpath; interfaces cannot override its public methods
+    private static final String OBJECT = "java/lang/Object";
+
+    private final Map<String, ClassWrapper> input;
+    private final Map<String, ClassWrapper> classpath;
+    private final Map<String, List<String>> subtypes = new HashMap<>();
+
+    /**
+     * Implementation every receiver of a call dispatches to.
+     *
+     * @param owner     class declaring the implementation
+     * @param method    the implementation
+     * @param receivers every concrete class of the input that can be the receiver
+     */
+    public record Target(String owner, MethodNode method, List<String> receivers) {
+    }
+
+    /**
+     * @param input     classes of the input jar
+     * @param classpath input and library classes
+     */
+    public ClassHierarchy(Map<String, ClassWrapper> input, Map<String, ClassWrapper> classpath) {
+        this.input = input;
+        this.classpath = classpath;
+        for (ClassWrapper wrapper : classpath.values()) {
+            if (wrapper.getSuperName() != null) {
+                subtypes.computeIfAbsent(wrapper.getSuperName(), k -> new ArrayList<>()).add(wrapper.getName());
+            }
+            if (wrapper.getInterfaceNames() != null) {
+                for (String itf : wrapper.getInterfaceNames()) {
+                    subtypes.computeIfAbsent(itf, k -> new ArrayList<>()).add(wrapper.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the only implementation a virtual or interface call of {@code owner.name desc} can reach, or
+     *         {@code null} if there may be several, or if a receiver or the method is not part of the input
+     */
+    public Target resolve(String owner, String name, String desc) {
+        if (!input.containsKey(owner)) {
+            return null;
+        }
+        String declaring = findDeclaration(owner, name, desc);
+        if (declaring == null) {
+            return null;
+        }
+        MethodNode resolved = getMethod(declaring, name, desc);
+        if ((resolved.access & Opcodes.ACC_STATIC) != 0) {
+            return null;
+        }
+        if ((resolved.access & Opcodes.ACC_PRIVATE) != 0) {
+            // Private methods are never overridden
+            return input.containsKey(declaring) ? new Target(declaring, resolved, List.of()) : null;
+        }
+
+        String target = null;
+        List<String> receivers = new ArrayList<>();
+        for (String receiver : getSubtypes(owner)) {
+            ClassWrapper wrapper = classpath.get(receiver);
+            if (wrapper.isInterface() || wrapper.isAbstract()) {
+                continue;
+            }
+            if (!input.containsKey(receiver)) {
+                return null;
+            }
+            String selected = select(receiver, name, desc, declaring, resolved);
+            if (selected == null || (target != null && !target.equals(selected))) {
+                return null;
+            }
+            target = selected;
+            receivers.add(receiver);
+        }
+        if (target == null || !input.containsKey(target)) {
+            return null;
+        }
+        MethodNode method = getMethod(target, name, desc);
+        if ((method.access & Opcodes.ACC_ABSTRACT) != 0) {
+            return null;
+        }
+        return new Target(target, method, receivers);
+    }
+
+    /**
+     * @return for every concrete class of the input that can receive a virtual or interface call of
+     *         {@code owner.name desc}, the input class declaring the implementation it dispatches to; receivers whose
+     *         implementation cannot be told for sure are left out
+     */
+    public Map<String, String> getImplementations(String owner, String name, String desc) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (!input.containsKey(owner)) {
+            return result;
+        }
+        String declaring = findDeclaration(owner, name, desc);
+        if (declaring == null) {
+            return result;
+        }
+        MethodNode resolved = getMethod(declaring, name, desc);
+        if ((resolved.access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) != 0) {
+            return result;
+        }
+        for (String receiver : getSubtypes(owner)) {
+            ClassWrapper wrapper = classpath.get(receiver);
+            if (wrapper.isInterface() || wrapper.isAbstract() || !input.containsKey(receiver)) {
+                continue;
+            }
+            String selected = select(receiver, name, desc, declaring, resolved);
+            if (selected != null && input.containsKey(selected)
+                    && (getMethod(selected, name, desc).access & Opcodes.ACC_ABSTRACT) == 0) {
+                result.put(receiver, selected);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@code owner} and every class and interface below it.
+     */
+    private Set<String> getSubtypes(String owner) {
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(owner);
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (result.add(name)) {
+                queue.addAll(subtypes.getOrDefault(name, List.of()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method resolution: the class or superclass declaring the method, then the superinterfaces.
+     */
+    private String findDeclaration(String owner, String name, String desc) {
+        for (String current = owner; current != null && !current.equals(OBJECT); ) {
+            ClassWrapper wrapper = classpath.get(current);
+            if (wrapper == null) {
+                return null;
+            }
+            if (getMethod(current, name, desc) != null) {
+                return current;
+            }
+            current = wrapper.getSuperName();
+        }
+        Set<String> declaring = findInterfaceDeclarations(owner, name, desc);
+        return declaring != null && declaring.size() == 1 ? declaring.iterator().next() : null;
+    }
+
+    /**
+     * Method selection for a receiver of class {@code receiver}, or {@code null} if it cannot be told for sure.
+     */
+    private String select(String receiver, String name, String desc, String declaring, MethodNode resolved) {
+        boolean packagePrivate = (resolved.access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0;
+        String resolvedPackage = getPackage(declaring);
+        for (String current = receiver; current != null && !current.equals(OBJECT); ) {
+            ClassWrapper wrapper = classpath.get(current);
+            if (wrapper == null) {
+                return null;
+            }
+            MethodNode method = getMethod(current, name, desc);
+            if (method != null && (method.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) == 0) {
+                if (current.equals(declaring)) {
+                    return current;
+                }
+                // Whether a method in another package overrides a package-private one depends on the classes in
+                // between, do not guess
+                if (packagePrivate && !getPackage(current).equals(resolvedPackage)) {
+                    return null;
+                }
+                return current;
+            }
+            current = wrapper.getSuperName();
+        }
+        // Default methods: only if exactly one interface of the receiver declares the method
+        Set<String> declarations = findInterfaceDeclarations(receiver, name, desc);
+        if (declarations == null || declarations.size() != 1) {
+            return null;
+        }
+        String itf = declarations.iterator().next();
+        return (getMethod(itf, name, desc).access & Opcodes.ACC_ABSTRACT) == 0 ? itf : null;
+    }
+
+    /**
+     * @return the interfaces of {@code owner} that declare the method, or {@code null} if the hierarchy is incomplete
+     */
+    private Set<String> findInterfaceDeclarations(String owner, String name, String desc) {
+        Set<String> declarations = new HashSet<>();
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(owner);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            if (current.equals(OBJECT) || !visited.add(current)) {
+                continue;
+            }
+            ClassWrapper wrapper = classpath.get(current);
+            if (wrapper == null) {
+                return null;
+            }
+            MethodNode method = getMethod(current, name, desc);
+            if (wrapper.isInterface() && method != null
+                    && (method.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) == 0) {
+                declarations.add(current);
+            }
+            if (wrapper.getSuperName() != null) {
+                queue.add(wrapper.getSuperName());
+            }
+            if (wrapper.getInterfaceNames() != null) {
+                queue.addAll(wrapper.getInterfaceNames());
+            }
+        }
+        return declarations;
+    }
+
+    private MethodNode getMethod(String owner, String name, String desc) {
+        ClassWrapper wrapper = classpath.get(owner);
+        return wrapper == null ? null : wrapper.getMethodNode(name, desc);
+    }
+
+    private static String getPackage(String internalName) {
+        int index = internalName.lastIndexOf('/');
+        return index < 0 ? "" : internalName.substring(0, index);
+    }
+}
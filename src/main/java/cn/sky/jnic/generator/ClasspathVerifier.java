@@ -0,0 +1,203 @@
+package cn.sky.jnic.generator;
+
+import cn.sky.jnic.utils.asm.ClassWrapper;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SimpleVerifier} that reads the class hierarchy from the input and the configured libraries instead of loading
+ * classes, falling back to the class files of the running JDK. A class that is found nowhere is treated as a direct
+ * subclass of {@code Object}.
+ * <p>
+ * Only used to type values, not to verify: a mismatch the real verifier would reject does not fail the analysis.
+ */
+public class ClasspathVerifier extends SimpleVerifier {
+    private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+    private static final Map<String, Header> JDK_HEADERS = new ConcurrentHashMap<>();
+    private static final Header UNKNOWN = new Header("java/lang/Object", new String[0], false);
+
+    private final Map<String, ClassWrapper> classpath;
+
+    private record Header(String superName, String[] interfaces, boolean isInterface) {
+    }
+
+    public ClasspathVerifier(ClassWrapper owner, Map<String, ClassWrapper> classpath) {
+        super(Opcodes.ASM9, Type.getObjectType(owner.getName()),
+                owner.getSuperName() == null ? null : Type.getObjectType(owner.getSuperName()),
+                toTypes(owner.getInterfaceNames()), owner.isInterface());
+        this.classpath = classpath;
+    }
+
+    /**
+     * @return for every {@code BALOAD}/{@code BASTORE} of the method whether it works on a {@code boolean[]}
+     *         ({@code 'Z'}), a {@code byte[]} ({@code 'B'}), or {@code 0} if only the runtime type can tell; {@code null}
+     *         if the method has no such instruction
+     */
+    public static char[] resolveByteArrays(ClassWrapper owner, MethodNode method, Map<String, ClassWrapper> classpath) {
+        boolean any = false;
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn.getOpcode() == Opcodes.BALOAD || insn.getOpcode() == Opcodes.BASTORE) {
+                any = true;
+                break;
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        char[] kinds = new char[method.instructions.size()];
+        Frame<BasicValue>[] frames;
+        try {
+            frames = new Analyzer<>(new ClasspathVerifier(owner, classpath)).analyze(owner.getName(), method);
+        } catch (AnalyzerException e) {
+            return kinds;
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            int opcode = method.instructions.get(i).getOpcode();
+            if (frames[i] == null || (opcode != Opcodes.BALOAD && opcode != Opcodes.BASTORE)) {
+                continue;
+            }
+            // The array is below the index, and below the value for stores
+            int depth = opcode == Opcodes.BASTORE ? 3 : 2;
+            Type type = frames[i].getStack(frames[i].getStackSize() - depth).getType();
+            if (type == null) {
+                continue;
+            }
+            String desc = type.getDescriptor();
+            if (desc.equals("[Z")) {
+                kinds[i] = 'Z';
+            } else if (desc.equals("[B") || desc.equals("Lnull;")) {
+                // A null array throws before its type matters
+                kinds[i] = 'B';
+            }
+        }
+        return kinds;
+    }
+
+    private static List<Type> toTypes(List<String> names) {
+        List<Type> types = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                types.add(Type.getObjectType(name));
+            }
+        }
+        return types;
+    }
+
+    @Override
+    protected boolean isSubTypeOf(BasicValue value, BasicValue expected) {
+        return true;
+    }
+
+    @Override
+    protected boolean isArrayValue(BasicValue value) {
+        return true;
+    }
+
+    @Override
+    protected BasicValue getElementValue(BasicValue objectArrayValue) throws AnalyzerException {
+        // An array merged with an unrelated one is only known as an Object
+        Type type = objectArrayValue.getType();
+        if (type == null || (type.getSort() != Type.ARRAY && !type.getDescriptor().equals("Lnull;"))) {
+            return newValue(OBJECT_TYPE);
+        }
+        return super.getElementValue(objectArrayValue);
+    }
+
+    @Override
+    protected boolean isInterface(Type type) {
+        return type.getSort() == Type.OBJECT && getHeader(type.getInternalName()).isInterface();
+    }
+
+    @Override
+    protected Type getSuperClass(Type type) {
+        if (type.getSort() == Type.ARRAY) {
+            return OBJECT_TYPE;
+        }
+        if (type.getInternalName().equals("java/lang/Object")) {
+            return null;
+        }
+        String superName = getHeader(type.getInternalName()).superName();
+        return superName == null ? null : Type.getObjectType(superName);
+    }
+
+    @Override
+    protected boolean isAssignableFrom(Type type, Type otherType) {
+        if (type.equals(otherType)) {
+            return true;
+        }
+        if (type.getSort() == Type.ARRAY) {
+            if (otherType.getSort() != Type.ARRAY) {
+                return false;
+            }
+            Type component = Type.getType(type.getDescriptor().substring(1));
+            Type otherComponent = Type.getType(otherType.getDescriptor().substring(1));
+            if (component.getSort() < Type.ARRAY || otherComponent.getSort() < Type.ARRAY) {
+                return component.equals(otherComponent);
+            }
+            return isAssignableFrom(component, otherComponent);
+        }
+        String name = type.getInternalName();
+        if (name.equals("java/lang/Object")) {
+            return true;
+        }
+        if (otherType.getSort() == Type.ARRAY) {
+            return name.equals("java/lang/Cloneable") || name.equals("java/io/Serializable");
+        }
+        return isSubclass(otherType.getInternalName(), name, 0);
+    }
+
+    private boolean isSubclass(String name, String target, int depth) {
+        // Guards against cycles in a broken classpath
+        if (name == null || depth > 64) {
+            return false;
+        }
+        if (name.equals(target)) {
+            return true;
+        }
+        Header header = getHeader(name);
+        for (String itf : header.interfaces()) {
+            if (isSubclass(itf, target, depth + 1)) {
+                return true;
+            }
+        }
+        return !name.equals("java/lang/Object") && isSubclass(header.superName(), target, depth + 1);
+    }
+
+    private Header getHeader(String name) {
+        ClassWrapper wrapper = classpath.get(name);
+        if (wrapper != null) {
+            List<String> interfaces = wrapper.getInterfaceNames();
+            return new Header(wrapper.getSuperName(),
+                    interfaces == null ? new String[0] : interfaces.toArray(new String[0]), wrapper.isInterface());
+        }
+        return JDK_HEADERS.computeIfAbsent(name, ClasspathVerifier::readJdkHeader);
+    }
+
+    private static Header readJdkHeader(String name) {
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(name + ".class")) {
+            if (in == null) {
+                return UNKNOWN;
+            }
+            ClassReader reader = new ClassReader(in);
+            return new Header(reader.getSuperName(), reader.getInterfaces(),
+                    (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package cn.sky.jnic.generator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drops the {@code ExceptionCheck} calls that can never see a pending exception.
+ * <p>
+ * The generator puts a check after every instruction that talks to the JVM, but only some JNI functions can leave an
+ * exception pending: field accessors, {@code IsInstanceOf} or {@code GetArrayLength} on a non-null array never do. A
+ * check is kept only if a call that may throw can have run since the previous check, so a run of checks with nothing
+ * throwing in between collapses into its first one. A {@code return} or {@code goto} ends the path it is on. A block may
+ * or may not run, so after it the state at its entry and at its end are merged.
+ * <p>
+ * Works on the code of one instruction at a time: every instruction that completes normally leaves no exception
+ * pending, so each one starts clean.
+ */
+public final class ExceptionCheckEliminator {
+    private static final Pattern CHECK = Pattern.compile("^\\s*if \\(\\(\\*env\\)->ExceptionCheck\\(env\\)\\)");
+    private static final Pattern STRING_LITERAL = Pattern.compile("\"(?:[^\"\\\\\\n]|\\\\.)*\"");
+    private static final Pattern TOKEN = Pattern.compile(
+            "[{}]|(?:^|(?<=[;{}]))\\s*(?:return|goto)\\b|\\(\\*env\\)->(\\w+)\\(|\\b([A-Za-z_]\\w*)\\(env\\b");
+    private static final Pattern NOTHROW = Pattern.compile("^\\s*JNIC_NOTHROW\\b[^(;{\\n]*?\\b(\\w+)\\(",
+            Pattern.MULTILINE);
+
+    /**
+     * JNI functions that never leave an exception pending when called with valid arguments. Every other function is
+     * assumed to.
+     */
+    private static final Set<String> NON_THROWING_JNI = new HashSet<>(Set.of(
+            "ExceptionCheck", "ExceptionOccurred", "ExceptionClear", "ExceptionDescribe",
+            "DeleteLocalRef", "DeleteGlobalRef", "PopLocalFrame",
+            "IsSameObject", "IsInstanceOf", "GetObjectClass", "GetObjectRefType",
+            "GetArrayLength", "GetStringLength", "GetStringUTFLength",
+            "ReleaseStringChars", "ReleaseStringUTFChars", "ReleaseStringCritical",
+            "ReleasePrimitiveArrayCritical"));
+
+    /**
+     * Generated helpers that never leave an exception pending, or only together with a {@code NULL} result that the
+     * generated code branches on (the lazy symbol resolvers). They are marked {@code JNIC_NOTHROW} where they are
+     * declared, every other helper is assumed to throw.
+     */
+    private static final Set<String> NON_THROWING_HELPERS = nonThrowingHelpers(CGenerator.getHelperDeclarations());
+
+    static {
+        String[] types = { "Object", "Boolean", "Byte", "Char", "Short", "Int", "Long", "Float", "Double" };
+        for (String type : types) {
+            NON_THROWING_JNI.add("Get" + type + "Field");
+            NON_THROWING_JNI.add("Set" + type + "Field");
+            NON_THROWING_JNI.add("GetStatic" + type + "Field");
+            NON_THROWING_JNI.add("SetStatic" + type + "Field");
+            if (!type.equals("Object")) {
+                NON_THROWING_JNI.add("Release" + type + "ArrayElements");
+            }
+        }
+    }
+
+    private ExceptionCheckEliminator() {
+    }
+
+    /**
+     * @param code C code of one instruction
+     * @return the code without its redundant exception checks
+     */
+    public static String apply(String code) {
+        if (!code.contains("ExceptionCheck")) {
+            return code;
+        }
+        String[] lines = code.split("\n", -1);
+        StringBuilder out = new StringBuilder(code.length());
+        Deque<Boolean> blocks = new ArrayDeque<>();
+        boolean pending = false;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (CHECK.matcher(line).find()) {
+                // Either a single line or a block that ends where its braces balance
+                int end = i;
+                if (line.endsWith("{")) {
+                    int depth = 0;
+                    for (; end < lines.length; end++) {
+                        depth += braceBalance(lines[end]);
+                        if (depth == 0) {
+                            break;
+                        }
+                    }
+                }
+                if (pending) {
+                    for (int k = i; k <= end; k++) {
+                        out.append(lines[k]).append('\n');
+                    }
+                    pending = false;
+                }
+                i = end;
+                continue;
+            }
+
+            Matcher token = TOKEN.matcher(STRING_LITERAL.matcher(line).replaceAll("\"\""));
+            while (token.find()) {
+                String text = token.group().trim();
+                if (text.equals("{")) {
+                    blocks.push(pending);
+                } else if (text.equals("}")) {
+                    if (!blocks.isEmpty()) {
+                        pending |= blocks.pop();
+                    }
+                } else if (text.equals("return") || text.equals("goto")) {
+                    pending = false;
+                } else if (token.group(1) != null) {
+                    pending |= !NON_THROWING_JNI.contains(token.group(1));
+                } else {
+                    pending |= !NON_THROWING_HELPERS.contains(token.group(2));
+                }
+            }
+            out.append(line);
+            if (i < lines.length - 1) {
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    static Set<String> nonThrowingHelpers(String declarations) {
+        Set<String> helpers = new HashSet<>();
+        Matcher matcher = NOTHROW.matcher(declarations);
+        while (matcher.find()) {
+            helpers.add(matcher.group(1));
+        }
+        return helpers;
+    }
+
+    private static int braceBalance(String line) {
+        String stripped = STRING_LITERAL.matcher(line).replaceAll("\"\"");
+        int balance = 0;
+        for (int i = 0; i < stripped.length(); i++) {
+            char c = stripped.charAt(i);
+            if (c == '{') {
+                balance++;
+            } else if (c == '}') {
+                balance--;
+            }
+        }
+        return balance;
+    }
+}
@@ -0,0 +1,370 @@
+package cn.sky.jnic.generator;
+
+import cn.sky.jnic.utils.asm.ClassWrapper;
+import cn.sky.jnic.utils.asm.MethodWrapper;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Strategies for the {@code invokedynamic} call sites of a method that is moved to native code, by bootstrap method:
+ * <ul>
+ * <li>{@code StringConcatFactory}: the instruction is kept and the generator builds the string in C, see
+ * {@link #parseConcat}</li>
+ * <li>non-capturing {@code LambdaMetafactory}: the call site always yields the same instance, so it goes through a
+ * {@link #CONSTANT_WRAPPER} method whose result the generator keeps as a global reference</li>
+ * <li>{@code ObjectMethods} of records: replaced by bytecode that hashes and compares field by field; {@code toString}
+ * becomes a string concatenation, see {@link #lowerObjectMethods}</li>
+ * <li>anything else: a {@link #WRAPPER} method that runs the instruction in Java, called through JNI</li>
+ * </ul>
+ */
+public class IndyLowering implements Opcodes {
+    public static final String WRAPPER = "indy_wrapper_";
+    public static final String CONSTANT_WRAPPER = "indy_wrapper_const_";
+
+    private static final String CONCAT_FACTORY = "java/lang/invoke/StringConcatFactory";
+    private static final String LAMBDA_FACTORY = "java/lang/invoke/LambdaMetafactory";
+    private static final String OBJECT_METHODS = "java/lang/runtime/ObjectMethods";
+    private static final Handle MAKE_CONCAT = new Handle(H_INVOKESTATIC, CONCAT_FACTORY, "makeConcatWithConstants",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    // Argument slots StringConcatFactory accepts
+    private static final int MAX_CONCAT_SLOTS = 200;
+    private static final char TAG_ARG = '\u0001';
+    private static final char TAG_CONST = '\u0002';
+
+    /**
+     * Piece of a string concatenation: argument {@code arg} of the call site, or the text {@code constant} if
+     * {@code arg} is {@code -1}.
+     */
+    public record ConcatPart(int arg, String constant) {
+    }
+
+    private IndyLowering() {
+    }
+
+    /**
+     * @return the pieces of a {@code makeConcat}/{@code makeConcatWithConstants} call site in order, with adjacent
+     *         constants merged, or {@code null} if it is not one or uses a constant that is not a string
+     */
+    public static List<ConcatPart> parseConcat(InvokeDynamicInsnNode indy) {
+        if (!indy.bsm.getOwner().equals(CONCAT_FACTORY)
+                || !Type.getReturnType(indy.desc).getDescriptor().equals("Ljava/lang/String;")) {
+            return null;
+        }
+        int argCount = Type.getArgumentTypes(indy.desc).length;
+        List<ConcatPart> parts = new ArrayList<>();
+        if (indy.bsm.getName().equals("makeConcat")) {
+            for (int i = 0; i < argCount; i++) {
+                parts.add(new ConcatPart(i, null));
+            }
+            return parts;
+        }
+        if (!indy.bsm.getName().equals("makeConcatWithConstants") || indy.bsmArgs.length == 0
+                || !(indy.bsmArgs[0] instanceof String recipe)) {
+            return null;
+        }
+        StringBuilder constant = new StringBuilder();
+        int arg = 0;
+        int cst = 1;
+        for (int i = 0; i < recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            if (c == TAG_ARG) {
+                if (!constant.isEmpty()) {
+                    parts.add(new ConcatPart(-1, constant.toString()));
+                    constant.setLength(0);
+                }
+                parts.add(new ConcatPart(arg++, null));
+            } else if (c == TAG_CONST) {
+                // Other constants would have to be formatted the way the JDK of the application does it
+                if (cst >= indy.bsmArgs.length || !(indy.bsmArgs[cst] instanceof String value)) {
+                    return null;
+                }
+                constant.append(value);
+                cst++;
+            } else {
+                constant.append(c);
+            }
+        }
+        if (!constant.isEmpty()) {
+            parts.add(new ConcatPart(-1, constant.toString()));
+        }
+        return arg == argCount ? parts : null;
+    }
+
+    /**
+     * @return whether the call site creates a lambda that captures nothing; such a call site links to a constant
+     */
+    public static boolean isConstantLambda(InvokeDynamicInsnNode indy) {
+        return indy.bsm.getOwner().equals(LAMBDA_FACTORY) && Type.getArgumentTypes(indy.desc).length == 0;
+    }
+
+    /**
+     * Bytecode doing what {@code ObjectMethods.bootstrap} links a record's {@code toString}, {@code hashCode} or
+     * {@code equals} to, with the same operands and result.
+     *
+     * @return the replacement of {@code indy}, or {@code null} if it is not such a call site of {@code owner}
+     */
+    public static InsnList lowerObjectMethods(ClassWrapper owner, MethodWrapper method, InvokeDynamicInsnNode indy) {
+        if (!indy.bsm.getOwner().equals(OBJECT_METHODS) || indy.bsmArgs.length < 2
+                || !(indy.bsmArgs[0] instanceof Type record) || !record.getInternalName().equals(owner.getName())
+                || !(indy.bsmArgs[1] instanceof String names)) {
+            return null;
+        }
+        String[] fieldNames = names.isEmpty() ? new String[0] : names.split(";");
+        if (fieldNames.length != indy.bsmArgs.length - 2) {
+            return null;
+        }
+        List<FieldInsnNode> fields = new ArrayList<>();
+        for (int i = 2; i < indy.bsmArgs.length; i++) {
+            if (!(indy.bsmArgs[i] instanceof Handle getter) || getter.getTag() != H_GETFIELD
+                    || !getter.getOwner().equals(owner.getName())) {
+                return null;
+            }
+            fields.add(new FieldInsnNode(GETFIELD, getter.getOwner(), getter.getName(), getter.getDesc()));
+        }
+
+        String self = "(" + record.getDescriptor();
+        InsnList il = null;
+        if (indy.name.equals("toString") && indy.desc.equals(self + ")Ljava/lang/String;")) {
+            il = lowerToString(owner, method, fieldNames, fields);
+        } else if (indy.name.equals("hashCode") && indy.desc.equals(self + ")I")) {
+            il = lowerHashCode(method, fields);
+        } else if (indy.name.equals("equals") && indy.desc.equals(self + "Ljava/lang/Object;)Z")) {
+            il = lowerEquals(method, record, fields);
+        }
+        if (il != null) {
+            // Every field for toString, a long and its hash for hashCode, two doubles for equals, on top of what was
+            // below the call site
+            int slots = 0;
+            for (FieldInsnNode field : fields) {
+                slots += Type.getType(field.desc).getSize();
+            }
+            method.getMethodNode().maxStack += Math.max(6, slots);
+        }
+        return il;
+    }
+
+    /**
+     * {@code Name[a=1, b=x]}, built by the generator like any other concatenation.
+     */
+    private static InsnList lowerToString(ClassWrapper owner, MethodWrapper method, String[] names,
+            List<FieldInsnNode> fields) {
+        String simpleName = getSimpleName(owner);
+        StringBuilder recipe = new StringBuilder(simpleName).append('[');
+        StringBuilder desc = new StringBuilder("(");
+        int slots = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            recipe.append(i == 0 ? "" : ", ").append(names[i]).append('=').append(TAG_ARG);
+            desc.append(fields.get(i).desc);
+            slots += Type.getType(fields.get(i).desc).getSize();
+        }
+        recipe.append(']');
+        if (slots > MAX_CONCAT_SLOTS || recipe.chars().filter(c -> c == TAG_ARG || c == TAG_CONST).count()
+                != fields.size()) {
+            return null;
+        }
+
+        InsnList il = new InsnList();
+        int self = method.allocateLocalVar(false);
+        il.add(new VarInsnNode(ASTORE, self));
+        for (FieldInsnNode field : fields) {
+            il.add(new VarInsnNode(ALOAD, self));
+            il.add(field.clone(null));
+        }
+        il.add(new InvokeDynamicInsnNode("makeConcatWithConstants", desc.append(")Ljava/lang/String;").toString(),
+                MAKE_CONCAT, recipe.toString()));
+        return il;
+    }
+
+    /**
+     * {@code result = result * 31 + hash(field)} over the fields, starting from 0.
+     */
+    private static InsnList lowerHashCode(MethodWrapper method, List<FieldInsnNode> fields) {
+        InsnList il = new InsnList();
+        int self = method.allocateLocalVar(false);
+        il.add(new VarInsnNode(ASTORE, self));
+        il.add(new InsnNode(ICONST_0));
+        for (FieldInsnNode field : fields) {
+            il.add(new IntInsnNode(BIPUSH, 31));
+            il.add(new InsnNode(IMUL));
+            il.add(new VarInsnNode(ALOAD, self));
+            il.add(field.clone(null));
+            addHash(il, field.desc);
+            il.add(new InsnNode(IADD));
+        }
+        return il;
+    }
+
+    /**
+     * Same object, else an instance of the record whose fields are all equal. Like the JDK, the last field is compared
+     * first.
+     */
+    private static InsnList lowerEquals(MethodWrapper method, Type record, List<FieldInsnNode> fields) {
+        InsnList il = new InsnList();
+        int self = method.allocateLocalVar(false);
+        int other = method.allocateLocalVar(false);
+        LabelNode notSame = new LabelNode();
+        LabelNode notEqual = new LabelNode();
+        LabelNode end = new LabelNode();
+        il.add(new VarInsnNode(ASTORE, other));
+        il.add(new VarInsnNode(ASTORE, self));
+        il.add(new VarInsnNode(ALOAD, self));
+        il.add(new VarInsnNode(ALOAD, other));
+        il.add(new JumpInsnNode(IF_ACMPNE, notSame));
+        il.add(new InsnNode(ICONST_1));
+        il.add(new JumpInsnNode(GOTO, end));
+        il.add(notSame);
+        il.add(new VarInsnNode(ALOAD, other));
+        il.add(new TypeInsnNode(INSTANCEOF, record.getInternalName()));
+        il.add(new JumpInsnNode(IFEQ, notEqual));
+        il.add(new VarInsnNode(ALOAD, other));
+        il.add(new TypeInsnNode(CHECKCAST, record.getInternalName()));
+        il.add(new VarInsnNode(ASTORE, other));
+
+        int left = -1;
+        int right = -1;
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            FieldInsnNode field = fields.get(i);
+            switch (Type.getType(field.desc).getSort()) {
+                case Type.BOOLEAN, Type.BYTE, Type.CHAR, Type.SHORT, Type.INT -> {
+                    addFieldPair(il, self, other, field, null);
+                    il.add(new JumpInsnNode(IF_ICMPNE, notEqual));
+                }
+                case Type.LONG -> {
+                    addFieldPair(il, self, other, field, null);
+                    il.add(new InsnNode(LCMP));
+                    il.add(new JumpInsnNode(IFNE, notEqual));
+                }
+                // Float.compare/Double.compare == 0: equal bits after collapsing NaNs
+                case Type.FLOAT -> {
+                    addFieldPair(il, self, other, field,
+                            new MethodInsnNode(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false));
+                    il.add(new JumpInsnNode(IF_ICMPNE, notEqual));
+                }
+                case Type.DOUBLE -> {
+                    addFieldPair(il, self, other, field,
+                            new MethodInsnNode(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false));
+                    il.add(new InsnNode(LCMP));
+                    il.add(new JumpInsnNode(IFNE, notEqual));
+                }
+                default -> {
+                    // Objects.equals
+                    if (left < 0) {
+                        left = method.allocateLocalVar(false);
+                        right = method.allocateLocalVar(false);
+                    }
+                    LabelNode next = new LabelNode();
+                    il.add(new VarInsnNode(ALOAD, self));
+                    il.add(field.clone(null));
+                    il.add(new VarInsnNode(ASTORE, left));
+                    il.add(new VarInsnNode(ALOAD, other));
+                    il.add(field.clone(null));
+                    il.add(new VarInsnNode(ASTORE, right));
+                    il.add(new VarInsnNode(ALOAD, left));
+                    il.add(new VarInsnNode(ALOAD, right));
+                    il.add(new JumpInsnNode(IF_ACMPEQ, next));
+                    il.add(new VarInsnNode(ALOAD, left));
+                    il.add(new JumpInsnNode(IFNULL, notEqual));
+                    il.add(new VarInsnNode(ALOAD, left));
+                    il.add(new VarInsnNode(ALOAD, right));
+                    il.add(new MethodInsnNode(INVOKEVIRTUAL, getObjectOwner(field.desc), "equals",
+                            "(Ljava/lang/Object;)Z", false));
+                    il.add(new JumpInsnNode(IFEQ, notEqual));
+                    il.add(next);
+                }
+            }
+        }
+        il.add(new InsnNode(ICONST_1));
+        il.add(new JumpInsnNode(GOTO, end));
+        il.add(notEqual);
+        il.add(new InsnNode(ICONST_0));
+        il.add(end);
+        return il;
+    }
+
+    private static void addFieldPair(InsnList il, int self, int other, FieldInsnNode field, MethodInsnNode convert) {
+        il.add(new VarInsnNode(ALOAD, self));
+        il.add(field.clone(null));
+        if (convert != null) {
+            il.add(convert.clone(null));
+        }
+        il.add(new VarInsnNode(ALOAD, other));
+        il.add(field.clone(null));
+        if (convert != null) {
+            il.add(convert.clone(null));
+        }
+    }
+
+    /**
+     * Replaces the value of type {@code desc} on top of the stack by its hash, as {@code Integer.hashCode},
+     * {@code Boolean.hashCode}, ..., {@code Objects.hashCode} compute it.
+     */
+    private static void addHash(InsnList il, String desc) {
+        switch (Type.getType(desc).getSort()) {
+            case Type.BYTE, Type.CHAR, Type.SHORT, Type.INT -> {
+            }
+            case Type.BOOLEAN -> {
+                LabelNode isFalse = new LabelNode();
+                LabelNode end = new LabelNode();
+                il.add(new JumpInsnNode(IFEQ, isFalse));
+                il.add(new IntInsnNode(SIPUSH, 1231));
+                il.add(new JumpInsnNode(GOTO, end));
+                il.add(isFalse);
+                il.add(new IntInsnNode(SIPUSH, 1237));
+                il.add(end);
+            }
+            case Type.LONG -> addLongHash(il);
+            case Type.FLOAT -> il.add(new MethodInsnNode(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I",
+                    false));
+            case Type.DOUBLE -> {
+                il.add(new MethodInsnNode(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false));
+                addLongHash(il);
+            }
+            default -> {
+                LabelNode nonNull = new LabelNode();
+                LabelNode end = new LabelNode();
+                il.add(new InsnNode(DUP));
+                il.add(new JumpInsnNode(IFNONNULL, nonNull));
+                il.add(new InsnNode(POP));
+                il.add(new InsnNode(ICONST_0));
+                il.add(new JumpInsnNode(GOTO, end));
+                il.add(nonNull);
+                il.add(new MethodInsnNode(INVOKEVIRTUAL, getObjectOwner(desc), "hashCode", "()I", false));
+                il.add(end);
+            }
+        }
+    }
+
+    // (int) (v ^ (v >>> 32))
+    private static void addLongHash(InsnList il) {
+        il.add(new InsnNode(DUP2));
+        il.add(new IntInsnNode(BIPUSH, 32));
+        il.add(new InsnNode(LUSHR));
+        il.add(new InsnNode(LXOR));
+        il.add(new InsnNode(L2I));
+    }
+
+    /**
+     * Owner for the virtual call on a field value: {@code String} lets the generator use its string intrinsics.
+     */
+    private static String getObjectOwner(String desc) {
+        return desc.equals("Ljava/lang/String;") ? "java/lang/String" : "java/lang/Object";
+    }
+
+    /**
+     * {@code Class.getSimpleName}: the inner name recorded for nested classes, else the name without its package.
+     */
+    private static String getSimpleName(ClassWrapper owner) {
+        for (InnerClassNode inner : owner.getClassNode().innerClasses) {
+            if (inner.name.equals(owner.getName()) && inner.innerName != null) {
+                return inner.innerName;
+            }
+        }
+        return owner.getName().substring(owner.getName().lastIndexOf('/') + 1);
+    }
+}
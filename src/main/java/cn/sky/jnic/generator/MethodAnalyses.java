@@ -0,0 +1,53 @@
+package cn.sky.jnic.generator;
+
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Data-flow analyses of the methods being nativized: the basic frames, the {@link ReferenceAnalysis} and the
+ * {@link ArrayPinning} regions. They are the most expensive part of generating a method and the cost model needs the
+ * same results to estimate it, so each method is analyzed once and the results are kept until it has been generated.
+ * <p>
+ * Whoever rewrites the instructions of a method in between has to {@link #invalidate} it.
+ */
+public class MethodAnalyses {
+    /**
+     * @param frames  frames of the {@link BasicInterpreter}
+     * @param refs    origins and liveness of the references
+     * @param pinning loops whose arrays are pinned, {@code null} if pinning is off
+     */
+    public record Result(Frame<BasicValue>[] frames, ReferenceAnalysis refs, ArrayPinning pinning) {
+    }
+
+    private final boolean arrayPinning;
+    private final Map<MethodNode, Result> results = new IdentityHashMap<>();
+
+    /**
+     * @param arrayPinning whether loops pin their arrays, see {@code optimization.pinIterations}
+     */
+    public MethodAnalyses(boolean arrayPinning) {
+        this.arrayPinning = arrayPinning;
+    }
+
+    public Result get(String owner, MethodNode method) throws AnalyzerException {
+        Result result = results.get(method);
+        if (result == null) {
+            Frame<BasicValue>[] frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+            ReferenceAnalysis refs = new ReferenceAnalysis(owner, method);
+            ArrayPinning pinning = arrayPinning ? new ArrayPinning(owner, method, frames, refs) : null;
+            result = new Result(frames, refs, pinning);
+            results.put(method, result);
+        }
+        return result;
+    }
+
+    /**
+     * Drops the results of a method that has been generated, is not going to be, or whose instructions changed.
+     */
+    public void invalidate(MethodNode method) {
+        results.remove(method);
+    }
+}
@@ -0,0 +1,213 @@
+package cn.sky.jnic.generator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shares one C implementation between generated methods whose bodies only differ in the symbols they reference.
+ * <p>
+ * A body is normalized by lifting every string literal (class, member and descriptor names, plain string constants)
+ * into a per-method symbol table {@code S} and every function-scope {@code static ... = NULL;} cache into a per-method
+ * slot table {@code C}. Indices into the {@link SymbolTable} and the {@link StringTable} go to a per-method index table
+ * {@code I}, other numeric immediates stay inline. Methods are collected per translation unit: when several of them,
+ * or one and a method of an earlier unit, have the same signature and normalized text, the normalized body is emitted
+ * once as {@code jnic_shared_<n>} and each of them becomes a thin wrapper that passes its own tables. A body that
+ * occurs only once in the unit and was not shared before keeps its code as it is, so it costs no indirection.
+ */
+public class MethodDeduplicator {
+    private static final Pattern STRING_LITERAL = Pattern.compile("\"(?:[^\"\\\\\\n]|\\\\.)*\"");
+    private static final Pattern STATIC_CACHE = Pattern.compile(
+            "^[ \\t]*static (jclass|jobject|jstring|jthrowable|jmethodID|jfieldID) (\\w+) = NULL;[ \\t]*\\n",
+            Pattern.MULTILINE);
+    private static final Pattern SYMBOL_INDEX = Pattern.compile(
+            "\\b(JNIC_CLASS|JNIC_FIELD|JNIC_METHOD|jnic_class|jnic_field|jnic_method|jnic_string"
+                    + "|jnic_concat_constant)\\((env, (?:&\\w+, )?)?(\\d+)\\)");
+
+    // Normalized body -> name of its shared implementation, once one has been emitted
+    private final Map<String, String> shared = new HashMap<>();
+    private final Set<String> bodies = new HashSet<>();
+    // Methods added since the last flush, in order
+    private final List<Method> pending = new ArrayList<>();
+    private int sharedCount;
+    private int methodCount;
+
+    /**
+     * Result of {@link #flush}.
+     *
+     * @param code       C code to append to the current translation unit
+     * @param prototypes declarations of the shared implementations it calls, some may be defined in another unit
+     */
+    public record Unit(String code, List<String> prototypes) {
+    }
+
+    private record Method(String prototype, String returnType, String params, String body, String key,
+            String normalized, String sharedSignature, List<String> symbols, int slots, List<String> indices) {
+    }
+
+    /**
+     * Adds a method to the current translation unit. Its code is only emitted by {@link #flush}, once it is known
+     * whether another method in the unit has the same body.
+     *
+     * @param prototype  full prototype of the method, see {@code CGenerator#getPrototype}
+     * @param returnType C return type
+     * @param params     comma separated parameter names after {@code env}, e.g. {@code thiz, arg0}
+     * @param body       function body without the outer braces
+     */
+    public void add(String prototype, String returnType, String params, String body) {
+        methodCount++;
+
+        // Caches first, so their names are not mistaken for anything else
+        List<String> slots = new ArrayList<>();
+        Matcher cacheMatcher = STATIC_CACHE.matcher(body);
+        StringBuilder withoutDecls = new StringBuilder();
+        Map<String, String> slotNames = new LinkedHashMap<>();
+        while (cacheMatcher.find()) {
+            String type = cacheMatcher.group(1);
+            String field = type.equals("jmethodID") ? "m" : type.equals("jfieldID") ? "f" : "l";
+            slotNames.put(cacheMatcher.group(2), "C[" + slots.size() + "]." + field);
+            slots.add(cacheMatcher.group(2));
+            cacheMatcher.appendReplacement(withoutDecls, "");
+        }
+        cacheMatcher.appendTail(withoutDecls);
+        String normalized = withoutDecls.toString();
+        if (!slotNames.isEmpty()) {
+            Pattern names = Pattern.compile("\\b(" + String.join("|", slotNames.keySet()) + ")\\b");
+            Matcher nameMatcher = names.matcher(normalized);
+            StringBuilder sb = new StringBuilder();
+            while (nameMatcher.find()) {
+                nameMatcher.appendReplacement(sb, Matcher.quoteReplacement(slotNames.get(nameMatcher.group(1))));
+            }
+            nameMatcher.appendTail(sb);
+            normalized = sb.toString();
+        }
+
+        // Symbol table indices
+        Map<String, Integer> indices = new LinkedHashMap<>();
+        Matcher indexMatcher = SYMBOL_INDEX.matcher(normalized);
+        StringBuilder withIndices = new StringBuilder();
+        while (indexMatcher.find()) {
+            int index = indices.computeIfAbsent(indexMatcher.group(3), k -> indices.size());
+            String prefix = indexMatcher.group(2) == null ? "" : indexMatcher.group(2);
+            indexMatcher.appendReplacement(withIndices, indexMatcher.group(1) + "(" + prefix + "I[" + index + "])");
+        }
+        indexMatcher.appendTail(withIndices);
+        normalized = withIndices.toString();
+
+        // Symbols: identical literals share an entry
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        Matcher literalMatcher = STRING_LITERAL.matcher(normalized);
+        StringBuilder sb = new StringBuilder();
+        while (literalMatcher.find()) {
+            // Inline assembly templates and constraints have to stay literals
+            int lineStart = normalized.lastIndexOf('\n', literalMatcher.start()) + 1;
+            if (normalized.substring(lineStart, literalMatcher.start()).contains("__asm__")) {
+                literalMatcher.appendReplacement(sb, Matcher.quoteReplacement(literalMatcher.group()));
+                continue;
+            }
+            int index = symbols.computeIfAbsent(literalMatcher.group(), k -> symbols.size());
+            literalMatcher.appendReplacement(sb, "S[" + index + "]");
+        }
+        literalMatcher.appendTail(sb);
+        normalized = sb.toString();
+
+        String sharedSignature = prototype.substring(prototype.indexOf('(') + 1, prototype.lastIndexOf(')'))
+                + ", const char* const* S, JnicSlot* C, const int* I)";
+        String key = returnType + "|" + sharedSignature + "\n" + normalized;
+        bodies.add(key);
+        pending.add(new Method(prototype, returnType, params, body, key, normalized, sharedSignature,
+                new ArrayList<>(symbols.keySet()), slots.size(), new ArrayList<>(indices.keySet())));
+    }
+
+    /**
+     * Emits the methods added since the last flush. A body that has a shared implementation already, or that more
+     * than one of them has, becomes a wrapper; any other keeps its body.
+     */
+    public Unit flush() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Method method : pending) {
+            counts.merge(method.key(), 1, Integer::sum);
+        }
+
+        StringBuilder code = new StringBuilder();
+        Set<String> prototypes = new LinkedHashSet<>();
+        for (Method method : pending) {
+            String sharedName = shared.get(method.key());
+            if (sharedName == null && counts.get(method.key()) == 1) {
+                code.append(method.prototype()).append(" {\n");
+                code.append(method.body());
+                code.append("}\n\n");
+                continue;
+            }
+            if (sharedName == null) {
+                sharedName = "jnic_shared_" + sharedCount++;
+                shared.put(method.key(), sharedName);
+                code.append(method.returnType()).append(" ").append(sharedName).append("(")
+                        .append(method.sharedSignature()).append(" {\n");
+                code.append(method.normalized());
+                code.append("}\n\n");
+            }
+            prototypes.add(method.returnType() + " " + sharedName + "(" + method.sharedSignature() + ";");
+            appendWrapper(code, method, sharedName);
+        }
+        pending.clear();
+        return new Unit(code.toString(), new ArrayList<>(prototypes));
+    }
+
+    private static void appendWrapper(StringBuilder code, Method method, String sharedName) {
+        code.append(method.prototype()).append(" {\n");
+        if (!method.symbols().isEmpty()) {
+            code.append("    static const char* const S[] = {");
+            boolean first = true;
+            for (String literal : method.symbols()) {
+                code.append(first ? " " : ", ").append(literal);
+                first = false;
+            }
+            code.append(" };\n");
+        }
+        if (method.slots() > 0) {
+            code.append("    static JnicSlot C[").append(method.slots()).append("];\n");
+        }
+        if (!method.indices().isEmpty()) {
+            code.append("    static const int I[] = {");
+            boolean first = true;
+            for (String index : method.indices()) {
+                code.append(first ? " " : ", ").append(index);
+                first = false;
+            }
+            code.append(" };\n");
+        }
+        code.append("    ");
+        if (!method.returnType().equals("void")) {
+            code.append("return ");
+        }
+        code.append(sharedName).append("(env, ").append(method.params()).append(", ")
+                .append(method.symbols().isEmpty() ? "NULL" : "S").append(", ")
+                .append(method.slots() == 0 ? "NULL" : "C").append(", ")
+                .append(method.indices().isEmpty() ? "NULL" : "I").append(");\n");
+        code.append("}\n\n");
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public int getBodyCount() {
+        return bodies.size();
+    }
+
+    public int getSharedCount() {
+        return sharedCount;
+    }
+}
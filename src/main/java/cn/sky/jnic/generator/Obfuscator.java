@@ -1,6 +1,5 @@
 package cn.sky.jnic.generator;
 
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -16,38 +15,17 @@ public class Obfuscator {
         this.config = config;
     }
 
-    public String encryptString(String input) {
-        return "\"" + input
-                .replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t")
-                + "\"";
+    // UTF-16 常量, 开启字符串加密时每个字符与 key 异或 (key 为 0 即明文)
+    public record EncryptedChars(char[] encrypted, int key) {
     }
 
-    // 加密字符串数据结构
-    public record EncryptedString(byte[] encrypted, int key, int length) {
-        public String cArrayLiteral() {
-            StringBuilder sb = new StringBuilder("{");
-            for (int i = 0; i < encrypted.length; i++) {
-                if (i > 0)
-                    sb.append(", ");
-                sb.append(String.format("0x%02X", encrypted[i] & 0xFF));
-            }
-            sb.append("}");
-            return sb.toString();
+    public EncryptedChars encryptChars(String input) {
+        int key = config.isStringEncryption() ? 1 + random.nextInt(0xFFFF) : 0;
+        char[] encrypted = input.toCharArray();
+        for (int i = 0; i < encrypted.length; i++) {
+            encrypted[i] ^= (char) key;
         }
-    }
-
-    public EncryptedString encryptStringData(String input) {
-        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
-        int key = random.nextInt(256);
-        byte[] encrypted = new byte[bytes.length];
-        for (int i = 0; i < bytes.length; i++) {
-            encrypted[i] = (byte) (bytes[i] ^ key);
-        }
-        return new EncryptedString(encrypted, key, bytes.length);
+        return new EncryptedChars(encrypted, key);
     }
 
     public String flattenControlFlow(String functionBody) {
@@ -0,0 +1,309 @@
+package cn.sky.jnic.generator;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.util.*;
+
+/**
+ * Tracks where the object references of a method come from and how long they are needed, so the generated code can
+ * share JNI local references between variables instead of copying them with {@code NewLocalRef}, and delete each one
+ * right after its last use.
+ * <p>
+ * Every reference value carries the set of its possible origins: the instruction index that created a new local
+ * reference (a field or array load, a call, an allocation, a caught exception), {@link #PARAM} for references owned by
+ * the caller, or {@link #GLOBAL} for cached global references. {@code null} has no origin. Two variables can only
+ * hold the same local reference if their origin sets intersect. On top of that, a backward liveness pass over the
+ * reference locals tells at which edges a local stops being read.
+ */
+public class ReferenceAnalysis {
+    public static final int PARAM = -1;
+    public static final int GLOBAL = -2;
+
+    private final InsnList instructions;
+    private final List<TryCatchBlockNode> tryCatchBlocks;
+    private final Frame<RefValue>[] frames;
+    private final BitSet[] liveIn;
+
+    /**
+     * Value of the analysis. {@code origins} is {@code null} for primitives and uninitialized slots.
+     */
+    public record RefValue(int size, Set<Integer> origins) implements Value {
+        static final RefValue UNINITIALIZED = new RefValue(1, null);
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isReference() {
+            return origins != null;
+        }
+
+        /**
+         * @return whether this value may be a local reference created by the method
+         */
+        public boolean isOwned() {
+            if (origins == null) {
+                return false;
+            }
+            for (int origin : origins) {
+                if (origin >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return whether this value and {@code other} may be the same local reference created by the method
+         */
+        public boolean mayAlias(RefValue other) {
+            if (origins == null || other.origins == null) {
+                return false;
+            }
+            for (int origin : origins) {
+                if (origin >= 0 && other.origins.contains(origin)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public ReferenceAnalysis(String owner, MethodNode method) throws AnalyzerException {
+        this.instructions = method.instructions;
+        this.tryCatchBlocks = method.tryCatchBlocks;
+        this.frames = new Analyzer<>(new RefInterpreter()).analyze(owner, method);
+        this.liveIn = computeLiveness();
+    }
+
+    public Frame<RefValue> getFrame(int index) {
+        return frames[index];
+    }
+
+    public AbstractInsnNode getInstruction(int index) {
+        return instructions.get(index);
+    }
+
+    /**
+     * @return whether reference local {@code var} may still be read when control reaches {@code index}
+     */
+    public boolean isLocalLive(int index, int var) {
+        return liveIn[index] != null && liveIn[index].get(var);
+    }
+
+    /**
+     * Normal (non exceptional) successors of an instruction.
+     */
+    public List<Integer> getSuccessors(int index) {
+        AbstractInsnNode insn = instructions.get(index);
+        List<Integer> successors = new ArrayList<>();
+        int opcode = insn.getOpcode();
+        if (insn instanceof JumpInsnNode jump) {
+            successors.add(instructions.indexOf(jump.label));
+            if (opcode != Opcodes.GOTO) {
+                successors.add(index + 1);
+            }
+        } else if (insn instanceof TableSwitchInsnNode tableSwitch) {
+            successors.add(instructions.indexOf(tableSwitch.dflt));
+            for (LabelNode label : tableSwitch.labels) {
+                successors.add(instructions.indexOf(label));
+            }
+        } else if (insn instanceof LookupSwitchInsnNode lookupSwitch) {
+            successors.add(instructions.indexOf(lookupSwitch.dflt));
+            for (LabelNode label : lookupSwitch.labels) {
+                successors.add(instructions.indexOf(label));
+            }
+        } else if (!(opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) && opcode != Opcodes.ATHROW
+                && index + 1 < instructions.size()) {
+            successors.add(index + 1);
+        }
+        return successors;
+    }
+
+    /**
+     * Number of local references the method can hold at the same time: every variable that may hold one of its own
+     * references holds at most one, and dead references are deleted right away.
+     */
+    public int getOwnedVariableCount() {
+        Set<String> variables = new HashSet<>();
+        for (Frame<RefValue> frame : frames) {
+            if (frame == null) {
+                continue;
+            }
+            for (int i = 0; i < frame.getStackSize(); i++) {
+                if (frame.getStack(i).isOwned()) {
+                    variables.add("s" + i);
+                }
+            }
+            for (int i = 0; i < frame.getLocals(); i++) {
+                if (frame.getLocal(i).isOwned()) {
+                    variables.add("l" + i);
+                }
+            }
+        }
+        return variables.size();
+    }
+
+    private BitSet[] computeLiveness() {
+        int size = instructions.size();
+        BitSet[] in = new BitSet[size];
+        List<List<Integer>> successors = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            List<Integer> list = new ArrayList<>();
+            if (frames[i] != null) {
+                list.addAll(getSuccessors(i));
+                for (TryCatchBlockNode tcb : tryCatchBlocks) {
+                    if (i >= instructions.indexOf(tcb.start) && i < instructions.indexOf(tcb.end)) {
+                        list.add(instructions.indexOf(tcb.handler));
+                    }
+                }
+                in[i] = new BitSet();
+            }
+            successors.add(list);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                if (in[i] == null) {
+                    continue;
+                }
+                BitSet live = new BitSet();
+                for (int successor : successors.get(i)) {
+                    if (in[successor] != null) {
+                        live.or(in[successor]);
+                    }
+                }
+                AbstractInsnNode insn = instructions.get(i);
+                if (insn.getOpcode() == Opcodes.ASTORE) {
+                    live.clear(((VarInsnNode) insn).var);
+                } else if (insn.getOpcode() == Opcodes.ALOAD) {
+                    live.set(((VarInsnNode) insn).var);
+                }
+                if (!live.equals(in[i])) {
+                    in[i] = live;
+                    changed = true;
+                }
+            }
+        }
+        return in;
+    }
+
+    private class RefInterpreter extends Interpreter<RefValue> {
+        private final BasicInterpreter basic = new BasicInterpreter();
+
+        RefInterpreter() {
+            super(Opcodes.ASM9);
+        }
+
+        private RefValue fromBasic(BasicValue value, Set<Integer> origins) {
+            if (value == null) {
+                return null;
+            }
+            if (value == BasicValue.UNINITIALIZED_VALUE) {
+                return RefValue.UNINITIALIZED;
+            }
+            return new RefValue(value.getSize(), value.isReference() ? origins : null);
+        }
+
+        private BasicValue toBasic(RefValue value) {
+            if (value.isReference()) {
+                return BasicValue.REFERENCE_VALUE;
+            }
+            return value.getSize() == 2 ? BasicValue.LONG_VALUE : BasicValue.INT_VALUE;
+        }
+
+        private Set<Integer> created(AbstractInsnNode insn) {
+            return Set.of(instructions.indexOf(insn));
+        }
+
+        @Override
+        public RefValue newValue(Type type) {
+            return fromBasic(basic.newValue(type), Set.of());
+        }
+
+        @Override
+        public RefValue newParameterValue(boolean isInstanceMethod, int local, Type type) {
+            return fromBasic(basic.newValue(type), Set.of(PARAM));
+        }
+
+        @Override
+        public RefValue newEmptyValue(int local) {
+            return RefValue.UNINITIALIZED;
+        }
+
+        @Override
+        public RefValue newExceptionValue(TryCatchBlockNode tryCatchBlockNode, Frame<RefValue> handlerFrame,
+                Type exceptionType) {
+            return new RefValue(1, Set.of(instructions.indexOf(tryCatchBlockNode.handler)));
+        }
+
+        @Override
+        public RefValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+            BasicValue value = basic.newOperation(insn);
+            if (insn.getOpcode() == Opcodes.ACONST_NULL) {
+                return fromBasic(value, Set.of());
+            }
+            if (insn.getOpcode() == Opcodes.LDC) {
+                return fromBasic(value, Set.of(GLOBAL));
+            }
+            return fromBasic(value, created(insn));
+        }
+
+        @Override
+        public RefValue copyOperation(AbstractInsnNode insn, RefValue value) {
+            return value;
+        }
+
+        @Override
+        public RefValue unaryOperation(AbstractInsnNode insn, RefValue value) throws AnalyzerException {
+            if (insn.getOpcode() == Opcodes.CHECKCAST) {
+                return value;
+            }
+            return fromBasic(basic.unaryOperation(insn, toBasic(value)), created(insn));
+        }
+
+        @Override
+        public RefValue binaryOperation(AbstractInsnNode insn, RefValue value1, RefValue value2)
+                throws AnalyzerException {
+            return fromBasic(basic.binaryOperation(insn, toBasic(value1), toBasic(value2)), created(insn));
+        }
+
+        @Override
+        public RefValue ternaryOperation(AbstractInsnNode insn, RefValue value1, RefValue value2, RefValue value3) {
+            return null;
+        }
+
+        @Override
+        public RefValue naryOperation(AbstractInsnNode insn, List<? extends RefValue> values)
+                throws AnalyzerException {
+            List<BasicValue> basicValues = new ArrayList<>();
+            for (RefValue value : values) {
+                basicValues.add(toBasic(value));
+            }
+            return fromBasic(basic.naryOperation(insn, basicValues), created(insn));
+        }
+
+        @Override
+        public void returnOperation(AbstractInsnNode insn, RefValue value, RefValue expected) {
+        }
+
+        @Override
+        public RefValue merge(RefValue value1, RefValue value2) {
+            if (value1.equals(value2)) {
+                return value1;
+            }
+            if (value1.isReference() && value2.isReference()) {
+                Set<Integer> origins = new TreeSet<>(value1.origins());
+                origins.addAll(value2.origins());
+                return new RefValue(1, origins);
+            }
+            return RefValue.UNINITIALIZED;
+        }
+    }
+}
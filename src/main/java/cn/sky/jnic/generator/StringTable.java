@@ -0,0 +1,117 @@
+package cn.sky.jnic.generator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Library-wide table of the string constants loaded by generated code.
+ * <p>
+ * Every {@code LDC} of a string refers to its constant by index, so a literal used from many sites is only turned
+ * into one global reference and its data is only emitted once. Entries are created on their first use and published
+ * atomically; a site then only reads the table. The constant parts of native string concatenations are copied
+ * straight out of the same data, without an entry ever being created.
+ */
+public class StringTable {
+    private final Obfuscator obfuscator;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+
+    public StringTable(Obfuscator obfuscator) {
+        this.obfuscator = obfuscator;
+    }
+
+    public int getString(String value) {
+        return stringIndex.computeIfAbsent(value, k -> {
+            strings.add(k);
+            return strings.size() - 1;
+        });
+    }
+
+    /**
+     * C definitions of the table, of {@code jnic_resolve_string} and of {@code jnic_concat_constant} declared in
+     * {@code jnic.h}.
+     * <p>
+     * The UTF-16 data of all constants is one read-only array, each constant XOR-masked with its own key when string
+     * encryption is on. A constant is decrypted at most once, when its entry is created, into a stack buffer (or one
+     * heap block if it is long) that only lives until {@code NewString} has copied it.
+     */
+    public String generate() {
+        StringBuilder code = new StringBuilder();
+        code.append("typedef struct { jint offset; jsize len; jchar key; } JnicStringData;\n\n");
+        // Zero sized arrays are not valid C
+        code.append("jstring jnic_strings[").append(Math.max(1, strings.size())).append("];\n\n");
+
+        StringBuilder blob = new StringBuilder();
+        StringBuilder entries = new StringBuilder();
+        int offset = 0;
+        for (String value : strings) {
+            Obfuscator.EncryptedChars chars = obfuscator.encryptChars(value);
+            for (char c : chars.encrypted()) {
+                blob.append(offset % 12 == 0 ? "\n    " : " ").append(String.format("0x%04X,", (int) c));
+                offset++;
+            }
+            entries.append("    { ").append(offset - value.length()).append(", ").append(value.length()).append(", ")
+                    .append(chars.key()).append(" },\n");
+        }
+        code.append("static const jchar jnic_string_blob[] = {").append(blob).append("\n    0\n};\n");
+        code.append("static const JnicStringData jnic_string_data[] = {\n").append(entries)
+                .append("    { 0, 0, 0 }\n};\n\n");
+
+        code.append("""
+                // 解密缓冲区: 短字符串放在栈上, 长字符串临时分配一次
+                #define JNIC_STRING_INLINE 256
+
+                static jstring jnic_decode_string(JNIEnv* env, const JnicStringData* d) {
+                    const jchar* src = jnic_string_blob + d->offset;
+                    if (d->key == 0) return (*env)->NewString(env, src, d->len);
+                    jchar inline_buf[JNIC_STRING_INLINE];
+                    jchar* buf = d->len <= JNIC_STRING_INLINE ? inline_buf : malloc((size_t)d->len * sizeof(jchar));
+                    if (buf == NULL) {
+                        jclass err = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+                        if (err != NULL) (*env)->ThrowNew(env, err, "String constant");
+                        return NULL;
+                    }
+                    for (jsize i = 0; i < d->len; i++) buf[i] = (jchar)(src[i] ^ d->key);
+                    jstring local = (*env)->NewString(env, buf, d->len);
+                    if (buf != inline_buf) free(buf);
+                    return local;
+                }
+
+                // 拼接中的常量直接从数据中复制, 不创建 jstring
+                void jnic_concat_constant(JNIEnv* env, JnicConcat* c, int index) {
+                    const JnicStringData* d = &jnic_string_data[index];
+                    jnic_concat_chars(env, c, jnic_string_blob + d->offset, d->len, d->key);
+                }
+
+                jstring jnic_resolve_string(JNIEnv* env, int index) {
+                    jstring str = __atomic_load_n(&jnic_strings[index], __ATOMIC_ACQUIRE);
+                    if (str != NULL) return str;
+                    jstring local = jnic_decode_string(env, &jnic_string_data[index]);
+                    if (local == NULL) return NULL;
+                    jstring global = (jstring)(*env)->NewGlobalRef(env, local);
+                    (*env)->DeleteLocalRef(env, local);
+                    if (global == NULL) {
+                        jclass err = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+                        if (err != NULL) (*env)->ThrowNew(env, err, "String constant");
+                        return NULL;
+                    }
+                    jstring expected = NULL;
+                    if (!__atomic_compare_exchange_n(&jnic_strings[index], &expected, global, 0,
+                            __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+                        // Another thread won the race
+                        (*env)->DeleteGlobalRef(env, global);
+                        return expected;
+                    }
+                    return global;
+                }
+
+                """);
+        return code.toString();
+    }
+
+    public int getStringCount() {
+        return strings.size();
+    }
+}
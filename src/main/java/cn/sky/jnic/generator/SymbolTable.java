@@ -0,0 +1,341 @@
+package cn.sky.jnic.generator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Library-wide table of the classes, fields and methods referenced by generated code.
+ * <p>
+ * Every site refers to a symbol by its index, so the same class is only turned into one global reference. The table
+ * is resolved from {@code registerNatives}:
+ * <ul>
+ *     <li>all classes are loaded (not initialized) through the class loader of the first class that registers;</li>
+ *     <li>members of JDK classes are resolved at the same time, as far as the running JDK has them;</li>
+ *     <li>members of a class that has native methods are resolved when that class registers, before any of its
+ *     native methods can run.</li>
+ * </ul>
+ * Only the classes every JVM has and the members of a site's own class are read from the table directly. Any other
+ * symbol is checked at its site and resolved on its first use if it is not there yet: a JDK member missing from the
+ * running JDK only fails where it is used, with the linkage error the JVM would throw, and resolving a member of
+ * another class early could initialize that class out of order.
+ */
+public class SymbolTable {
+    // JDK packages whose classes are initialized early, or whose initialization has no visible side effects
+    private static final String[] EAGER_PACKAGES = {"java/lang/", "java/util/", "java/io/"};
+    // Classes every JVM has, a failure to resolve them fails the registration
+    private static final Set<String> CORE_CLASSES = Set.of("java/lang/Object", "java/lang/String", "java/lang/Class",
+            "java/lang/Throwable");
+
+    private final List<String> classes = new ArrayList<>();
+    private final Map<String, Integer> classIndex = new HashMap<>();
+    private final List<Member> fields = new ArrayList<>();
+    private final Map<Member, Integer> fieldIndex = new HashMap<>();
+    private final List<Member> methods = new ArrayList<>();
+    private final Map<Member, Integer> methodIndex = new HashMap<>();
+
+    private record Member(int owner, String name, String desc, boolean isStatic) {
+    }
+
+    /**
+     * @param internalName internal name of a class, or descriptor of an array class
+     */
+    public int getClass(String internalName) {
+        return classIndex.computeIfAbsent(internalName, k -> {
+            classes.add(k);
+            return classes.size() - 1;
+        });
+    }
+
+    public int getField(String owner, String name, String desc, boolean isStatic) {
+        return fieldIndex.computeIfAbsent(new Member(getClass(owner), name, desc, isStatic), k -> {
+            fields.add(k);
+            return fields.size() - 1;
+        });
+    }
+
+    public int getMethod(String owner, String name, String desc, boolean isStatic) {
+        return methodIndex.computeIfAbsent(new Member(getClass(owner), name, desc, isStatic), k -> {
+            methods.add(k);
+            return methods.size() - 1;
+        });
+    }
+
+    /**
+     * @param internalName internal name of a class, or descriptor of an array class
+     * @param currentClass class whose native method is being generated
+     * @return whether the class is resolved before a method of {@code currentClass} can run
+     */
+    public static boolean isClassResolvedEarly(String internalName, String currentClass) {
+        return internalName.equals(currentClass) || isCoreClass(internalName);
+    }
+
+    /**
+     * @param owner        class of the member
+     * @param currentClass class whose native method is being generated
+     * @return whether the member is resolved before a method of {@code currentClass} can run
+     */
+    public static boolean isMemberResolvedEarly(String owner, String currentClass) {
+        return owner.equals(currentClass);
+    }
+
+    /**
+     * @param owner        a class
+     * @param currentClass class whose native method is being generated
+     * @return whether {@code owner} is initialized before a method of {@code currentClass} can run, or initializing it
+     * has no visible side effects
+     */
+    public static boolean isInitializedEarly(String owner, String currentClass) {
+        return owner.equals(currentClass) || isEagerPackage(owner);
+    }
+
+    private static boolean isCoreClass(String internalName) {
+        // Arrays of primitives as well
+        return CORE_CLASSES.contains(internalName)
+                || internalName.length() == 2 && internalName.charAt(0) == '[';
+    }
+
+    private static boolean isEagerPackage(String internalName) {
+        // Arrays of primitives have no initializer
+        if (internalName.length() == 2 && internalName.charAt(0) == '[') {
+            return true;
+        }
+        for (String prefix : EAGER_PACKAGES) {
+            if (internalName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getJavaName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    /**
+     * C definitions of the tables and of the resolution functions declared in {@code jnic.h}. Must be called after
+     * every symbol has been added, including the ones added by {@link #generateLink}.
+     */
+    public String generate() {
+        StringBuilder code = new StringBuilder();
+        code.append("typedef struct { int cls; const char* name; const char* sig; jboolean is_static; } JnicMember;\n\n");
+        // Zero sized arrays are not valid C
+        code.append("jclass jnic_classes[").append(Math.max(1, classes.size())).append("];\n");
+        code.append("jfieldID jnic_fields[").append(Math.max(1, fields.size())).append("];\n");
+        code.append("jmethodID jnic_methods[").append(Math.max(1, methods.size())).append("];\n\n");
+
+        code.append("static const char* const jnic_class_names[] = {\n");
+        for (String name : classes) {
+            code.append("    \"").append(getJavaName(name)).append("\",\n");
+        }
+        code.append("    NULL\n};\n");
+        appendMembers(code, "jnic_field_syms", fields);
+        appendMembers(code, "jnic_method_syms", methods);
+
+        code.append("static const int jnic_early_classes[] = {");
+        for (int i = 0; i < classes.size(); i++) {
+            if (isCoreClass(classes.get(i))) {
+                code.append(" ").append(i).append(",");
+            }
+        }
+        code.append(" -1 };\n");
+        appendIndexList(code, "jnic_prefetch_fields", fields, -1);
+        appendIndexList(code, "jnic_prefetch_methods", methods, -1);
+        code.append("\n");
+
+        code.append("""
+                static jclass jnic_cls_Class = NULL;
+                static jmethodID jnic_mid_forName = NULL;
+                static jobject jnic_loader = NULL;
+                static int jnic_symbols_ready = 0;
+
+                static jclass jnic_publish_class(JNIEnv* env, int index, jclass global) {
+                    jclass expected = NULL;
+                    if (!__atomic_compare_exchange_n(&jnic_classes[index], &expected, global, 0,
+                            __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+                        // Another thread won the race
+                        (*env)->DeleteGlobalRef(env, global);
+                        return expected;
+                    }
+                    return global;
+                }
+
+                // Class.forName(name, false, loader): loads the class without initializing it
+                static jclass jnic_load_class(JNIEnv* env, int index) {
+                    jstring name = (*env)->NewStringUTF(env, jnic_class_names[index]);
+                    if (name == NULL) return NULL;
+                    jclass cls = (jclass)(*env)->CallStaticObjectMethod(env, jnic_cls_Class, jnic_mid_forName, name,
+                            JNI_FALSE, jnic_loader);
+                    (*env)->DeleteLocalRef(env, name);
+                    if ((*env)->ExceptionCheck(env)) return NULL;
+                    jclass global = (jclass)(*env)->NewGlobalRef(env, cls);
+                    (*env)->DeleteLocalRef(env, cls);
+                    return global == NULL ? NULL : jnic_publish_class(env, index, global);
+                }
+
+                jclass jnic_resolve_class(JNIEnv* env, int index) {
+                    jclass cls = __atomic_load_n(&jnic_classes[index], __ATOMIC_ACQUIRE);
+                    if (cls != NULL) return cls;
+                    cls = jnic_load_class(env, index);
+                    if (cls == NULL && (*env)->ExceptionCheck(env)) {
+                        // A missing class at a use site is a linkage error, not ClassNotFoundException
+                        (*env)->ExceptionClear(env);
+                        jclass err = (*env)->FindClass(env, "java/lang/NoClassDefFoundError");
+                        if (err != NULL) {
+                            (*env)->ThrowNew(env, err, jnic_class_names[index]);
+                            (*env)->DeleteLocalRef(env, err);
+                        }
+                    }
+                    return cls;
+                }
+
+                jfieldID jnic_resolve_field(JNIEnv* env, int index) {
+                    jfieldID id = __atomic_load_n(&jnic_fields[index], __ATOMIC_ACQUIRE);
+                    if (id != NULL) return id;
+                    const JnicMember* m = &jnic_field_syms[index];
+                    jclass cls = jnic_resolve_class(env, m->cls);
+                    if (cls == NULL) return NULL;
+                    id = m->is_static ? (*env)->GetStaticFieldID(env, cls, m->name, m->sig)
+                                      : (*env)->GetFieldID(env, cls, m->name, m->sig);
+                    if (id != NULL) __atomic_store_n(&jnic_fields[index], id, __ATOMIC_RELEASE);
+                    return id;
+                }
+
+                jmethodID jnic_resolve_method(JNIEnv* env, int index) {
+                    jmethodID id = __atomic_load_n(&jnic_methods[index], __ATOMIC_ACQUIRE);
+                    if (id != NULL) return id;
+                    const JnicMember* m = &jnic_method_syms[index];
+                    jclass cls = jnic_resolve_class(env, m->cls);
+                    if (cls == NULL) return NULL;
+                    id = m->is_static ? (*env)->GetStaticMethodID(env, cls, m->name, m->sig)
+                                      : (*env)->GetMethodID(env, cls, m->name, m->sig);
+                    if (id != NULL) __atomic_store_n(&jnic_methods[index], id, __ATOMIC_RELEASE);
+                    return id;
+                }
+
+                // Members that sites read without a check, a failure is thrown from registerNatives
+                static int jnic_resolve_members(JNIEnv* env, const int* fields, const int* methods) {
+                    for (const int* i = fields; *i >= 0; i++) {
+                        if (jnic_resolve_field(env, *i) == NULL) return -1;
+                    }
+                    for (const int* i = methods; *i >= 0; i++) {
+                        if (jnic_resolve_method(env, *i) == NULL) return -1;
+                    }
+                    return 0;
+                }
+
+                // Members of JDK classes, only resolved ahead of their sites. One the running JDK does not have is
+                // left empty, its sites resolve it again and throw the linkage error
+                static void jnic_prefetch_members(JNIEnv* env, const int* fields, const int* methods) {
+                    for (const int* i = fields; *i >= 0; i++) {
+                        if (jnic_resolve_field(env, *i) == NULL) (*env)->ExceptionClear(env);
+                    }
+                    for (const int* i = methods; *i >= 0; i++) {
+                        if (jnic_resolve_method(env, *i) == NULL) (*env)->ExceptionClear(env);
+                    }
+                }
+
+                /*
+                 * Resolves the table once, with the class loader of the first class that registers. The monitor of
+                 * JNICLoader serializes concurrent registrations from different threads.
+                 */
+                static int jnic_init_symbols(JNIEnv* env, jclass lock, jclass target) {
+                    if (__atomic_load_n(&jnic_symbols_ready, __ATOMIC_ACQUIRE)) return 0;
+                    if ((*env)->MonitorEnter(env, lock) != JNI_OK) return -1;
+                    int result = 0;
+                    if (!jnic_symbols_ready) {
+                        jclass cls = (*env)->FindClass(env, "java/lang/Class");
+                        if (cls == NULL) { result = -1; goto done; }
+                        jnic_cls_Class = (jclass)(*env)->NewGlobalRef(env, cls);
+                        (*env)->DeleteLocalRef(env, cls);
+                        jnic_mid_forName = (*env)->GetStaticMethodID(env, jnic_cls_Class, "forName",
+                                "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;");
+                        jmethodID getClassLoader = (*env)->GetMethodID(env, jnic_cls_Class, "getClassLoader",
+                                "()Ljava/lang/ClassLoader;");
+                        if (jnic_mid_forName == NULL || getClassLoader == NULL) { result = -1; goto done; }
+                        jobject loader = (*env)->CallObjectMethod(env, target, getClassLoader);
+                        if ((*env)->ExceptionCheck(env)) { result = -1; goto done; }
+                        if (loader != NULL) {
+                            jnic_loader = (*env)->NewGlobalRef(env, loader);
+                            (*env)->DeleteLocalRef(env, loader);
+                        }
+                        for (int i = 0; jnic_class_names[i] != NULL; i++) {
+                            if (__atomic_load_n(&jnic_classes[i], __ATOMIC_ACQUIRE) == NULL && jnic_load_class(env, i) == NULL) {
+                                // Retried at the first use, which throws NoClassDefFoundError if it is still missing
+                                (*env)->ExceptionClear(env);
+                            }
+                        }
+                        for (const int* i = jnic_early_classes; *i >= 0; i++) {
+                            if (jnic_resolve_class(env, *i) == NULL) { result = -1; goto done; }
+                        }
+                        jnic_prefetch_members(env, jnic_prefetch_fields, jnic_prefetch_methods);
+                        __atomic_store_n(&jnic_symbols_ready, 1, __ATOMIC_RELEASE);
+                    }
+                done:
+                    (*env)->MonitorExit(env, lock);
+                    return result;
+                }
+
+                """);
+        return code.toString();
+    }
+
+    /**
+     * Code run when {@code className} registers: publishes the class itself, whatever loader defined it, and resolves
+     * its members.
+     *
+     * @param indent indentation of the generated statements
+     * @param onError statement run with the resolution error pending
+     */
+    public String generateLink(String className, String indent, String onError) {
+        int owner = getClass(className);
+        StringBuilder code = new StringBuilder();
+        code.append(indent).append("if (__atomic_load_n(&jnic_classes[").append(owner)
+                .append("], __ATOMIC_ACQUIRE) == NULL) {\n");
+        code.append(indent).append("    jclass global = (jclass)(*env)->NewGlobalRef(env, target);\n");
+        code.append(indent).append("    if (global != NULL) jnic_publish_class(env, ").append(owner)
+                .append(", global);\n");
+        code.append(indent).append("}\n");
+        appendIndexList(code.append(indent), "fields", fields, owner);
+        appendIndexList(code.append(indent), "methods", methods, owner);
+        code.append(indent).append("if (jnic_resolve_members(env, fields, methods) < 0) {\n");
+        code.append(indent).append("    ").append(onError).append("\n");
+        code.append(indent).append("}\n");
+        return code.toString();
+    }
+
+    private void appendMembers(StringBuilder code, String name, List<Member> members) {
+        code.append("static const JnicMember ").append(name).append("[] = {\n");
+        for (Member member : members) {
+            code.append("    { ").append(member.owner()).append(", \"").append(member.name()).append("\", \"")
+                    .append(member.desc()).append("\", ").append(member.isStatic() ? "JNI_TRUE" : "JNI_FALSE")
+                    .append(" },\n");
+        }
+        code.append("    { -1, NULL, NULL, JNI_FALSE }\n};\n");
+    }
+
+    /**
+     * Appends the indices of the members owned by {@code owner}, or of the members of eager packages if it is -1,
+     * terminated by -1.
+     */
+    private void appendIndexList(StringBuilder code, String name, List<Member> members, int owner) {
+        code.append("static const int ").append(name).append("[] = {");
+        for (int i = 0; i < members.size(); i++) {
+            int memberOwner = members.get(i).owner();
+            if (owner >= 0 ? memberOwner == owner : isEagerPackage(classes.get(memberOwner))) {
+                code.append(" ").append(i).append(",");
+            }
+        }
+        code.append(" -1 };\n");
+    }
+
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    public int getMemberCount() {
+        return fields.size() + methods.size();
+    }
+}
@@ -0,0 +1,222 @@
+package cn.sky.jnic.process;
+
+import cn.sky.jnic.Jnic;
+import cn.sky.jnic.config.Config;
+import cn.sky.jnic.process.cache.ObjectCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Producer/consumer pipeline between {@link cn.sky.jnic.generator.CGenerator} and {@link ZigCompiler}.
+ * <p>
+ * The generator submits every finished translation unit while it keeps generating the next ones. Worker threads
+ * compile each unit to an object file for every target. The queue is bounded, so a generator running ahead of the
+ * compilers blocks instead of piling up sources. Once the last unit has been compiled, every target is linked into its
+ * shared library.
+ */
+public class CompilePipeline {
+    private static final File END = new File("");
+
+    private final File outputDir;
+    private final List<String> targets = new ArrayList<>();
+    private final BlockingQueue<File> queue;
+    private final ExecutorService executor;
+    private final List<Future<?>> workers = new ArrayList<>();
+    private final Map<String, List<File>> objects = new ConcurrentHashMap<>();
+    private final Map<String, CompilerOptions> options = new HashMap<>();
+    private final Set<String> failedTargets = ConcurrentHashMap.newKeySet();
+    private final ObjectCache cache;
+    private byte[] headerDigest;
+
+    /**
+     * @param cache cache of compiled objects, or {@code null} to always compile
+     */
+    public CompilePipeline(File outputDir, Config config, ObjectCache cache) {
+        this.outputDir = outputDir;
+        this.cache = cache;
+        for (String target : config.getTargets()) {
+            String zigTarget = ZigCompiler.mapTargetToZig(target);
+            if (zigTarget != null) {
+                targets.add(zigTarget);
+                objects.put(zigTarget, Collections.synchronizedList(new ArrayList<>()));
+                options.put(zigTarget, CompilerOptions.fromConfig(config, target, zigTarget));
+            } else {
+                Jnic.getLogger().warn("Unknown target: " + target);
+            }
+        }
+        if (targets.isEmpty()) {
+            Jnic.getLogger().warn("No targets specified for compilation. Skipping.");
+        }
+
+        int threads = config.getCompileThreads();
+        int workerCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, config.getCompileQueueSize()));
+        this.executor = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "jnic-compiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(executor.submit(this::work));
+        }
+    }
+
+    /**
+     * Hands a translation unit to the compilers, blocking while the queue is full.
+     */
+    public void submit(File cFile) {
+        if (cFile == null) {
+            return;
+        }
+        try {
+            queue.put(cFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing " + cFile.getName(), e);
+        }
+    }
+
+    /**
+     * Waits for the queued units and links every target.
+     *
+     * @return the shared libraries that were built successfully
+     */
+    public List<File> finish() {
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(END);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+
+            List<Future<File>> links = new ArrayList<>();
+            for (String target : targets) {
+                links.add(executor.submit(() -> link(target)));
+            }
+            List<File> libraries = new ArrayList<>();
+            for (Future<File> link : links) {
+                File library = link.get();
+                if (library != null) {
+                    libraries.add(library);
+                }
+            }
+            if (cache != null) {
+                Jnic.getLogger().info("Object cache: " + cache.getStats());
+            }
+            return libraries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while compiling", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Compilation worker failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            File cFile;
+            try {
+                cFile = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (cFile == END) {
+                return;
+            }
+
+            String baseName = cFile.getName().substring(0, cFile.getName().length() - ".c".length());
+            for (String target : targets) {
+                if (failedTargets.contains(target)) {
+                    continue;
+                }
+                File objFile = new File(outputDir, baseName + "." + target + ".o");
+                try {
+                    if (compile(cFile, objFile, target)) {
+                        objects.get(target).add(objFile);
+                    } else {
+                        failedTargets.add(target);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep draining the queue, a worker that dies would leave submit() and finish() blocked on it
+                    Jnic.getLogger().error("Compilation of " + cFile.getName() + " for " + target + " failed", e);
+                    failedTargets.add(target);
+                }
+            }
+        }
+    }
+
+    private boolean compile(File cFile, File objFile, String target) {
+        if (cache == null) {
+            return ZigCompiler.compileObject(cFile, objFile, target, options.get(target));
+        }
+        try {
+            String key = objectKey(Files.readAllBytes(cFile.toPath()), getHeaderDigest(), target,
+                    ZigCompiler.getObjectFlags(target, options.get(target)), ZigCompiler.getVersion());
+
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                Files.write(objFile.toPath(), cached);
+                return true;
+            }
+            if (!ZigCompiler.compileObject(cFile, objFile, target, options.get(target))) {
+                return false;
+            }
+            cache.put(key, Files.readAllBytes(objFile.toPath()));
+            return true;
+        } catch (IOException e) {
+            Jnic.getLogger().warn("Object cache failed for " + cFile.getName() + ": " + e.getMessage());
+            return ZigCompiler.compileObject(cFile, objFile, target, options.get(target));
+        }
+    }
+
+    /**
+     * Cache key of the object compiled from {@code source}.
+     */
+    static String objectKey(byte[] source, byte[] headerDigest, String target, List<String> flags,
+            String compilerVersion) {
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(source);
+        parts.add(headerDigest);
+        parts.add(target.getBytes(StandardCharsets.UTF_8));
+        parts.add(String.join(" ", flags).getBytes(StandardCharsets.UTF_8));
+        // A different zig (and the clang it bundles) may generate different code from the same input
+        parts.add(compilerVersion.getBytes(StandardCharsets.UTF_8));
+        return ObjectCache.key(parts);
+    }
+
+    /**
+     * Digest of the headers every unit includes. They are written before the first unit is submitted.
+     */
+    private synchronized byte[] getHeaderDigest() throws IOException {
+        if (headerDigest == null) {
+            List<byte[]> headers = new ArrayList<>();
+            for (String header : new String[]{"jnic.h", "jni.h"}) {
+                File file = new File(outputDir, header);
+                headers.add(file.isFile() ? Files.readAllBytes(file.toPath()) : new byte[0]);
+            }
+            headerDigest = ObjectCache.key(headers).getBytes(StandardCharsets.US_ASCII);
+        }
+        return headerDigest;
+    }
+
+    private File link(String target) {
+        if (failedTargets.contains(target)) {
+            Jnic.getLogger().error("Skipping link for " + target + " because a unit failed to compile");
+            return null;
+        }
+        List<File> targetObjects = new ArrayList<>(objects.get(target));
+        // Keep the link order independent of the order the workers finished in
+        targetObjects.sort(Comparator.comparing(File::getName));
+        File outFile = new File(outputDir, ZigCompiler.getLibraryName(target));
+        return ZigCompiler.link(targetObjects, outFile, target, options.get(target)) ? outFile : null;
+    }
+}
@@ -0,0 +1,42 @@
+package cn.sky.jnic.process;
+
+import cn.sky.jnic.config.Config;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional compiler and linker features of one target, see {@code compiler.profile} and {@code compiler.overrides}.
+ *
+ * @param lto              link-time optimization: objects are bitcode and the whole library is optimized when linking
+ * @param hiddenVisibility {@code -fvisibility=hidden}
+ * @param gcSections       one section per function and data item, unreferenced ones are dropped by the linker
+ * @param exportList       version script exporting only the JNI entry points (ELF targets only)
+ */
+public record CompilerOptions(boolean lto, boolean hiddenVisibility, boolean gcSections, boolean exportList) {
+    public static final List<String> KEYS = List.of("lto", "hiddenVisibility", "gcSections", "exportList");
+
+    private static final CompilerOptions NONE = new CompilerOptions(false, false, false, false);
+
+    /**
+     * @param configTarget target as written in the config, e.g. {@code LINUX_X86_64}
+     * @param zigTarget    the matching zig target
+     */
+    public static CompilerOptions fromConfig(Config config, String configTarget, String zigTarget) {
+        CompilerOptions options = config.getCompilerProfile().equals("release") ? release(zigTarget) : NONE;
+        Map<String, Boolean> overrides = config.getCompilerOverrides().getOrDefault(configTarget, Map.of());
+        return new CompilerOptions(overrides.getOrDefault("lto", options.lto()),
+                overrides.getOrDefault("hiddenVisibility", options.hiddenVisibility()),
+                overrides.getOrDefault("gcSections", options.gcSections()),
+                overrides.getOrDefault("exportList", options.exportList()));
+    }
+
+    private static CompilerOptions release(String zigTarget) {
+        // The Mach-O linker of zig does not do LTO, and only ELF linkers read version scripts
+        return new CompilerOptions(!zigTarget.contains("macos"), true, true, isElf(zigTarget));
+    }
+
+    static boolean isElf(String zigTarget) {
+        return zigTarget.contains("linux");
+    }
+}
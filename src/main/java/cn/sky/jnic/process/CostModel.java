@@ -0,0 +1,407 @@
+package cn.sky.jnic.process;
+
+import cn.sky.jnic.generator.ArrayPinning;
+import cn.sky.jnic.generator.IndyLowering;
+import cn.sky.jnic.generator.MethodAnalyses;
+import cn.sky.jnic.utils.asm.MethodWrapper;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Static cost model used to decide whether a method is worth moving across the JNI boundary.
+ * <p>
+ * Every instruction is given two rough costs: what it costs in JIT-compiled Java and what the code emitted by
+ * {@link cn.sky.jnic.generator.CGenerator} costs. Pure computation is about the same on both sides, while anything
+ * that has to go through {@code JNIEnv} (field access, array element access, allocation) is considerably more
+ * expensive natively, and upcalls through {@code Call*MethodA} are the most expensive of all. Instructions inside
+ * loops are weighted by their nesting depth. The model also estimates the size of the generated code so that the
+ * total amount of native code can be capped.
+ * <p>
+ * The costs describe what the generator emits today: references are plain C variables, symbols and string constants
+ * come from library-wide tables, loops read their arrays through pinned pointers ({@link ArrayPinning}), StringBuilder
+ * chains are built in a C buffer and exception checks jump to one dispatch block per list of handlers. A change to how
+ * an instruction is lowered belongs here as well.
+ */
+public class CostModel implements Opcodes {
+    // Fixed cost of entering the native method: Java -> native transition, local frame and prologue
+    private static final int NATIVE_ENTRY_COST = 12;
+    // Fixed cost of the call in Java, where small methods usually get inlined
+    private static final int JAVA_ENTRY_COST = 4;
+
+    private static final int LOOP_WEIGHT = 8;
+    private static final int MAX_LOOP_DEPTH = 3;
+
+    private static final int JNI_CALL_COST = 8;
+    private static final int JNI_ACCESS_COST = 20;
+    private static final int UPCALL_COST = 80;
+    // Element access through a pinned pointer, the bounds check is usually hoisted to the loop entry
+    private static final int PINNED_ACCESS_COST = 2;
+
+    /**
+     * Result of estimating a single method.
+     *
+     * @param nativeCost estimated cost of the generated C code
+     * @param javaCost   estimated cost of the same method compiled by the JIT
+     * @param upcalls    number of call sites that go back into the JVM through {@code Call*Method}
+     * @param compute    number of instructions that translate into plain C
+     * @param codeSize   estimated size of the generated machine code in bytes
+     */
+    public record Estimate(long nativeCost, long javaCost, int upcalls, int compute, int codeSize) {
+        public double ratio() {
+            return (double) nativeCost / Math.max(1, javaCost);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ratio=%.2f native=%d java=%d upcalls=%d compute=%d size=%dB",
+                    ratio(), nativeCost, javaCost, upcalls, compute, codeSize);
+        }
+    }
+
+    private final Predicate<MethodInsnNode> directCall;
+    private final boolean indyLowering;
+    private final MethodAnalyses analyses;
+
+    /**
+     * @param directCall   tells whether a call site will be emitted as a direct C call instead of a JNI upcall
+     * @param indyLowering whether {@code invokedynamic} call sites are lowered, see {@code optimization.indyLowering}
+     * @param analyses     analyses shared with the generator, which tell the loops whose arrays are pinned
+     */
+    public CostModel(Predicate<MethodInsnNode> directCall, boolean indyLowering, MethodAnalyses analyses) {
+        this.directCall = directCall;
+        this.indyLowering = indyLowering;
+        this.analyses = analyses;
+    }
+
+    public Estimate estimate(MethodWrapper method) {
+        InsnList instructions = method.getMethodNode().instructions;
+        int[] loopDepth = computeLoopDepth(instructions);
+        ArrayPinning pinning = findPinning(method);
+
+        long nativeCost = NATIVE_ENTRY_COST;
+        long javaCost = JAVA_ENTRY_COST;
+        int upcalls = 0;
+        int compute = 0;
+        int codeSize = 64;
+        List<List<TryCatchBlockNode>> handlerLists = coveringHandlers(method.getMethodNode());
+        Set<List<TryCatchBlockNode>> dispatched = new HashSet<>();
+
+        int index = 0;
+        for (AbstractInsnNode insn : instructions) {
+            boolean pinned = pinning != null && pinning.getPinnedLocal(index) >= 0;
+            List<TryCatchBlockNode> handlers = handlerLists.get(index);
+            int depth = loopDepth[index++];
+            int opcode = insn.getOpcode();
+            if (opcode < 0) {
+                continue;
+            }
+
+            long weight = 1;
+            for (int i = 0; i < Math.min(depth, MAX_LOOP_DEPTH); i++) {
+                weight *= LOOP_WEIGHT;
+            }
+
+            int nativeInsn;
+            int javaInsn = 1;
+            int size;
+            switch (opcode) {
+                case ALOAD:
+                case IFNULL:
+                case IFNONNULL:
+                    nativeInsn = 1;
+                    size = 8;
+                    break;
+                case ASTORE:
+                case POP:
+                case POP2:
+                    // DeleteLocalRef when the popped or overwritten reference is owned and dead
+                    nativeInsn = 2;
+                    size = 24;
+                    break;
+                case DUP:
+                case DUP_X1:
+                case DUP_X2:
+                case DUP2:
+                    nativeInsn = 2;
+                    size = 16;
+                    break;
+                case IF_ACMPEQ:
+                case IF_ACMPNE:
+                    // IsSameObject
+                    nativeInsn = JNI_CALL_COST;
+                    size = 32;
+                    break;
+                case GETFIELD:
+                case PUTFIELD:
+                case GETSTATIC:
+                case PUTSTATIC:
+                    nativeInsn = JNI_ACCESS_COST;
+                    size = 160;
+                    break;
+                case IALOAD:
+                case LALOAD:
+                case FALOAD:
+                case DALOAD:
+                case AALOAD:
+                case CALOAD:
+                case SALOAD:
+                case IASTORE:
+                case LASTORE:
+                case FASTORE:
+                case DASTORE:
+                case AASTORE:
+                case CASTORE:
+                case SASTORE:
+                    nativeInsn = pinned ? PINNED_ACCESS_COST : JNI_ACCESS_COST;
+                    size = pinned ? 48 : 96;
+                    break;
+                case BALOAD:
+                case BASTORE:
+                    // Without pinning, a boolean[]/byte[] check against the class table unless the classpath tells
+                    nativeInsn = pinned ? PINNED_ACCESS_COST : JNI_ACCESS_COST + JNI_CALL_COST;
+                    size = pinned ? 48 : 160;
+                    break;
+                case ARRAYLENGTH:
+                    // Pinned arrays have their length read on entry of the loop
+                    nativeInsn = pinned ? 1 : JNI_CALL_COST;
+                    size = pinned ? 24 : 48;
+                    break;
+                case INSTANCEOF:
+                case CHECKCAST:
+                    nativeInsn = JNI_CALL_COST;
+                    size = 64;
+                    break;
+                case LDC:
+                    // Strings and classes are read from their tables
+                    nativeInsn = isPrimitiveConstant(((LdcInsnNode) insn).cst) ? 1 : 2;
+                    size = 32;
+                    break;
+                case NEW:
+                case ANEWARRAY:
+                    nativeInsn = JNI_ACCESS_COST;
+                    javaInsn = 10;
+                    size = 128;
+                    break;
+                case NEWARRAY:
+                    nativeInsn = JNI_ACCESS_COST;
+                    javaInsn = 10;
+                    size = 64;
+                    break;
+                case MONITORENTER:
+                case MONITOREXIT:
+                    nativeInsn = 2 * JNI_ACCESS_COST;
+                    javaInsn = 5;
+                    size = 32;
+                    break;
+                case ATHROW:
+                    nativeInsn = UPCALL_COST;
+                    javaInsn = UPCALL_COST;
+                    size = 64;
+                    break;
+                case INVOKEDYNAMIC: {
+                    // See IndyLowering: concatenations and record methods become JNI accesses, constant lambdas are
+                    // cached, the rest are upcalls to a synthetic indy_wrapper_* method
+                    InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insn;
+                    int args = Type.getArgumentTypes(indy.desc).length;
+                    javaInsn = 3;
+                    if (!indyLowering) {
+                        nativeInsn = UPCALL_COST;
+                        size = 256;
+                        upcalls++;
+                    } else if (IndyLowering.parseConcat(indy) != null) {
+                        // Appended to a C buffer, one NewString at the end
+                        nativeInsn = JNI_ACCESS_COST + 4 * args;
+                        javaInsn = 4 * (1 + args);
+                        size = 128 + 48 * args;
+                    } else if (indy.bsm.getOwner().equals("java/lang/runtime/ObjectMethods")) {
+                        nativeInsn = JNI_ACCESS_COST * 2 * Math.max(1, indy.bsmArgs.length - 2);
+                        javaInsn = 4 * Math.max(1, indy.bsmArgs.length - 2);
+                        size = 96 * Math.max(1, indy.bsmArgs.length - 2);
+                    } else if (IndyLowering.isConstantLambda(indy)) {
+                        nativeInsn = JNI_ACCESS_COST;
+                        size = 128;
+                    } else {
+                        nativeInsn = UPCALL_COST;
+                        size = 256;
+                        upcalls++;
+                    }
+                    break;
+                }
+                case INVOKEVIRTUAL:
+                case INVOKESPECIAL:
+                case INVOKESTATIC:
+                case INVOKEINTERFACE: {
+                    MethodInsnNode minsn = (MethodInsnNode) insn;
+                    javaInsn = 3;
+                    if (isIntrinsic(minsn)) {
+                        nativeInsn = 4;
+                        size = 48;
+                    } else if (minsn.owner.equals("java/lang/StringBuilder")
+                            && List.of("<init>", "append", "toString").contains(minsn.name)) {
+                        // Usually part of an append chain computed in a C buffer; only the final toString creates
+                        // a Java object
+                        nativeInsn = minsn.name.equals("toString") ? JNI_ACCESS_COST : 4;
+                        javaInsn = minsn.name.equals("toString") ? 8 : 4;
+                        size = 96;
+                    } else if (directCall.test(minsn)) {
+                        nativeInsn = 6;
+                        size = 96;
+                    } else {
+                        nativeInsn = UPCALL_COST + 4 * Type.getArgumentTypes(minsn.desc).length;
+                        size = 256;
+                        upcalls++;
+                    }
+                    break;
+                }
+                default:
+                    nativeInsn = 1;
+                    size = 8;
+                    compute++;
+                    break;
+            }
+
+            if (!handlers.isEmpty() && nativeInsn >= JNI_CALL_COST) {
+                // A jump to the dispatch block shared by every instruction with the same handlers
+                size += 16;
+                dispatched.add(handlers);
+            }
+
+            nativeCost += nativeInsn * weight;
+            javaCost += javaInsn * weight;
+            codeSize += size;
+        }
+
+        for (List<TryCatchBlockNode> handlers : dispatched) {
+            // Takes the exception, then one IsInstanceOf per catch type until a catch-all
+            codeSize += 64;
+            for (TryCatchBlockNode handler : handlers) {
+                codeSize += 48;
+                if (handler.type == null) {
+                    break;
+                }
+            }
+        }
+
+        if (pinning != null) {
+            for (ArrayPinning.Region region : pinning.getRegions()) {
+                // Pinning and releasing every array once per entry of the loop
+                nativeCost += 2L * JNI_ACCESS_COST * region.arrays().size();
+            }
+        }
+
+        return new Estimate(nativeCost, javaCost, upcalls, compute, codeSize);
+    }
+
+    /**
+     * The loops whose arrays the generator will pin, or {@code null} if there are none.
+     */
+    private ArrayPinning findPinning(MethodWrapper method) {
+        try {
+            return analyses.get(method.getOwner().getName(), method.getMethodNode()).pinning();
+        } catch (AnalyzerException e) {
+            // Estimated without pinning, generating the method reports the error
+            return null;
+        }
+    }
+
+    /**
+     * The handlers covering every instruction, in the order the JVM tries them. Equal lists share one dispatch block in
+     * the generated code.
+     */
+    private List<List<TryCatchBlockNode>> coveringHandlers(MethodNode method) {
+        InsnList instructions = method.instructions;
+        List<List<TryCatchBlockNode>> covering = new ArrayList<>();
+        for (int index = 0; index < instructions.size(); index++) {
+            covering.add(new ArrayList<>());
+        }
+        for (TryCatchBlockNode block : method.tryCatchBlocks) {
+            int end = instructions.indexOf(block.end);
+            for (int index = instructions.indexOf(block.start); index < end; index++) {
+                covering.get(index).add(block);
+            }
+        }
+        return covering;
+    }
+
+    private boolean isPrimitiveConstant(Object cst) {
+        return cst instanceof Integer || cst instanceof Long || cst instanceof Float || cst instanceof Double;
+    }
+
+    /**
+     * Calls that {@link cn.sky.jnic.generator.CGenerator} replaces with C implementations.
+     */
+    private boolean isIntrinsic(MethodInsnNode minsn) {
+        switch (minsn.owner) {
+            case "java/lang/Math":
+                return !minsn.desc.contains("L");
+            case "java/lang/String":
+                return (minsn.name.equals("length") || minsn.name.equals("hashCode") || minsn.name.equals("charAt")
+                        || minsn.name.equals("equals"));
+            case "java/lang/System":
+                return minsn.name.equals("arraycopy");
+            case "java/lang/Object":
+                return minsn.name.equals("getClass");
+            case "java/lang/Float":
+                return minsn.name.equals("floatToIntBits");
+            case "java/lang/Double":
+                return minsn.name.equals("doubleToLongBits");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Approximates loop nesting by counting, for every instruction, the backward jumps whose range covers it.
+     */
+    private int[] computeLoopDepth(InsnList instructions) {
+        int[] depth = new int[instructions.size()];
+        Map<LabelNode, Integer> labels = new HashMap<>();
+        int index = 0;
+        for (AbstractInsnNode insn : instructions) {
+            if (insn instanceof LabelNode) {
+                labels.put((LabelNode) insn, index);
+            }
+            index++;
+        }
+
+        index = 0;
+        for (AbstractInsnNode insn : instructions) {
+            if (insn instanceof JumpInsnNode) {
+                markBackEdge(depth, labels.get(((JumpInsnNode) insn).label), index);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsw = (TableSwitchInsnNode) insn;
+                markBackEdge(depth, labels.get(tsw.dflt), index);
+                for (LabelNode label : tsw.labels) {
+                    markBackEdge(depth, labels.get(label), index);
+                }
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsw = (LookupSwitchInsnNode) insn;
+                markBackEdge(depth, labels.get(lsw.dflt), index);
+                for (LabelNode label : lsw.labels) {
+                    markBackEdge(depth, labels.get(label), index);
+                }
+            }
+            index++;
+        }
+        return depth;
+    }
+
+    private void markBackEdge(int[] depth, Integer target, int source) {
+        if (target == null || target >= source) {
+            return;
+        }
+        for (int i = target; i <= source; i++) {
+            depth[i]++;
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package cn.sky.jnic.process;
 
 import cn.sky.jnic.Jnic;
+import cn.sky.jnic.config.Config;
 import cn.sky.jnic.generator.CGenerator;
+import cn.sky.jnic.generator.IndyLowering;
+import cn.sky.jnic.generator.MethodAnalyses;
+import cn.sky.jnic.process.cache.ObjectCache;
 import cn.sky.jnic.utils.MatcherUtils;
 import cn.sky.jnic.utils.asm.ClassWrapper;
 import cn.sky.jnic.utils.asm.MethodWrapper;
@@ -30,58 +34,28 @@ public class NativeProcessor {
     @Getter
     private final Jnic jnic;
     private final CGenerator generator;
+    // Shared by the cost model and the generator
+    @Getter
+    private final MethodAnalyses analyses;
     private final List<String> generatedNativeMethods = new ArrayList<>();
     private final Set<ClassWrapper> processedClasses = new HashSet<>();
+    // owner + "." + name + desc of every method selected for nativization
+    private final Set<String> selectedMethods = new HashSet<>();
 
     public NativeProcessor(Jnic jnic) {
         this.jnic = jnic;
+        this.analyses = new MethodAnalyses(jnic.getConfig().getPinIterations() > 0);
         this.generator = new CGenerator(this);
     }
 
     public boolean isNative(String owner, String name, String desc) {
-        ClassWrapper classWrapper = jnic.getClasses().get(owner);
-        if (classWrapper == null)
-            return false;
-        if (!shouldProcessClass(classWrapper))
-            return false;
-
-        for (MethodWrapper mw : classWrapper.getMethods()) {
-            if (mw.getOriginalName().equals(name) && mw.getOriginalDescriptor().equals(desc)) {
-                return shouldProcessMethod(mw);
-            }
-        }
-        return false;
+        return selectedMethods.contains(methodKey(owner, name, desc));
     }
 
     public void process() {
         Jnic.getLogger().info("Starting native processing...");
 
-        HashMap<String, ClassWrapper> temp = new HashMap<>();
-        for (ClassWrapper classWrapper : jnic.getClasses().values()) {
-            if (!shouldProcessClass(classWrapper))
-                continue;
-
-            boolean classModified = false;
-            // Iterate over a copy to avoid ConcurrentModificationException when adding
-            // helper methods
-            List<MethodWrapper> methods = new ArrayList<>(classWrapper.getMethods());
-            for (MethodWrapper methodWrapper : methods) {
-                if (shouldProcessMethod(methodWrapper)) {
-                    processMethod(classWrapper, methodWrapper);
-                    classModified = true;
-                }
-            }
-
-            if (classModified) {
-                processedClasses.add(classWrapper);
-                injectLoader(classWrapper, temp);
-            }
-        }
-
-        jnic.getClasses().putAll(temp);
-
-        // Finalize generation (write C files, compile, etc.)
-        generator.finalizeGeneration();
+        selectMethods();
 
         // Extract jni.h from resources
         try (InputStream is = getClass().getResourceAsStream("/jni.h")) {
@@ -94,62 +68,168 @@ public class NativeProcessor {
             Jnic.getLogger().error("Failed to extract jni.h: " + e.getMessage());
         }
 
-        // Compile using Zig
-        File cFile = new File(jnic.getTmpdir(), Jnic.getInstance().getTempC().toString() + ".c");
-
-        // Output directory: Use a temporary directory for compilation artifacts
-        if (cFile.exists()) {
-            ZigCompiler.compile(cFile, jnic.getTmpdir(), jnic.getConfig().getTargets());
-
-            // Collect compiled libraries and add to Jnic resources map
-            // This ensures they are included in the output JAR
-            // Collect compiled libraries and pack them into native.dat
-            File[] files = jnic.getTmpdir().listFiles();
-            if (files != null) {
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                     DataOutputStream dos = new DataOutputStream(baos)) {
-
-                    List<File> libsToPack = new ArrayList<>();
-                    for (File lib : files) {
-                        String name = lib.getName();
-                        if (name.endsWith(".so") || name.endsWith(".dll") || name.endsWith(".dylib")) {
-                            libsToPack.add(lib);
-                        }
+        // Units are compiled while the following ones are still being generated
+        CompilePipeline pipeline = new CompilePipeline(jnic.getTmpdir(), jnic.getConfig(),
+                ObjectCache.fromConfig(jnic.getConfig()));
+        pipeline.submit(generator.writeRuntime());
+
+        // One translation unit per package
+        Map<String, List<ClassWrapper>> packages = new TreeMap<>();
+        for (ClassWrapper classWrapper : jnic.getClasses().values()) {
+            if (!shouldProcessClass(classWrapper))
+                continue;
+            String name = classWrapper.getName();
+            packages.computeIfAbsent(name.contains("/") ? name.substring(0, name.lastIndexOf('/')) : "",
+                    k -> new ArrayList<>()).add(classWrapper);
+        }
+
+        HashMap<String, ClassWrapper> temp = new HashMap<>();
+        for (Map.Entry<String, List<ClassWrapper>> pkg : packages.entrySet()) {
+            for (ClassWrapper classWrapper : pkg.getValue()) {
+                boolean classModified = false;
+                // Iterate over a copy to avoid ConcurrentModificationException when adding
+                // helper methods
+                List<MethodWrapper> methods = new ArrayList<>(classWrapper.getMethods());
+                for (MethodWrapper methodWrapper : methods) {
+                    if (isNative(classWrapper.getName(), methodWrapper.getOriginalName(),
+                            methodWrapper.getOriginalDescriptor())) {
+                        processMethod(classWrapper, methodWrapper);
+                        classModified = true;
                     }
+                }
 
-                    dos.writeInt(libsToPack.size());
-                    for (File lib : libsToPack) {
-                        byte[] nameBytes = lib.getName().getBytes(StandardCharsets.UTF_8);
-                        dos.writeInt(nameBytes.length);
-                        dos.write(nameBytes);
+                if (classModified) {
+                    processedClasses.add(classWrapper);
+                    injectLoader(classWrapper, temp);
+                }
+            }
+            pipeline.submit(generator.flushUnit(pkg.getKey()));
+        }
 
-                        byte[] content = Files.readAllBytes(lib.toPath());
-                        dos.writeInt(content.length);
-                        dos.write(content);
+        jnic.getClasses().putAll(temp);
 
-                        Jnic.getLogger().info("Packed library: " + lib.getName());
-                    }
+        pipeline.submit(generator.finalizeGeneration());
+        List<File> libsToPack = pipeline.finish();
 
-                    byte[] data = baos.toByteArray();
-                    // Encrypt (XOR 0x5F)
-                    for (int i = 0; i < data.length; i++) {
-                        data[i] ^= 0x5F;
-                    }
+        // Collect compiled libraries and pack them into the dat resource
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+
+            dos.writeInt(libsToPack.size());
+            for (File lib : libsToPack) {
+                byte[] nameBytes = lib.getName().getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(nameBytes.length);
+                dos.write(nameBytes);
 
-                    jnic.getResources().put("cn/sky/jnic/" + jnic.getTempOut().toString() + ".dat", data);
-                    Jnic.getLogger().info("Generated encrypted dat file with " + libsToPack.size() + " libraries.");
+                byte[] content = Files.readAllBytes(lib.toPath());
+                dos.writeInt(content.length);
+                dos.write(content);
+
+                Jnic.getLogger().info("Packed library: " + lib.getName());
+            }
 
-                } catch (IOException e) {
-                    Jnic.getLogger().error("Failed to pack native libraries: " + e.getMessage());
+            byte[] data = baos.toByteArray();
+            // Encrypt (XOR 0x5F)
+            for (int i = 0; i < data.length; i++) {
+                data[i] ^= 0x5F;
+            }
+
+            jnic.getResources().put("cn/sky/jnic/" + jnic.getTempOut().toString() + ".dat", data);
+            Jnic.getLogger().info("Generated encrypted dat file with " + libsToPack.size() + " libraries.");
+
+        } catch (IOException e) {
+            Jnic.getLogger().error("Failed to pack native libraries: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decides up front which methods get nativized, so that the generator sees a consistent view of
+     * {@link #isNative(String, String, String)} while emitting direct calls.
+     */
+    private void selectMethods() {
+        Map<String, MethodWrapper> candidates = new LinkedHashMap<>();
+        for (ClassWrapper classWrapper : jnic.getClasses().values()) {
+            if (!shouldProcessClass(classWrapper))
+                continue;
+            for (MethodWrapper methodWrapper : classWrapper.getMethods()) {
+                if (shouldProcessMethod(methodWrapper)) {
+                    candidates.put(methodKey(classWrapper.getName(), methodWrapper.getOriginalName(),
+                            methodWrapper.getOriginalDescriptor()), methodWrapper);
                 }
             }
+        }
+
+        Config config = jnic.getConfig();
+        ProfileData profile = null;
+        if (config.getProfileJfr() != null && !config.getProfileJfr().isEmpty()) {
+            profile = ProfileData.load(new File(config.getProfileJfr()));
+        }
+        boolean restrict = profile != null && !"prioritize".equals(config.getProfileMode());
+
+        CostModel costModel = new CostModel(minsn -> isDirectCallCandidate(minsn, candidates.keySet()),
+                config.isIndyLowering(), analyses);
+        Map<String, CostModel.Estimate> estimates = new HashMap<>();
+        List<String> accepted = new ArrayList<>();
+        for (Map.Entry<String, MethodWrapper> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (restrict && profile.getSelfPercent(key) < config.getProfileMinSelfPercent()) {
+                continue;
+            }
+            if (restrict && profile.getSelfRatio(key) < config.getProfileMinSelfRatio()) {
+                Jnic.getLogger().info("Skipping call-heavy method: " + key + String.format(" (self=%.2f%% total=%.2f%%)",
+                        profile.getSelfPercent(key), profile.getTotalPercent(key)));
+                continue;
+            }
+            CostModel.Estimate estimate = costModel.estimate(entry.getValue());
+            estimates.put(key, estimate);
+            if (config.isCostModel() && estimate.ratio() > config.getCostThreshold()) {
+                Jnic.getLogger().info("Skipping method predicted to regress: " + key + " (" + estimate + ")");
+                analyses.invalidate(entry.getValue().getMethodNode());
+            } else {
+                accepted.add(key);
+            }
+        }
 
-            // Clean up temp dir (optional, good for debug to keep)
-            //jnic.getTmpdir().delete();
+        // Spend the size budget on the hottest methods first, then on the best predicted ratio
+        Comparator<String> order = Comparator.comparingDouble(key -> estimates.get(key).ratio());
+        if (profile != null) {
+            ProfileData data = profile;
+            order = Comparator.<String>comparingDouble(key -> -data.getSelfPercent(key)).thenComparing(order);
+        }
+        accepted.sort(order);
+        long budget = config.getNativeSizeBudget() * 1024L;
+        long used = 0;
+        for (String key : accepted) {
+            int size = estimates.get(key).codeSize();
+            if (budget > 0 && used + size > budget) {
+                Jnic.getLogger().info("Skipping method over native size budget: " + key + " (" + size + "B)");
+                analyses.invalidate(candidates.get(key).getMethodNode());
+                continue;
+            }
+            used += size;
+            selectedMethods.add(key);
+        }
+        Jnic.getLogger().info("Selected " + selectedMethods.size() + " of " + candidates.size()
+                + " methods, estimated native size " + used / 1024 + "KB");
+    }
 
-        } else {
-            Jnic.getLogger().error("Native source file not found: " + cFile.getAbsolutePath());
+    private boolean isDirectCallCandidate(MethodInsnNode minsn, Set<String> candidates) {
+        if (!candidates.contains(methodKey(minsn.owner, minsn.name, minsn.desc))) {
+            return false;
+        }
+        if (minsn.getOpcode() == Opcodes.INVOKESTATIC || minsn.getOpcode() == Opcodes.INVOKESPECIAL) {
+            return true;
         }
+        ClassWrapper owner = jnic.getClasses().get(minsn.owner);
+        if (owner == null) {
+            return false;
+        }
+        MethodNode mn = owner.getMethodNode(minsn.name, minsn.desc);
+        return owner.isFinal() || (mn != null && (mn.access & Opcodes.ACC_FINAL) != 0);
+    }
+
+    private static String methodKey(String owner, String name, String desc) {
+        return owner + "." + name + desc;
     }
 
     private boolean shouldProcessClass(ClassWrapper classWrapper) {
@@ -263,18 +343,16 @@ public class NativeProcessor {
         il.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "cn/sky/jnic/JNICLoader", "load",
                 "(Ljava/lang/String;Ljava/lang/Class;)V", false));
 
+        // Registration runs first, native code may rely on its class being registered before anything else runs
         MethodNode clinit = classWrapper.getMethodNode("<clinit>", "()V");
         if (clinit == null) {
             clinit = new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
             classWrapper.addMethod(clinit);
+            clinit.instructions.add(il);
+            clinit.instructions.add(new InsnNode(Opcodes.RETURN));
         } else {
-            if (clinit.instructions.size() > 0) {
-                clinit.instructions.remove(clinit.instructions.getLast());
-            }
+            clinit.instructions.insert(il);
         }
-
-        clinit.instructions.add(il);
-        clinit.instructions.add(new InsnNode(Opcodes.RETURN));
     }
 
     private void processMethod(ClassWrapper owner, MethodWrapper method) {
@@ -295,8 +373,12 @@ public class NativeProcessor {
         generatedNativeMethods.add(owner.getName() + "_" + method.getOriginalName());
     }
 
+    /**
+     * Applies the {@link IndyLowering} strategy of every {@code invokedynamic} of the method.
+     */
     private void handleInvokeDynamic(ClassWrapper owner, MethodWrapper method) {
         InsnList instructions = method.getMethodNode().instructions;
+        boolean lowering = jnic.getConfig().isIndyLowering();
         List<InvokeDynamicInsnNode> indyNodes = new ArrayList<>();
 
         for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
@@ -306,7 +388,21 @@ public class NativeProcessor {
         }
 
         for (InvokeDynamicInsnNode indy : indyNodes) {
-            String helperName = "indy_wrapper_" + Math.abs(indy.hashCode());
+            if (lowering) {
+                InsnList lowered = IndyLowering.lowerObjectMethods(owner, method, indy);
+                if (lowered != null) {
+                    instructions.insert(indy, lowered);
+                    instructions.remove(indy);
+                    analyses.invalidate(method.getMethodNode());
+                    continue;
+                }
+                if (IndyLowering.parseConcat(indy) != null) {
+                    // Built in C by the generator
+                    continue;
+                }
+            }
+            String helperName = (lowering && IndyLowering.isConstantLambda(indy)
+                    ? IndyLowering.CONSTANT_WRAPPER : IndyLowering.WRAPPER) + Math.abs(indy.hashCode());
 
             // Create helper method: static synthetic
             MethodNode helper = new MethodNode(Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, helperName, indy.desc, null,
@@ -334,6 +430,7 @@ public class NativeProcessor {
             // Replace original instruction with INVOKESTATIC to helper
             instructions.set(indy,
                     new MethodInsnNode(Opcodes.INVOKESTATIC, owner.getName(), helperName, indy.desc, false));
+            analyses.invalidate(method.getMethodNode());
         }
     }
 
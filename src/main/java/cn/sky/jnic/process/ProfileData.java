@@ -0,0 +1,102 @@
+package cn.sky.jnic.process;
+
+import cn.sky.jnic.Jnic;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Method hotness read from a JFR recording.
+ * <p>
+ * Every {@code jdk.ExecutionSample} counts as one sample of self time for the method in the top Java frame and one
+ * sample of total time for every distinct method on the stack. Methods are keyed as {@code owner.name+desc} with
+ * internal class names, the same way {@link NativeProcessor} keys its selection.
+ */
+public class ProfileData {
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+    private final Map<String, Integer> selfSamples = new HashMap<>();
+    private final Map<String, Integer> totalSamples = new HashMap<>();
+    @Getter
+    private int sampleCount;
+
+    public static ProfileData load(File jfrFile) {
+        ProfileData data = new ProfileData();
+        try (RecordingFile recording = new RecordingFile(jfrFile.toPath())) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (event.getEventType().getName().equals(EXECUTION_SAMPLE)) {
+                    data.addSample(event.getStackTrace());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read JFR recording " + jfrFile, e);
+        }
+        Jnic.getLogger().info("Loaded " + data.sampleCount + " execution samples from " + jfrFile.getName());
+        return data;
+    }
+
+    private void addSample(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return;
+        }
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        boolean top = true;
+        Set<String> seen = new HashSet<>();
+        for (RecordedFrame frame : frames) {
+            if (!frame.isJavaFrame() || frame.getMethod() == null) {
+                continue;
+            }
+            String key = methodKey(frame.getMethod());
+            if (top) {
+                selfSamples.merge(key, 1, Integer::sum);
+                top = false;
+            }
+            // Recursive methods only count once per sample
+            if (seen.add(key)) {
+                totalSamples.merge(key, 1, Integer::sum);
+            }
+        }
+        if (!top) {
+            sampleCount++;
+        }
+    }
+
+    private static String methodKey(RecordedMethod method) {
+        return method.getType().getName().replace('.', '/') + "." + method.getName() + method.getDescriptor();
+    }
+
+    /**
+     * @return share of all samples in which the method was the top frame, in percent
+     */
+    public double getSelfPercent(String key) {
+        return sampleCount == 0 ? 0 : selfSamples.getOrDefault(key, 0) * 100.0 / sampleCount;
+    }
+
+    /**
+     * @return share of all samples in which the method was on the stack, in percent
+     */
+    public double getTotalPercent(String key) {
+        return sampleCount == 0 ? 0 : totalSamples.getOrDefault(key, 0) * 100.0 / sampleCount;
+    }
+
+    /**
+     * Fraction of the time spent in the method that is spent in its own code rather than in callees. Values close to
+     * 1 indicate a compute-heavy method, values close to 0 a call-heavy one.
+     */
+    public double getSelfRatio(String key) {
+        int total = totalSamples.getOrDefault(key, 0);
+        return total == 0 ? 0 : (double) selfSamples.getOrDefault(key, 0) / total;
+    }
+}
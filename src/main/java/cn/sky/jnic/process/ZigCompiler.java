@@ -4,29 +4,21 @@ import cn.sky.jnic.Jnic;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ZigCompiler {
+    // Symbols the JVM looks up in the library, everything else is internal
+    private static final String[] EXPORTS = {"JNI_OnLoad", "Java_cn_sky_jnic_JNICLoader_registerNatives"};
 
-    public static void compile(File cFile, File outputDir, List<String> targets) {
-        if (targets == null || targets.isEmpty()) {
-            Jnic.getLogger().warn("No targets specified for compilation. Skipping.");
-            return;
-        }
-
-        for (String target : targets) {
-            String zigTarget = mapTargetToZig(target);
-            if (zigTarget != null) {
-                compileTarget(cFile, outputDir, zigTarget);
-            } else {
-                Jnic.getLogger().warn("Unknown target: " + target);
-            }
-        }
-    }
+    private static String zigPath;
+    private static String zigVersion;
 
-    private static String mapTargetToZig(String configTarget) {
+    static String mapTargetToZig(String configTarget) {
         return switch (configTarget) {
             case "WINDOWS_X86_64" -> "x86_64-windows";
             case "LINUX_X86_64" -> "x86_64-linux-gnu";
@@ -93,78 +85,171 @@ public class ZigCompiler {
         return null;
     }
 
-    private static void compileTarget(File cFile, File outputDir, String target) {
-        try {
-            String zigPath = "zig"; // Default to PATH
+    private static synchronized String getZigPath() {
+        if (zigPath == null) {
             File zigExe = findZigExecutable();
             if (zigExe != null && zigExe.exists()) {
                 zigPath = zigExe.getAbsolutePath();
             } else {
-                 Jnic.getLogger().warn("Zig executable not found in project directory, trying system PATH...");
+                Jnic.getLogger().warn("Zig executable not found in project directory, trying system PATH...");
+                zigPath = "zig"; // Default to PATH
             }
-            
-            // Correct extension based on target
-            String ext = ".so";
-            if (target.contains("windows")) ext = ".dll";
-            else if (target.contains("macos")) ext = ".dylib";
-            
-            File outFile = new File(outputDir, "libjnic_" + target + ext);
-            
-            List<String> command = new ArrayList<>();
-            command.add(zigPath);
-            command.add("cc");
-            command.add("-target");
-            command.add(target);
-            command.add("-shared");
-            // -fPIC is implied for shared libs on most platforms, but good to be explicit for Linux
-            if (!target.contains("windows")) {
-                command.add("-fPIC");
+        }
+        return zigPath;
+    }
+
+    /**
+     * Output of {@code zig version}, empty if zig cannot be run (compiling then fails on its own).
+     */
+    static synchronized String getVersion() {
+        if (zigVersion == null) {
+            try {
+                Process process = new ProcessBuilder(getZigPath(), "version").redirectErrorStream(true).start();
+                String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+                zigVersion = process.waitFor() == 0 ? output : "";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            } catch (IOException e) {
+                zigVersion = "";
             }
-            command.add("-o");
-            command.add(outFile.getAbsolutePath());
-            command.add(cFile.getAbsolutePath());
-            
-            // Optimization flags
-            command.add("-O3");
-            // -s (strip) works on Linux/ELF, might cause issues on Mac/Windows depending on linker
-            // zig cc handles it mostly, but let's be safe or conditional
-            if (target.contains("linux")) {
-                command.add("-s");
-                command.add("-lc");
+        }
+        return zigVersion;
+    }
+
+    static String getLibraryName(String target) {
+        // Correct extension based on target
+        String ext = ".so";
+        if (target.contains("windows")) ext = ".dll";
+        else if (target.contains("macos")) ext = ".dylib";
+        return "libjnic_" + target + ext;
+    }
+
+    /**
+     * Flags used to compile a translation unit to an object file, without the input/output paths.
+     */
+    static List<String> getObjectFlags(String target, CompilerOptions options) {
+        List<String> flags = new ArrayList<>();
+        flags.add("-target");
+        flags.add(target);
+        flags.add("-c");
+        // -fPIC is implied for shared libs on most platforms, but good to be explicit for Linux
+        if (!target.contains("windows")) {
+            flags.add("-fPIC");
+        }
+        // Optimization flags
+        flags.add("-O3");
+        if (options.lto()) {
+            flags.add("-flto");
+        }
+        if (options.hiddenVisibility()) {
+            flags.add("-fvisibility=hidden");
+        }
+        if (options.gcSections()) {
+            flags.add("-ffunction-sections");
+            flags.add("-fdata-sections");
+        }
+        return flags;
+    }
+
+    /**
+     * Compiles a single translation unit to an object file. The common header is looked up next to the source.
+     */
+    static boolean compileObject(File cFile, File objFile, String target, CompilerOptions options) {
+        List<String> command = new ArrayList<>();
+        command.add(getZigPath());
+        command.add("cc");
+        command.addAll(getObjectFlags(target, options));
+        command.add("-I");
+        command.add(cFile.getParentFile().getAbsolutePath());
+        command.add("-o");
+        command.add(objFile.getAbsolutePath());
+        command.add(cFile.getAbsolutePath());
+
+        return run(command, cFile.getName() + " (" + target + ")");
+    }
+
+    /**
+     * Links the object files of one target into the shared library.
+     */
+    static boolean link(List<File> objects, File outFile, String target, CompilerOptions options) {
+        List<String> command = new ArrayList<>();
+        command.add(getZigPath());
+        command.add("cc");
+        command.add("-target");
+        command.add(target);
+        command.add("-shared");
+        command.add("-o");
+        command.add(outFile.getAbsolutePath());
+        for (File object : objects) {
+            command.add(object.getAbsolutePath());
+        }
+        // -s (strip) works on Linux/ELF, might cause issues on Mac/Windows depending on linker
+        if (target.contains("linux")) {
+            command.add("-s");
+            command.add("-lc");
+        }
+        if (options.lto()) {
+            command.add("-flto");
+        }
+        if (options.gcSections()) {
+            command.add(target.contains("macos") ? "-Wl,-dead_strip" : "-Wl,--gc-sections");
+        }
+        if (options.exportList() && CompilerOptions.isElf(target)) {
+            File versionScript = new File(outFile.getParentFile(), outFile.getName() + ".map");
+            try {
+                writeVersionScript(versionScript);
+            } catch (IOException e) {
+                Jnic.getLogger().error("Failed to write " + versionScript.getName() + ": " + e.getMessage());
+                return false;
             }
-            
-            // Link JNI headers? Zig usually bundles them or we need to provide include path
-            // For now assuming zig's libc/jdk integration works or simple JNI usage doesn't need external headers if we define minimal JNI struct.
-            // Wait, we included <jni.h> in CGenerator. 
-            // Zig ships with libc but NOT JNI. We need to provide JNI headers or use a minimal self-contained JNI definition.
-            // Since we are cross-compiling, finding system JNI headers is hard.
-            // BEST PRACTICE: Embed a minimal jni.h in the C file or include directory.
-            // CGenerator currently emits #include <jni.h>. This will FAIL if not found.
-            // FIX: We should replace #include <jni.h> with a minimal JNI definition in CGenerator 
-            // OR provide the headers.
-            // Given the constraint "without errors", we MUST provide the definitions.
-            
-            Jnic.getLogger().info("Compiling for " + target + "...");
+            command.add("-Wl,--version-script=" + versionScript.getAbsolutePath());
+        }
+
+        Jnic.getLogger().info("Linking for " + target + "...");
+        if (run(command, outFile.getName())) {
+            Jnic.getLogger().info("Compilation successful: " + outFile.getName());
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeVersionScript(File file) throws IOException {
+        StringBuilder script = new StringBuilder("{\n  global:\n");
+        for (String symbol : EXPORTS) {
+            script.append("    ").append(symbol).append(";\n");
+        }
+        script.append("  local: *;\n};\n");
+        Files.writeString(file.toPath(), script.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean run(List<String> command, String what) {
+        try {
             ProcessBuilder pb = new ProcessBuilder(command);
-            
             pb.redirectErrorStream(true);
             Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                //System.out.println("[ZIG] " + line);
+
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
             }
-            
+
             int exitCode = process.waitFor();
-            if (exitCode == 0) {
-                Jnic.getLogger().info("Compilation successful: " + outFile.getName());
-            } else {
-                Jnic.getLogger().error("Compilation failed with exit code: " + exitCode);
+            if (exitCode != 0) {
+                Jnic.getLogger().error("Compilation of " + what + " failed with exit code: " + exitCode + "\n" + output);
+                return false;
             }
-            
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Jnic.getLogger().error("Compilation of " + what + " interrupted");
+            return false;
         } catch (Exception e) {
             Jnic.getLogger().error("Error during compilation: ", e);
+            return false;
         }
     }
 }
@@ -0,0 +1,49 @@
+package cn.sky.jnic.process.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Object store in a local directory or on a shared filesystem mounted by several build agents.
+ */
+public class FileObjectStore implements ObjectStore {
+    private final File root;
+
+    public FileObjectStore(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        File file = getFile(key);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+        File file = getFile(key);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Write under a unique name and move it in place so concurrent readers never see a partial object
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(new File(root, key.substring(0, 2)), key + ".o");
+    }
+
+    @Override
+    public String toString() {
+        return root.getPath();
+    }
+}
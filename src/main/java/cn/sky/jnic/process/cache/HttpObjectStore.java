@@ -0,0 +1,62 @@
+package cn.sky.jnic.process.cache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Object store on a plain HTTP server: objects are fetched with {@code GET <base>/<key>} and uploaded with
+ * {@code PUT <base>/<key>}. A 404 is a miss.
+ */
+public class HttpObjectStore implements ObjectStore {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final String baseUrl;
+    private final HttpClient client;
+
+    public HttpObjectStore(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + key)).timeout(TIMEOUT).GET().build();
+        HttpResponse<byte[]> response = send(request);
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("GET " + key + " returned " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + key)).timeout(TIMEOUT)
+                .header("Content-Type", "application/octet-stream")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(data)).build();
+        HttpResponse<byte[]> response = send(request);
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("PUT " + key + " returned " + response.statusCode());
+        }
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return baseUrl;
+    }
+}
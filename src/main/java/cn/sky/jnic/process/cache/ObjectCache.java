@@ -0,0 +1,146 @@
+package cn.sky.jnic.process.cache;
+
+import cn.sky.jnic.Jnic;
+import cn.sky.jnic.config.Config;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of compiled object files keyed by the content they were built from.
+ * <p>
+ * The local store is consulted first, then the remote store shared by build agents. A remote hit is copied into the
+ * local store. Any store error is logged and treated as a miss, so the build falls back to compiling locally.
+ */
+public class ObjectCache {
+    private final ObjectStore local;
+    private final ObjectStore remote;
+    private final boolean upload;
+    // Set after the first store error so an unreachable server does not slow down every unit
+    private volatile boolean remoteFailed;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param local  store private to this machine, may be {@code null}
+     * @param remote store shared by build agents, may be {@code null}
+     * @param upload whether objects compiled here are uploaded to the remote store
+     */
+    public ObjectCache(ObjectStore local, ObjectStore remote, boolean upload) {
+        this.local = local;
+        this.remote = remote;
+        this.upload = upload;
+    }
+
+    /**
+     * @return the cache configured by {@code cache.local} and {@code cache.remote}, or {@code null} if neither is set
+     */
+    public static ObjectCache fromConfig(Config config) {
+        ObjectStore local = null;
+        if (config.getCacheLocal() != null && !config.getCacheLocal().isEmpty()) {
+            local = new FileObjectStore(new File(config.getCacheLocal()));
+        }
+        ObjectStore remote = null;
+        String remoteUrl = config.getCacheRemote();
+        if (remoteUrl != null && !remoteUrl.isEmpty()) {
+            if (remoteUrl.startsWith("http://") || remoteUrl.startsWith("https://")) {
+                remote = new HttpObjectStore(remoteUrl);
+            } else {
+                remote = new FileObjectStore(new File(remoteUrl));
+            }
+        }
+        if (local == null && remote == null) {
+            return null;
+        }
+        Jnic.getLogger().info("Using object cache: local=" + local + ", remote=" + remote);
+        return new ObjectCache(local, remote, config.isCacheUpload());
+    }
+
+    /**
+     * Builds the cache key of one object from everything that influences it.
+     *
+     * @param parts generated source, included headers, target, compiler flags and compiler version
+     */
+    public static String key(List<byte[]> parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) {
+                // Length prefix so that moving bytes between parts changes the key
+                digest.update(Integer.toString(part.length).getBytes(StandardCharsets.US_ASCII));
+                digest.update((byte) 0);
+                digest.update(part);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public byte[] get(String key) {
+        byte[] data = getQuietly(local, key);
+        if (data == null) {
+            data = getQuietly(remote, key);
+            if (data != null && local != null) {
+                putQuietly(local, key, data);
+            }
+        }
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return data;
+    }
+
+    public void put(String key, byte[] data) {
+        if (local != null) {
+            putQuietly(local, key, data);
+        }
+        if (remote != null && upload) {
+            putQuietly(remote, key, data);
+        }
+    }
+
+    private byte[] getQuietly(ObjectStore store, String key) {
+        if (store == null || (store == remote && remoteFailed)) {
+            return null;
+        }
+        try {
+            return store.get(key);
+        } catch (Exception e) {
+            onError(store, e);
+            return null;
+        }
+    }
+
+    private void putQuietly(ObjectStore store, String key, byte[] data) {
+        if (store == remote && remoteFailed) {
+            return;
+        }
+        try {
+            store.put(key, data);
+        } catch (Exception e) {
+            onError(store, e);
+        }
+    }
+
+    private void onError(ObjectStore store, Exception e) {
+        if (store == remote) {
+            if (!remoteFailed) {
+                remoteFailed = true;
+                Jnic.getLogger().warn("Object cache " + store + " unavailable, compiling locally: " + e);
+            }
+        } else {
+            Jnic.getLogger().warn("Object cache " + store + " failed: " + e);
+        }
+    }
+
+    public String getStats() {
+        return hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
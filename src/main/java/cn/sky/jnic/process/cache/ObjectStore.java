@@ -0,0 +1,15 @@
+package cn.sky.jnic.process.cache;
+
+import java.io.IOException;
+
+/**
+ * Backing store of the compiled object cache.
+ */
+public interface ObjectStore {
+    /**
+     * @return the cached object, or {@code null} if the key is not present
+     */
+    byte[] get(String key) throws IOException;
+
+    void put(String key, byte[] data) throws IOException;
+}
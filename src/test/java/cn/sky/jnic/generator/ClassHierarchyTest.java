@@ -0,0 +1,197 @@
+package cn.sky.jnic.generator;
+
+import cn.sky.jnic.utils.asm.ClassWrapper;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassHierarchyTest {
+    private static final int CLASS = Opcodes.ACC_PUBLIC;
+    private static final int ABSTRACT_CLASS = Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT;
+    private static final int INTERFACE = Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT;
+    private static final int PUBLIC = Opcodes.ACC_PUBLIC;
+    private static final int ABSTRACT = Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT;
+    private static final int PACKAGE = 0;
+
+    private final Map<String, ClassWrapper> input = new HashMap<>();
+    private final Map<String, ClassWrapper> classpath = new HashMap<>();
+
+    /**
+     * Adds a class of the input, or of the libraries if {@code library} is set.
+     */
+    private void add(boolean library, int access, String name, String superName, List<String> interfaces,
+            MethodNode... methods) {
+        ClassNode node = new ClassNode();
+        node.version = Opcodes.V17;
+        node.access = access;
+        node.name = name;
+        node.superName = superName;
+        node.interfaces.addAll(interfaces);
+        node.methods.addAll(List.of(methods));
+        ClassWrapper wrapper = new ClassWrapper(node, library);
+        classpath.put(name, wrapper);
+        if (!library) {
+            input.put(name, wrapper);
+        }
+    }
+
+    private void add(int access, String name, String superName, MethodNode... methods) {
+        add(false, access, name, superName, List.of(), methods);
+    }
+
+    private static MethodNode method(int access, String name) {
+        return new MethodNode(access, name, "()I", null, null);
+    }
+
+    private ClassHierarchy.Target resolve(String owner, String name) {
+        return new ClassHierarchy(input, classpath).resolve(owner, name, "()I");
+    }
+
+    @Test
+    void singleImplementation() {
+        add(ABSTRACT_CLASS, "a/Shape", "java/lang/Object", method(ABSTRACT, "area"));
+        add(CLASS, "a/Square", "a/Shape", method(PUBLIC, "area"));
+        ClassHierarchy.Target target = resolve("a/Shape", "area");
+        assertEquals("a/Square", target.owner());
+        assertEquals(List.of("a/Square"), target.receivers());
+    }
+
+    @Test
+    void severalImplementations() {
+        add(ABSTRACT_CLASS, "a/Shape", "java/lang/Object", method(ABSTRACT, "area"));
+        add(CLASS, "a/Square", "a/Shape", method(PUBLIC, "area"));
+        add(CLASS, "a/Circle", "a/Shape", method(PUBLIC, "area"));
+        assertNull(resolve("a/Shape", "area"));
+
+        Map<String, String> implementations = new ClassHierarchy(input, classpath)
+                .getImplementations("a/Shape", "area", "()I");
+        assertEquals(Map.of("a/Square", "a/Square", "a/Circle", "a/Circle"), implementations);
+    }
+
+    // Abstract classes are never receivers, their concrete subclasses are
+    @Test
+    void inheritedThroughAbstractClass() {
+        add(ABSTRACT_CLASS, "a/Base", "java/lang/Object", method(PUBLIC, "area"));
+        add(ABSTRACT_CLASS, "a/Mid", "a/Base");
+        add(CLASS, "a/Leaf", "a/Mid");
+        ClassHierarchy.Target target = resolve("a/Mid", "area");
+        assertEquals("a/Base", target.owner());
+        assertEquals(List.of("a/Leaf"), target.receivers());
+    }
+
+    @Test
+    void noConcreteReceiver() {
+        add(ABSTRACT_CLASS, "a/Shape", "java/lang/Object", method(ABSTRACT, "area"));
+        assertNull(resolve("a/Shape", "area"));
+    }
+
+    @Test
+    void sharedByEveryReceiver() {
+        add(CLASS, "a/Base", "java/lang/Object", method(PUBLIC, "area"));
+        add(CLASS, "a/Sub1", "a/Base");
+        add(CLASS, "a/Sub2", "a/Base");
+        ClassHierarchy.Target target = resolve("a/Base", "area");
+        assertEquals("a/Base", target.owner());
+        assertEquals(3, target.receivers().size());
+        assertTrue(target.receivers().containsAll(List.of("a/Base", "a/Sub1", "a/Sub2")));
+    }
+
+    // A library class may be instantiated by the library itself
+    @Test
+    void librarySubclass() {
+        add(CLASS, "a/Base", "java/lang/Object", method(PUBLIC, "area"));
+        add(true, CLASS, "lib/Ext", "a/Base", List.of());
+        assertNull(resolve("a/Base", "area"));
+    }
+
+    @Test
+    void implementationInLibrary() {
+        add(true, CLASS, "lib/LibBase", "java/lang/Object", List.of(), method(PUBLIC, "area"));
+        add(CLASS, "a/Sub", "lib/LibBase");
+        assertNull(resolve("a/Sub", "area"));
+        assertNull(resolve("lib/LibBase", "area"));
+    }
+
+    // b/Sub.size does not override the package-private a/Base.size, and whether it does through classes in between
+    // is not guessed either
+    @Test
+    void packagePrivateAcrossPackages() {
+        add(CLASS, "a/Base", "java/lang/Object", method(PACKAGE, "size"));
+        add(CLASS, "b/Sub", "a/Base", method(PUBLIC, "size"));
+        assertNull(resolve("a/Base", "size"));
+        assertNull(new ClassHierarchy(input, classpath).getImplementations("a/Base", "size", "()I").get("b/Sub"));
+    }
+
+    @Test
+    void packagePrivateInSamePackage() {
+        add(ABSTRACT_CLASS, "a/Base", "java/lang/Object",
+                new MethodNode(Opcodes.ACC_ABSTRACT, "size", "()I", null, null));
+        add(CLASS, "a/Impl", "a/Base", method(PACKAGE, "size"));
+        ClassHierarchy.Target target = resolve("a/Base", "size");
+        assertEquals("a/Impl", target.owner());
+        assertEquals(List.of("a/Impl"), target.receivers());
+    }
+
+    @Test
+    void defaultMethod() {
+        add(INTERFACE, "a/Named", "java/lang/Object", method(PUBLIC, "name"));
+        add(false, CLASS, "a/Impl", "java/lang/Object", List.of("a/Named"));
+        ClassHierarchy.Target target = resolve("a/Named", "name");
+        assertEquals("a/Named", target.owner());
+        assertEquals(List.of("a/Impl"), target.receivers());
+    }
+
+    @Test
+    void defaultMethodOverriddenByOneReceiver() {
+        add(INTERFACE, "a/Named", "java/lang/Object", method(PUBLIC, "name"));
+        add(false, CLASS, "a/Impl", "java/lang/Object", List.of("a/Named"));
+        add(false, CLASS, "a/Other", "java/lang/Object", List.of("a/Named"), method(PUBLIC, "name"));
+        assertNull(resolve("a/Named", "name"));
+    }
+
+    // Two defaults of the same method: the JVM throws, nothing to call directly
+    @Test
+    void conflictingDefaultMethods() {
+        add(INTERFACE, "a/Named", "java/lang/Object", method(PUBLIC, "name"));
+        add(INTERFACE, "a/Titled", "java/lang/Object", method(PUBLIC, "name"));
+        add(false, CLASS, "a/Impl", "java/lang/Object", List.of("a/Named", "a/Titled"));
+        assertNull(resolve("a/Impl", "name"));
+    }
+
+    @Test
+    void abstractInterfaceMethodWithSingleImplementation() {
+        add(INTERFACE, "a/Op", "java/lang/Object", method(ABSTRACT, "apply"));
+        add(false, CLASS, "a/Twice", "java/lang/Object", List.of("a/Op"), method(PUBLIC, "apply"));
+        assertEquals("a/Twice", resolve("a/Op", "apply").owner());
+    }
+
+    @Test
+    void privateMethodIsItsOwnTarget() {
+        add(CLASS, "a/Base", "java/lang/Object", method(Opcodes.ACC_PRIVATE, "secret"));
+        add(CLASS, "a/Sub", "a/Base", method(PUBLIC, "secret"));
+        ClassHierarchy.Target target = resolve("a/Base", "secret");
+        assertEquals("a/Base", target.owner());
+        assertTrue(target.receivers().isEmpty());
+    }
+
+    @Test
+    void staticMethodIsNotResolved() {
+        add(CLASS, "a/Base", "java/lang/Object", method(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "count"));
+        assertNull(resolve("a/Base", "count"));
+    }
+
+    @Test
+    void unknownSuperclass() {
+        add(CLASS, "a/Sub", "lib/Missing");
+        assertNull(resolve("a/Sub", "area"));
+    }
+}
@@ -0,0 +1,52 @@
+package cn.sky.jnic.generator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExceptionCheckEliminatorTest {
+    private static final String CHECK = """
+                if ((*env)->ExceptionCheck(env)) {
+                    return 0;
+                }
+            """;
+
+    // s.hashCode() on null throws, the check after it must stay so that a following upcall does not run
+    @Test
+    void keepsCheckAfterHashCode() {
+        String code = "    s0_i = inline_string_hashCode(env, str_3);\n" + CHECK;
+        assertEquals(code, ExceptionCheckEliminator.apply(code));
+    }
+
+    // GetStringCritical may fail inside equals
+    @Test
+    void keepsCheckAfterEquals() {
+        String code = "    jboolean res_4 = inline_string_equals(env, str_this_4, str_other_4);\n" + CHECK;
+        assertEquals(code, ExceptionCheckEliminator.apply(code));
+    }
+
+    @Test
+    void dropsCheckAfterNonThrowingHelper() {
+        String code = "    s0_i = inline_string_length(env, str_3);\n" + CHECK;
+        assertFalse(ExceptionCheckEliminator.apply(code).contains("ExceptionCheck"));
+    }
+
+    @Test
+    void keepsFirstOfConsecutiveChecks() {
+        String code = "    s0_i = inline_string_hashCode(env, str_3);\n" + CHECK + "    s1_i = l0_i;\n" + CHECK;
+        String result = ExceptionCheckEliminator.apply(code);
+        assertTrue(result.startsWith("    s0_i = inline_string_hashCode(env, str_3);\n" + CHECK));
+        assertEquals(1, result.split("ExceptionCheck", -1).length - 1);
+    }
+
+    @Test
+    void readsNonThrowingHelpersFromDeclarations() {
+        Set<String> helpers = ExceptionCheckEliminator.nonThrowingHelpers(CGenerator.getHelperDeclarations());
+        assertEquals(Set.of("jnic_class", "jnic_field", "jnic_method", "jnic_string", "jnic_ic_target",
+                "inline_string_length", "inline_object_getClass"), helpers);
+    }
+}
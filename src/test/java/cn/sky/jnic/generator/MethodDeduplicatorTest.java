@@ -0,0 +1,146 @@
+package cn.sky.jnic.generator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MethodDeduplicatorTest {
+    private static String prototype(String name) {
+        return "jint JNICALL " + name + "(JNIEnv *env, jobject thiz, jint arg0)";
+    }
+
+    private static String getter(String owner, String cache, int classIndex, int fieldIndex) {
+        return "    static jclass " + cache + " = NULL;\n"
+                + "    log_debug(\"Enter " + owner + ".get\\n\");\n"
+                + "    if (" + cache + " == NULL) " + cache + " = jnic_class(env, " + classIndex + ");\n"
+                + "    jint v = (*env)->GetIntField(env, thiz, JNIC_FIELD(" + fieldIndex + "));\n"
+                + "    return v + arg0;\n";
+    }
+
+    private static int count(String code, String part) {
+        return code.split(Pattern.quote(part), -1).length - 1;
+    }
+
+    @Test
+    void sharesBodiesDifferingOnlyInSymbols() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", getter("demo/A", "cls_3", 4, 9));
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", getter("demo/B", "cls_7", 5, 11));
+        MethodDeduplicator.Unit unit = dedup.flush();
+
+        assertEquals(1, dedup.getSharedCount());
+        assertEquals(1, dedup.getBodyCount());
+        assertEquals(1, count(unit.code(), "GetIntField"));
+        assertEquals(List.of("jint jnic_shared_0(JNIEnv *env, jobject thiz, jint arg0, const char* const* S, "
+                + "JnicSlot* C, const int* I);"), unit.prototypes());
+        assertTrue(unit.code().contains("if (C[0].l == NULL) C[0].l = jnic_class(env, I[0]);"));
+        assertTrue(unit.code().contains("JNIC_FIELD(I[1])"));
+        assertTrue(unit.code().contains("log_debug(S[0]);"));
+        // Every wrapper passes its own tables
+        assertTrue(unit.code().contains("static const char* const S[] = { \"Enter demo/A.get\\n\" };"));
+        assertTrue(unit.code().contains("static const char* const S[] = { \"Enter demo/B.get\\n\" };"));
+        assertTrue(unit.code().contains("static const int I[] = { 4, 9 };"));
+        assertTrue(unit.code().contains("static const int I[] = { 5, 11 };"));
+        assertEquals(2, count(unit.code(), "static JnicSlot C[1];"));
+        assertEquals(2, count(unit.code(), "return jnic_shared_0(env, thiz, arg0, S, C, I);"));
+    }
+
+    @Test
+    void keepsDifferingBodiesApart() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        String a = getter("demo/A", "cls_3", 4, 9);
+        String b = getter("demo/B", "cls_3", 4, 9).replace("v + arg0", "v - arg0");
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", a);
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", b);
+        MethodDeduplicator.Unit unit = dedup.flush();
+
+        assertEquals(0, dedup.getSharedCount());
+        assertEquals(2, dedup.getBodyCount());
+        assertEquals(prototype("a_get") + " {\n" + a + "}\n\n" + prototype("b_get") + " {\n" + b + "}\n\n",
+                unit.code());
+        assertTrue(unit.prototypes().isEmpty());
+    }
+
+    // Numbers other than table indices are part of the body
+    @Test
+    void keepsBodiesWithDifferentImmediatesApart() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", "    return arg0 + 1;\n");
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", "    return arg0 + 2;\n");
+        dedup.flush();
+        assertEquals(0, dedup.getSharedCount());
+    }
+
+    @Test
+    void keepsBodiesWithDifferentSignaturesApart() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", "    return 0;\n");
+        dedup.add("jint JNICALL b_get(JNIEnv *env, jobject thiz, jlong arg0)", "jint", "thiz, arg0",
+                "    return 0;\n");
+        dedup.flush();
+        assertEquals(0, dedup.getSharedCount());
+    }
+
+    @Test
+    void keepsAssemblyLiterals() {
+        String asm = "    __asm__ __volatile__(\"nop\" ::: \"memory\");\n";
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", asm + getter("demo/A", "cls_3", 4, 9));
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", asm + getter("demo/B", "cls_3", 5, 11));
+        MethodDeduplicator.Unit unit = dedup.flush();
+
+        assertEquals(1, dedup.getSharedCount());
+        assertEquals(1, count(unit.code(), asm));
+        assertFalse(unit.code().contains("\"nop\" }"));
+        assertTrue(unit.code().contains("static const char* const S[] = { \"Enter demo/A.get\\n\" };"));
+
+        // Different assembly is never folded into a table entry
+        MethodDeduplicator other = new MethodDeduplicator();
+        other.add(prototype("a_get"), "jint", "thiz, arg0", asm + "    return 0;\n");
+        other.add(prototype("b_get"), "jint", "thiz, arg0", asm.replace("nop", "pause") + "    return 0;\n");
+        other.flush();
+        assertEquals(0, other.getSharedCount());
+    }
+
+    @Test
+    void liftsConcatenationConstants() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", "    jnic_concat_constant(env, &cc_3, 12);\n");
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", "    jnic_concat_constant(env, &cc_3, 40);\n");
+        MethodDeduplicator.Unit unit = dedup.flush();
+        assertEquals(1, dedup.getSharedCount());
+        assertTrue(unit.code().contains("jnic_concat_constant(env, &cc_3, I[0]);"));
+    }
+
+    @Test
+    void singleBodyIsNotShared() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        String body = getter("demo/A", "cls_3", 4, 9);
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", body);
+        MethodDeduplicator.Unit unit = dedup.flush();
+        assertEquals(prototype("a_get") + " {\n" + body + "}\n\n", unit.code());
+        assertEquals(0, dedup.getSharedCount());
+    }
+
+    // A later unit calls the implementation shared by an earlier one instead of emitting it again
+    @Test
+    void laterUnitReusesSharedBody() {
+        MethodDeduplicator dedup = new MethodDeduplicator();
+        dedup.add(prototype("a_get"), "jint", "thiz, arg0", getter("demo/A", "cls_3", 4, 9));
+        dedup.add(prototype("b_get"), "jint", "thiz, arg0", getter("demo/B", "cls_3", 5, 11));
+        dedup.flush();
+
+        dedup.add(prototype("c_get"), "jint", "thiz, arg0", getter("other/C", "cls_3", 6, 13));
+        MethodDeduplicator.Unit unit = dedup.flush();
+        assertEquals(1, dedup.getSharedCount());
+        assertEquals(0, count(unit.code(), "GetIntField"));
+        assertTrue(unit.code().contains("return jnic_shared_0(env, thiz, arg0, S, C, I);"));
+        assertEquals(1, unit.prototypes().size());
+        assertEquals(3, dedup.getMethodCount());
+    }
+}
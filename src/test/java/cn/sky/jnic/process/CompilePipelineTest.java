@@ -0,0 +1,40 @@
+package cn.sky.jnic.process;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CompilePipelineTest {
+    private static final byte[] SOURCE = "int f(void) { return 1; }".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEADERS = "headers".getBytes(StandardCharsets.UTF_8);
+    private static final String TARGET = "x86_64-linux-gnu";
+    private static final List<String> FLAGS = List.of("-O2", "-fPIC");
+    private static final String VERSION = "0.13.0";
+
+    private static String key() {
+        return CompilePipeline.objectKey(SOURCE, HEADERS, TARGET, FLAGS, VERSION);
+    }
+
+    @Test
+    void sameInputsSameKey() {
+        assertEquals(key(), CompilePipeline.objectKey(SOURCE.clone(), HEADERS.clone(), TARGET, List.copyOf(FLAGS),
+                VERSION));
+    }
+
+    @Test
+    void everyInputChangesKey() {
+        String key = key();
+        byte[] source = SOURCE.clone();
+        source[source.length - 3] = '2';
+        assertNotEquals(key, CompilePipeline.objectKey(source, HEADERS, TARGET, FLAGS, VERSION));
+        assertNotEquals(key, CompilePipeline.objectKey(SOURCE, "other".getBytes(StandardCharsets.UTF_8), TARGET,
+                FLAGS, VERSION));
+        assertNotEquals(key, CompilePipeline.objectKey(SOURCE, HEADERS, "aarch64-linux-gnu", FLAGS, VERSION));
+        assertNotEquals(key, CompilePipeline.objectKey(SOURCE, HEADERS, TARGET, List.of("-O3", "-fPIC"), VERSION));
+        assertNotEquals(key, CompilePipeline.objectKey(SOURCE, HEADERS, TARGET, FLAGS, "0.14.0"));
+    }
+}
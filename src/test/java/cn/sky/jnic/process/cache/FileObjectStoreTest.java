@@ -0,0 +1,77 @@
+package cn.sky.jnic.process.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileObjectStoreTest {
+    private static final String KEY = "ab12cd";
+
+    private Path root;
+
+    @BeforeEach
+    void createRoot() throws IOException {
+        root = Files.createTempDirectory("jnic-cache");
+    }
+
+    @AfterEach
+    void deleteRoot() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void missingObjectIsMiss() throws IOException {
+        assertNull(new FileObjectStore(root.toFile()).get(KEY));
+    }
+
+    @Test
+    void putThenGet() throws IOException {
+        FileObjectStore store = new FileObjectStore(root.toFile());
+        store.put(KEY, new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get(KEY));
+        // Another agent sharing the directory sees it too
+        assertArrayEquals(new byte[]{1, 2, 3}, new FileObjectStore(root.toFile()).get(KEY));
+    }
+
+    @Test
+    void putReplacesAndLeavesNoTemporaryFiles() throws IOException {
+        FileObjectStore store = new FileObjectStore(root.toFile());
+        store.put(KEY, new byte[]{1});
+        store.put(KEY, new byte[]{2});
+        assertArrayEquals(new byte[]{2}, store.get(KEY));
+        try (Stream<Path> files = Files.walk(root)) {
+            assertEquals(1, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void objectsAreSpreadByKeyPrefix() throws IOException {
+        new FileObjectStore(root.toFile()).put(KEY, new byte[]{1});
+        assertTrue(Files.isRegularFile(root.resolve("ab").resolve(KEY + ".o")));
+    }
+
+    @Test
+    void putFailsWhenDirectoryCannotBeCreated() throws IOException {
+        // A file where the store expects its root directory
+        File file = root.resolve("file").toFile();
+        Files.write(file.toPath(), new byte[]{0});
+        FileObjectStore store = new FileObjectStore(file);
+        assertThrows(IOException.class, () -> store.put(KEY, new byte[]{1}));
+        assertNull(store.get(KEY));
+    }
+}
@@ -0,0 +1,114 @@
+package cn.sky.jnic.process.cache;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs {@link HttpObjectStore} against a local stand-in for the cache server.
+ */
+class HttpObjectStoreTest {
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private volatile int forcedStatus;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cache/", exchange -> {
+            String key = exchange.getRequestURI().getPath().substring("/cache/".length());
+            byte[] body = null;
+            int status;
+            if (forcedStatus != 0) {
+                status = forcedStatus;
+            } else if (exchange.getRequestMethod().equals("PUT")) {
+                objects.put(key, exchange.getRequestBody().readAllBytes());
+                status = 201;
+            } else {
+                body = objects.get(key);
+                status = body == null ? 404 : 200;
+            }
+            exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+            if (body != null) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/cache";
+    }
+
+    @Test
+    void missingObjectIsMiss() throws IOException {
+        assertNull(new HttpObjectStore(baseUrl()).get("absent"));
+    }
+
+    @Test
+    void putThenGet() throws IOException {
+        HttpObjectStore store = new HttpObjectStore(baseUrl());
+        byte[] data = {1, 2, 3, 0, -1};
+        store.put("k1", data);
+        assertArrayEquals(data, objects.get("k1"));
+        assertArrayEquals(data, store.get("k1"));
+    }
+
+    @Test
+    void serverErrorThrows() {
+        forcedStatus = 500;
+        HttpObjectStore store = new HttpObjectStore(baseUrl());
+        assertThrows(IOException.class, () -> store.get("k1"));
+        assertThrows(IOException.class, () -> store.put("k1", new byte[]{1}));
+    }
+
+    @Test
+    void cacheFallsBackWhenServerFails() throws IOException {
+        forcedStatus = 500;
+        ObjectCache cache = new ObjectCache(null, new HttpObjectStore(baseUrl()), true);
+        assertNull(cache.get("k1"));
+        // Not uploaded once the remote store failed, and no error either
+        forcedStatus = 0;
+        cache.put("k1", new byte[]{1});
+        assertNull(objects.get("k1"));
+        assertEquals("0 hits, 1 misses", cache.getStats());
+    }
+
+    @Test
+    void cacheFallsBackWhenServerIsDown() {
+        String url = baseUrl();
+        server.stop(0);
+        ObjectCache cache = new ObjectCache(null, new HttpObjectStore(url), true);
+        assertNull(cache.get("k1"));
+        cache.put("k1", new byte[]{1});
+    }
+
+    @Test
+    void cacheUploadsAndHits() {
+        ObjectCache cache = new ObjectCache(null, new HttpObjectStore(baseUrl()), true);
+        byte[] data = {4, 5, 6};
+        cache.put("k2", data);
+        assertArrayEquals(data, cache.get("k2"));
+        assertEquals("1 hits, 0 misses", cache.getStats());
+    }
+}
@@ -0,0 +1,142 @@
+package cn.sky.jnic.process.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ObjectCacheTest {
+    /**
+     * In-memory store that counts its calls and fails them while {@code failing} is set.
+     */
+    private static class MemoryStore implements ObjectStore {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        int gets;
+        int puts;
+        boolean failing;
+
+        @Override
+        public byte[] get(String key) throws IOException {
+            gets++;
+            if (failing) {
+                throw new IOException("get " + key);
+            }
+            return objects.get(key);
+        }
+
+        @Override
+        public void put(String key, byte[] data) throws IOException {
+            puts++;
+            if (failing) {
+                throw new IOException("put " + key);
+            }
+            objects.put(key, data);
+        }
+    }
+
+    @Test
+    void localHitDoesNotAskRemote() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        local.objects.put("k", new byte[]{1});
+        ObjectCache cache = new ObjectCache(local, remote, true);
+        assertArrayEquals(new byte[]{1}, cache.get("k"));
+        assertEquals(0, remote.gets);
+        assertEquals("1 hits, 0 misses", cache.getStats());
+    }
+
+    @Test
+    void remoteHitIsCopiedToLocal() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        remote.objects.put("k", new byte[]{2});
+        ObjectCache cache = new ObjectCache(local, remote, true);
+        assertArrayEquals(new byte[]{2}, cache.get("k"));
+        assertArrayEquals(new byte[]{2}, local.objects.get("k"));
+        assertEquals("1 hits, 0 misses", cache.getStats());
+    }
+
+    @Test
+    void missInBothStores() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        ObjectCache cache = new ObjectCache(local, remote, true);
+        assertNull(cache.get("k"));
+        assertEquals(1, local.gets);
+        assertEquals(1, remote.gets);
+        assertEquals("0 hits, 1 misses", cache.getStats());
+    }
+
+    @Test
+    void putUploadsOnlyWhenEnabled() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        new ObjectCache(local, remote, false).put("k", new byte[]{3});
+        assertArrayEquals(new byte[]{3}, local.objects.get("k"));
+        assertEquals(0, remote.puts);
+
+        new ObjectCache(local, remote, true).put("k", new byte[]{3});
+        assertArrayEquals(new byte[]{3}, remote.objects.get("k"));
+    }
+
+    @Test
+    void remoteIsDisabledAfterFailure() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        remote.failing = true;
+        ObjectCache cache = new ObjectCache(local, remote, true);
+        assertNull(cache.get("a"));
+        assertEquals(1, remote.gets);
+
+        // Even once it answers again, for the rest of the build
+        remote.failing = false;
+        remote.objects.put("b", new byte[]{4});
+        assertNull(cache.get("b"));
+        cache.put("c", new byte[]{5});
+        assertEquals(1, remote.gets);
+        assertEquals(0, remote.puts);
+        // The local store keeps working
+        assertArrayEquals(new byte[]{5}, cache.get("c"));
+    }
+
+    @Test
+    void localFailureIsMissAndKeepsRemote() {
+        MemoryStore local = new MemoryStore();
+        MemoryStore remote = new MemoryStore();
+        local.failing = true;
+        remote.objects.put("k", new byte[]{6});
+        ObjectCache cache = new ObjectCache(local, remote, true);
+        assertArrayEquals(new byte[]{6}, cache.get("k"));
+        assertArrayEquals(new byte[]{6}, cache.get("k"));
+        assertEquals(2, remote.gets);
+    }
+
+    @Test
+    void remoteOnly() {
+        MemoryStore remote = new MemoryStore();
+        ObjectCache cache = new ObjectCache(null, remote, true);
+        cache.put("k", new byte[]{7});
+        assertArrayEquals(new byte[]{7}, cache.get("k"));
+    }
+
+    @Test
+    void keyDependsOnPartBoundaries() {
+        String key = ObjectCache.key(List.of(bytes("ab"), bytes("c")));
+        assertEquals(key, ObjectCache.key(List.of(bytes("ab"), bytes("c"))));
+        assertNotEquals(key, ObjectCache.key(List.of(bytes("a"), bytes("bc"))));
+        assertNotEquals(key, ObjectCache.key(List.of(bytes("abc"))));
+        assertEquals(64, key.length());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}